@@ -0,0 +1,174 @@
+package org.hyperledger.fabric.sdk;
+
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.msp.Identities;
+import org.hyperledger.fabric.protos.peer.Chaincode;
+import org.hyperledger.fabric.protos.peer.FabricProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.protos.peer.FabricTransaction;
+import org.hyperledger.fabric.protos.peer.PeerEvents;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds SDK objects for the benchmarks without a network. It lives in the SDK's
+ * package because the constructors of BlockEvent and ProposalResponse are package
+ * private.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class BenchStubs {
+
+    private static final String CHANNEL = "mychannel";
+    private static final String CHAINCODE = "fabcar";
+
+    private BenchStubs() { }
+
+
+    /**
+     * Builds the delivery of a block of valid chaincode invocations. Wrap it with
+     * newBlockEvent for each use, since an event caches what it decodes.
+     * @param blockNumber the block's number
+     * @param transactions the number of transactions in the block
+     * @param writesPerTransaction the number of keys each transaction writes
+     * @return the delivery
+     */
+    public static PeerEvents.DeliverResponse newBlockDelivery(long blockNumber,
+                                                              int transactions,
+                                                              int writesPerTransaction) {
+        Common.BlockData.Builder data = Common.BlockData.newBuilder();
+        byte[] filter = new byte[transactions];          // all VALID (0)
+        for (int i = 0; i < transactions; i++) {
+            data.addData(newEnvelope(blockNumber + "-" + i, writesPerTransaction, i)
+                    .toByteString());
+        }
+        Common.BlockMetadata.Builder metadata = Common.BlockMetadata.newBuilder();
+        for (int i = 0; i < Common.BlockMetadataIndex.values().length - 1; i++) {
+            metadata.addMetadata(i == Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE ?
+                    ByteString.copyFrom(filter) : ByteString.EMPTY);
+        }
+        Common.Block block = Common.Block.newBuilder()
+                .setHeader(Common.BlockHeader.newBuilder().setNumber(blockNumber))
+                .setData(data)
+                .setMetadata(metadata)
+                .build();
+        return PeerEvents.DeliverResponse.newBuilder().setBlock(block).build();
+    }
+
+
+    public static BlockEvent newBlockEvent(PeerEvents.DeliverResponse delivery) {
+        return new BlockEvent((Peer) null, delivery);
+    }
+
+
+    /**
+     * Builds a successful, verified proposal response
+     * @param payload the chaincode's response payload
+     * @return the response
+     */
+    public static ProposalResponse newProposalResponse(byte[] payload) {
+        FabricProposalResponse.ProposalResponsePayload responsePayload =
+                FabricProposalResponse.ProposalResponsePayload.newBuilder()
+                .setExtension(FabricProposal.ChaincodeAction.newBuilder()
+                        .setResponse(FabricProposalResponse.Response.newBuilder()
+                                .setStatus(200)
+                                .setPayload(ByteString.copyFrom(payload)))
+                        .build().toByteString())
+                .build();
+        ProposalResponse response = new VerifiedProposalResponse();
+        response.setProposalResponse(FabricProposalResponse.ProposalResponse.newBuilder()
+                .setResponse(FabricProposalResponse.Response.newBuilder()
+                        .setStatus(200)
+                        .setPayload(ByteString.copyFrom(payload)))
+                .setPayload(responsePayload.toByteString())
+                .build());
+        return response;
+    }
+
+
+    private static Common.Envelope newEnvelope(String txId, int writes, int seq) {
+        Common.ChannelHeader channelHeader = Common.ChannelHeader.newBuilder()
+                .setType(Common.HeaderType.ENDORSER_TRANSACTION_VALUE)
+                .setChannelId(CHANNEL)
+                .setTxId(txId)
+                .build();
+        Common.SignatureHeader signatureHeader = Common.SignatureHeader.newBuilder()
+                .setCreator(Identities.SerializedIdentity.newBuilder()
+                        .setMspid("Org1MSP")
+                        .setIdBytes(ByteString.copyFromUtf8("bench"))
+                        .build().toByteString())
+                .build();
+        Common.Header header = Common.Header.newBuilder()
+                .setChannelHeader(channelHeader.toByteString())
+                .setSignatureHeader(signatureHeader.toByteString())
+                .build();
+
+        Chaincode.ChaincodeInvocationSpec invocation = Chaincode.ChaincodeInvocationSpec
+                .newBuilder().setChaincodeSpec(Chaincode.ChaincodeSpec.newBuilder()
+                        .setChaincodeId(Chaincode.ChaincodeID.newBuilder().setName(CHAINCODE))
+                        .setInput(Chaincode.ChaincodeInput.newBuilder()
+                                .addArgs(ByteString.copyFromUtf8("invoke"))
+                                .addArgs(ByteString.copyFromUtf8("edits"))
+                                .addArgs(ByteString.copyFromUtf8("1"))
+                                .addArgs(ByteString.copyFromUtf8("9.99"))))
+                .build();
+
+        KvRwset.KVRWSet.Builder kvRwset = KvRwset.KVRWSet.newBuilder();
+        for (int i = 0; i < writes; i++) {
+            kvRwset.addWrites(KvRwset.KVWrite.newBuilder()
+                    .setKey("key" + ((seq + i) % 1000))
+                    .setValue(ByteString.copyFrom(("{\"sales\":" + seq + "}")
+                            .getBytes(StandardCharsets.UTF_8))));
+        }
+        Rwset.TxReadWriteSet rwset = Rwset.TxReadWriteSet.newBuilder()
+                .setDataModel(Rwset.TxReadWriteSet.DataModel.KV)
+                .addNsRwset(Rwset.NsReadWriteSet.newBuilder()
+                        .setNamespace(CHAINCODE)
+                        .setRwset(kvRwset.build().toByteString()))
+                .build();
+        FabricProposalResponse.ProposalResponsePayload responsePayload =
+                FabricProposalResponse.ProposalResponsePayload.newBuilder()
+                .setExtension(FabricProposal.ChaincodeAction.newBuilder()
+                        .setResults(rwset.toByteString())
+                        .setResponse(FabricProposalResponse.Response.newBuilder()
+                                .setStatus(200))
+                        .build().toByteString())
+                .build();
+
+        FabricTransaction.ChaincodeActionPayload actionPayload =
+                FabricTransaction.ChaincodeActionPayload.newBuilder()
+                .setChaincodeProposalPayload(FabricProposal.ChaincodeProposalPayload
+                        .newBuilder().setInput(invocation.toByteString())
+                        .build().toByteString())
+                .setAction(FabricTransaction.ChaincodeEndorsedAction.newBuilder()
+                        .setProposalResponsePayload(responsePayload.toByteString()))
+                .build();
+        FabricTransaction.Transaction transaction = FabricTransaction.Transaction
+                .newBuilder().addActions(FabricTransaction.TransactionAction.newBuilder()
+                        .setHeader(signatureHeader.toByteString())
+                        .setPayload(actionPayload.toByteString()))
+                .build();
+
+        Common.Payload payload = Common.Payload.newBuilder()
+                .setHeader(header)
+                .setData(transaction.toByteString())
+                .build();
+        return Common.Envelope.newBuilder().setPayload(payload.toByteString()).build();
+    }
+
+
+    // the benchmarks measure response handling, not signature verification
+    private static class VerifiedProposalResponse extends ProposalResponse {
+        VerifiedProposalResponse() {
+            super("bench", CHAINCODE, ChaincodeResponse.Status.SUCCESS.getStatus(), "");
+        }
+
+        @Override
+        public boolean isVerified() { return true; }
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.yawlfoundation.yawl.fabric.event;
+
+import org.hyperledger.fabric.protos.peer.PeerEvents;
+import org.hyperledger.fabric.sdk.BenchStubs;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the decoding of blocks by YBlockListener.received, with and without a
+ * write set listener (which adds the decoding of each transaction's writes).
+ * Each operation is one block; a new listener is used for each sequence of blocks,
+ * since a listener ignores blocks it has already seen.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockListenerBenchmark {
+
+    private static final int BLOCKS = 32;
+
+    @Param({"1", "10", "100", "500"})
+    public int transactions;                     // per block
+
+    @Param({"false", "true"})
+    public boolean writeSets;
+
+    private PeerEvents.DeliverResponse[] _deliveries;
+
+
+    @Setup
+    public void setUp() {
+        _deliveries = new PeerEvents.DeliverResponse[BLOCKS];
+        for (int i = 0; i < BLOCKS; i++) {
+            _deliveries[i] = BenchStubs.newBlockDelivery(i, transactions, 2);
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public void received(Blackhole bh) {
+        YBlockListener listener = new YBlockListener();
+        if (writeSets) {
+            listener.registerWriteSetListener((blockNumber, writes) -> bh.consume(writes));
+        }
+        for (PeerEvents.DeliverResponse delivery : _deliveries) {
+            listener.received(BenchStubs.newBlockEvent(delivery));
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.yawlfoundation.yawl.fabric.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.yawlfoundation.yawl.fabric.bridge.HistoryPage;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the gateway servlet's JSON handling: reading order and query requests,
+ * and writing a page of a key's history as a response.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GatewayJsonBenchmark {
+
+    @Param({"1", "4", "32"})
+    public int items;                            // per order and history page
+
+    private final FabricServiceServlet _servlet = new FabricServiceServlet();
+    private byte[] _orderRequest;
+    private byte[] _queryRequest;
+    private byte[] _history;
+
+
+    @Setup
+    public void setUp() {
+        StringBuilder order = new StringBuilder("{\"action\":\"order\",\"items\":[");
+        StringBuilder history = new StringBuilder("[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) {
+                order.append(',');
+                history.append(',');
+            }
+            order.append("{\"item\":\"158\",\"quantity\":\"2\",\"total\":\"19.98\"}");
+            history.append("{\"TxId\":\"tx").append(i).append("\",\"Value\":{\"sales\":")
+                    .append(i).append("},\"Timestamp\":\"2018-10-26 10:00:00\"}");
+        }
+        _orderRequest = order.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        _history = history.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        _queryRequest = "{\"action\":\"query\",\"key\":\"edits\",\"minblock\":42}"
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    @Benchmark
+    public Object readOrderRequest() throws IOException {
+        return _servlet.readRequest(newRequest(_orderRequest));
+    }
+
+
+    @Benchmark
+    public Object readQueryRequest() throws IOException {
+        return _servlet.readRequest(newRequest(_queryRequest));
+    }
+
+
+    @Benchmark
+    public void writeHistoryPage() {
+        HistoryPage page = HistoryPage.fromHistoryPayload(_history, 0, items);
+        try (JsonGenerator gen = Json.createGenerator(NullOutputStream.INSTANCE)) {
+            gen.writeStartObject().write("key", "edits").writeStartArray("records");
+            page.getRecords().forEach(gen::write);
+            gen.writeEnd().writeEnd();
+        }
+    }
+
+
+    // a request whose only working method is getInputStream
+    private HttpServletRequest newRequest(byte[] body) {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        ServletInputStream stream = new ServletInputStream() {
+            @Override
+            public int read() { return in.read(); }
+
+            @Override
+            public int read(byte[] b, int off, int len) { return in.read(b, off, len); }
+        };
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("getInputStream")) return stream;
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+
+    private static class NullOutputStream extends OutputStream {
+        static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte[] b, int off, int len) { }
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.yawlfoundation.yawl.fabric.service;
+
+import org.jdom2.Element;
+import org.openjdk.jmh.annotations.*;
+import org.yawlfoundation.yawl.engine.interfce.WorkItemRecord;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the building and reading of work item data by AbstractService's
+ * formatOutputData and getDataValue.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputDataBenchmark {
+
+    private final AbstractService _service = new AbstractService() {
+        @Override
+        protected Element processWorkItem(WorkItemRecord wir) { return null; }
+    };
+
+    private LinkedHashMap<String, String> _outputs;
+    private Element _data;
+
+
+    @Setup
+    public void setUp() {
+        _outputs = new LinkedHashMap<>();
+        _outputs.put("result", "Transaction tx [0123456789abcdef] has completed.");
+        _outputs.put("bookmark", "100");
+        _data = new Element("data");
+        for (String name : new String[] { "fcn", "args", "minBlock", "pageSize" }) {
+            _data.addContent(new Element(name).setText(name + "-value"));
+        }
+    }
+
+
+    @Benchmark
+    public Element formatOutputData() {
+        return _service.formatOutputData("Process_Order", "result",
+                "Transaction tx [0123456789abcdef] has completed successfully.");
+    }
+
+
+    @Benchmark
+    public Element formatOutputDataMap() {
+        return _service.formatOutputData("Process_Order", _outputs);
+    }
+
+
+    @Benchmark
+    public String getDataValue() {
+        return _service.getDataValue(_data, "pageSize");
+    }
+
+}
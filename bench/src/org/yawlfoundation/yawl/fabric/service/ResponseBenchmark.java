@@ -0,0 +1,56 @@
+package org.yawlfoundation.yawl.fabric.service;
+
+import org.hyperledger.fabric.sdk.BenchStubs;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FabricService.parseResponses over the responses of a query, by number
+ * of responding peers and payload size.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseBenchmark {
+
+    @Param({"1", "4"})
+    public int peers;
+
+    @Param({"64", "4096"})
+    public int payloadSize;                      // bytes
+
+    private Collection<ProposalResponse> _responses;
+
+
+    @Setup
+    public void setUp() {
+        StringBuilder payload = new StringBuilder("{\"value\":\"");
+        while (payload.length() < payloadSize - 2) payload.append('x');
+        payload.append("\"}");
+        byte[] bytes = payload.toString().getBytes(StandardCharsets.UTF_8);
+        List<ProposalResponse> responses = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            responses.add(BenchStubs.newProposalResponse(bytes));
+        }
+        _responses = responses;
+    }
+
+
+    @Benchmark
+    public String parseResponses() throws Exception {
+        return FabricService.parseResponses(_responses);
+    }
+
+}
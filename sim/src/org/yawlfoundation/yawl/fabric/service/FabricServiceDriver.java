@@ -0,0 +1,69 @@
+package org.yawlfoundation.yawl.fabric.service;
+
+import org.jdom2.Element;
+import org.yawlfoundation.yawl.engine.interfce.WorkItemRecord;
+import org.yawlfoundation.yawl.fabric.jfr.FlightContext;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a FabricService with work items directly, as the engine's work item
+ * events would, but without an engine: the work item's output is returned rather
+ * than checked in. It lives in the service's package to reach its protected work
+ * item processing. Each work item is given a case id of its own, and its id is set
+ * as the flight context while it is processed, as for a work item from an engine.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class FabricServiceDriver {
+
+    private static final String TASK_ID = "load";
+
+    private final FabricService _service = new FabricService();
+    private final Executor _executor;
+    private final AtomicLong _caseCount = new AtomicLong();
+
+
+    /**
+     * @param executor runs the processing of work items that the service handles
+     *                 synchronously (queries, and invokes unless async invoke is on)
+     */
+    public FabricServiceDriver(Executor executor) {
+        _executor = executor;
+    }
+
+
+    /**
+     * Processes a work item calling a chaincode function
+     * @param fcn the function
+     * @param args its comma separated arguments
+     * @return a future completed with the work item's "result" output
+     */
+    public CompletableFuture<String> process(String fcn, String args) {
+        Element data = new Element("data");
+        data.addContent(new Element("fcn").setText(fcn));
+        data.addContent(new Element("args").setText(args));
+        WorkItemRecord wir = new WorkItemRecord();
+        wir.setCaseID(String.valueOf(_caseCount.incrementAndGet()));
+        wir.setTaskID(TASK_ID);
+        wir.setDataList(data);
+        return CompletableFuture.supplyAsync(() -> {
+                    FlightContext.setWorkItemId(wir.getID());
+                    try {
+                        return _service.processWorkItemAsync(wir);
+                    }
+                    finally {
+                        FlightContext.setWorkItemId(null);
+                    }
+                }, _executor)
+                .thenCompose(future -> future)
+                .thenApply(output -> output.getChildText("result"));
+    }
+
+
+    public void close() { _service.destroy(); }
+
+}
@@ -0,0 +1,97 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.orderer.Ab;
+
+/**
+ * A deliver stream, of the peer or orderer service. The client sends a seek
+ * envelope, and the ledger then sends the blocks in the seek's range through the
+ * stream, ending it with a status once the range is complete (or never, for an
+ * open-ended range). The subscription is cancelled when the client goes away.
+ *
+ * @param <R> the service's response type
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+abstract class DeliverStream<R> implements StreamObserver<Common.Envelope>,
+        SimLedger.BlockSink {
+
+    private final SimLedger _ledger;
+    private final StreamObserver<R> _observer;
+    private volatile Object _subscription;
+    private volatile boolean _closed;
+
+
+    DeliverStream(SimLedger ledger, StreamObserver<R> observer) {
+        _ledger = ledger;
+        _observer = observer;
+        ((ServerCallStreamObserver<R>) observer).setOnCancelHandler(this::close);
+    }
+
+
+    abstract R toResponse(Common.Block block);
+
+    abstract R toResponse(Common.Status status);
+
+
+    @Override
+    public void onNext(Common.Envelope envelope) {
+        Ab.SeekInfo seek;
+        try {
+            seek = Ab.SeekInfo.parseFrom(Common.Payload.parseFrom(
+                    envelope.getPayload()).getData());
+        }
+        catch (InvalidProtocolBufferException e) {
+            done(Common.Status.BAD_REQUEST);
+            return;
+        }
+        _subscription = _ledger.deliver(seek, this);
+        if (_closed) close();                         // cancelled while subscribing
+    }
+
+
+    @Override
+    public void onError(Throwable t) { close(); }
+
+
+    @Override
+    public void onCompleted() { }                     // clients half-close at once
+
+
+    @Override
+    public boolean block(Common.Block block) {
+        if (_closed) return false;
+        try {
+            _observer.onNext(toResponse(block));
+            return true;
+        }
+        catch (RuntimeException e) {                  // cancelled by the client
+            _closed = true;
+            return false;
+        }
+    }
+
+
+    @Override
+    public void done(Common.Status status) {
+        try {
+            _observer.onNext(toResponse(status));
+            _observer.onCompleted();
+        }
+        catch (RuntimeException e) {
+            // already cancelled
+        }
+    }
+
+
+    private void close() {
+        _closed = true;
+        Object subscription = _subscription;
+        if (subscription != null) _ledger.cancel(subscription);
+    }
+
+}
@@ -0,0 +1,246 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.yawlfoundation.yawl.fabric.bridge.CredentialStore;
+import org.yawlfoundation.yawl.fabric.bridge.Props;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process simulation of a Fabric network of one channel: peers that endorse
+ * proposals by running a simulated chaincode, and an orderer that cuts blocks,
+ * which the peers validate and deliver to event streams. It speaks the real gRPC
+ * protocols, so the unmodified Fabric SDK (and so the whole service) can be run and
+ * load tested against it without a Fabric network. Latencies, batch sizes and
+ * failure rates are configurable (see SimConfig).
+ * <p>
+ * Since Props gives all the peers in a domain entry the same url, each simulated
+ * peer has its own domain entry, and all of them, and the orderer, are served on a
+ * single port. The client is given an admin already enrolled with the simulator's
+ * CA, so no fabric-ca server is needed.
+ * <p>
+ * Run standalone, it writes a serviceProps.xml for the service to a data directory
+ * (a temporary one unless --datadir is given), from the bundled serviceProps.xml
+ * or --template, and serves until stopped. Point the service at it with the system
+ * property -Dyawl.fabric.props=[datadir]/serviceProps.xml.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class FabricSimulator implements Closeable {
+
+    private static final String TEMPLATE =
+            "org/yawlfoundation/yawl/fabric/bridge/serviceProps.xml";
+
+    private final SimConfig _config;
+    private final SimIdentities _identities;
+    private final ScheduledExecutorService _scheduler;
+    private final SimLedger _ledger;
+    private final SimPeer _peer;
+    private final SimOrderer _orderer;
+    private final Server _server;
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    /**
+     * Starts the simulated network
+     * @param config its settings
+     */
+    public FabricSimulator(SimConfig config) throws Exception {
+        _config = config;
+        _identities = new SimIdentities();
+        _scheduler = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread t = new Thread(r, "fabric-sim");
+                    t.setDaemon(true);
+                    return t;
+                });
+        _ledger = new SimLedger(config, _identities, _scheduler);
+        _peer = new SimPeer(config, _ledger, _identities, _scheduler);
+        _orderer = new SimOrderer(config, _ledger);
+        _server = NettyServerBuilder.forAddress(new InetSocketAddress("localhost",
+                config.port))
+                .addService(_peer.getEndorserService())
+                .addService(_peer.getDeliverService())
+                .addService(_orderer)
+                .build()
+                .start();
+        _logger.info("Fabric simulator listening on port {}: {} peer(s), channel '{}'",
+                getPort(), config.peers, config.channel);
+    }
+
+
+    public int getPort() { return _server.getPort(); }
+
+
+    /**
+     * Writes a serviceProps.xml that connects the service to the simulator, and a
+     * credential store holding the admin's enrollment. The template's settings
+     * are kept, except for the network addresses, users and data directory.
+     * @param dataDir the directory to write to, and the service's data directory
+     * @param template a props file to start from, or null for the bundled one
+     * @return the path of the props file
+     */
+    public Path writeProps(Path dataDir, Path template)
+            throws IOException, GeneralSecurityException {
+        Document doc = readTemplate(template);
+        Element root = doc.getRootElement();
+        set(root, "caurl", "http://localhost:7054");          // not used: see below
+        set(root, "channel", _config.channel);
+        set(root, "chaincode", _config.chaincode);
+        set(root, "datadir", dataDir.toAbsolutePath().toString());
+
+        Element users = replace(root, "users");
+        Element admin = new Element("user");
+        set(admin, "id", "admin");
+        set(admin, "affiliation", "org1");
+        set(admin, "mspid", _config.mspId);
+        set(admin, "pw", "adminpw");
+        users.addContent(admin);
+
+        String url = "grpc://localhost:" + getPort();
+        Element peers = replace(root, "peers");
+        for (int i = 0; i < _config.peers; i++) {
+            Element peer = new Element("peer");
+            set(peer, "name", "Org1");
+            set(peer, "domain", "org1-" + i + ".sim.example.com");
+            set(peer, "count", "1");
+            set(peer, "url", url);
+            peers.addContent(peer);
+        }
+        Element orderer = new Element("orderer");
+        set(orderer, "name", "orderer");
+        set(orderer, "domain", "sim.example.com");
+        set(orderer, "url", url);
+        replace(root, "orderers").addContent(orderer);
+
+        Element credentials = root.getChild("credentials");
+        String file = null, password = null;
+        if (credentials != null) {
+            file = credentials.getChildText("file");
+            password = credentials.getChildText("password");
+        }
+        if (file == null || file.isEmpty()) file = "credentials.p12";
+        if (password == null || password.isEmpty()) password = "adminpw";
+
+        // the admin is loaded from the store, so it's never enrolled with the CA
+        Files.createDirectories(dataDir);
+        Path store = dataDir.resolve(file);
+        Files.deleteIfExists(store);
+        new CredentialStore(store, password.toCharArray()).put("admin",
+                _identities.getAdminEnrollment());
+
+        Path props = dataDir.resolve("serviceProps.xml");
+        try (Writer writer = Files.newBufferedWriter(props, StandardCharsets.UTF_8)) {
+            new XMLOutputter(Format.getPrettyFormat()).output(doc, writer);
+        }
+        return props;
+    }
+
+
+    /**
+     * @return a one line summary of the simulator's activity
+     */
+    public String getSummary() {
+        return String.format("blocks: %d, valid tx: %d, invalid tx: %d, proposals: %d " +
+                        "(failed: %d), broadcasts refused: %d",
+                _ledger.getHeight(), _ledger.getValidCount(), _ledger.getInvalidCount(),
+                _peer.getProposalCount(), _peer.getFailedCount(),
+                _orderer.getRefusedCount());
+    }
+
+
+    long getHeight() { return _ledger.getHeight(); }
+
+    long getValidCount() { return _ledger.getValidCount(); }
+
+    long getInvalidCount() { return _ledger.getInvalidCount(); }
+
+
+    @Override
+    public void close() {
+        _server.shutdownNow();
+        try {
+            _server.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        _scheduler.shutdownNow();
+    }
+
+
+    private Document readTemplate(Path template) throws IOException {
+        try (InputStream in = template != null ? Files.newInputStream(template) :
+                FabricSimulator.class.getClassLoader().getResourceAsStream(TEMPLATE)) {
+            if (in == null) throw new IOException("Template not found: " + TEMPLATE);
+            return new SAXBuilder().build(in);
+        }
+        catch (JDOMException je) {
+            throw new IOException("Invalid props template: " + je.getMessage());
+        }
+    }
+
+
+    private void set(Element parent, String name, String value) {
+        Element child = parent.getChild(name);
+        if (child == null) {
+            child = new Element(name);
+            parent.addContent(child);
+        }
+        child.setText(value);
+    }
+
+
+    private Element replace(Element parent, String name) {
+        Element child = parent.getChild(name);
+        if (child == null) {
+            child = new Element(name);
+            parent.addContent(child);
+        }
+        child.removeContent();
+        return child;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        SimConfig config = SimConfig.parse(args);
+        if (config.port < 0) config.port = 7051;
+        Path dataDir = config.dataDir != null ? Paths.get(config.dataDir) :
+                Files.createTempDirectory("fabric-sim");
+        FabricSimulator simulator = new FabricSimulator(config);
+        Path props = simulator.writeProps(dataDir, config.template != null ?
+                Paths.get(config.template) : null);
+        System.out.println("Fabric simulator running on port " + simulator.getPort() +
+                ". Start the service with -D" + Props.PROPS_FILE_PROPERTY + "=" + props);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println(simulator.getSummary());
+            simulator.close();
+        }));
+        Thread.currentThread().join();                    // until stopped
+    }
+
+}
@@ -0,0 +1,67 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the latencies of one kind of request, exactly, for percentiles, and
+ * counts its failures by reason.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+class LatencyRecorder {
+
+    private long[] _nanos = new long[4096];
+    private int _count;
+    private final Map<String, Long> _errors = new TreeMap<>();
+    private long _errorCount;
+
+
+    synchronized void record(long nanos) {
+        if (_count == _nanos.length) _nanos = Arrays.copyOf(_nanos, _count * 2);
+        _nanos[_count++] = nanos;
+    }
+
+
+    synchronized void fail(String reason) {
+        _errors.merge(reason, 1L, Long::sum);
+        _errorCount++;
+    }
+
+
+    synchronized int getCount() { return _count; }
+
+    synchronized long getErrorCount() { return _errorCount; }
+
+    synchronized Map<String, Long> getErrors() { return new TreeMap<>(_errors); }
+
+
+    /**
+     * @return the successful requests' latencies, in msecs, sorted
+     */
+    synchronized double[] getSortedMsecs() {
+        long[] sorted = Arrays.copyOf(_nanos, _count);
+        Arrays.sort(sorted);
+        double[] msecs = new double[sorted.length];
+        for (int i = 0; i < sorted.length; i++) msecs[i] = sorted[i] / 1e6;
+        return msecs;
+    }
+
+
+    // nearest rank
+    static double percentile(double[] sorted, double percent) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(percent / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+
+    static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) sum += value;
+        return values.length > 0 ? sum / values.length : 0;
+    }
+
+}
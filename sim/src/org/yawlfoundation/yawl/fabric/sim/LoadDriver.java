@@ -0,0 +1,273 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.yawlfoundation.yawl.fabric.bridge.HFInterface;
+import org.yawlfoundation.yawl.fabric.bridge.SharedHFInterface;
+import org.yawlfoundation.yawl.fabric.service.FabricServiceDriver;
+import org.yawlfoundation.yawl.fabric.service.FabricServiceServlet;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the load generator's requests through one of the service's layers: the
+ * HFInterface itself ("hf"), the custom service's work item processing
+ * ("service"), or the gateway servlet's POST handling ("servlet"). Each write adds
+ * a sale to a bundle, and each read queries a bundle's sales. A request's future
+ * completes exceptionally if the request failed, including when the layer reports
+ * a failure in its response rather than by throwing.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+abstract class LoadDriver {
+
+    // the bundles sold through the gateway, and their item ids there
+    static final List<String> BUNDLES = Collections.unmodifiableList(Arrays.asList(
+            "edits", "report", "illustrations", "hardcopy"));
+    private static final List<String> ITEM_IDS = Arrays.asList("158", "163", "165", "173");
+
+
+    abstract CompletableFuture<Void> write(String key);
+
+    abstract CompletableFuture<Void> read(String key);
+
+    abstract void close();
+
+
+    /**
+     * @param mode hf, service or servlet
+     * @param executor runs requests that a layer handles synchronously
+     */
+    static LoadDriver create(String mode, Executor executor) throws ServletException {
+        switch (mode) {
+            case "hf": return new HFDriver(executor);
+            case "service": return new ServiceDriver(executor);
+            case "servlet": return new ServletDriver(executor);
+            default: throw new IllegalArgumentException("Unknown mode: " + mode +
+                    " (expected hf, service or servlet)");
+        }
+    }
+
+
+    private static class HFDriver extends LoadDriver {
+        private final Executor _executor;
+
+        HFDriver(Executor executor) {
+            _executor = executor;
+            SharedHFInterface.acquire();
+        }
+
+        @Override
+        CompletableFuture<Void> write(String key) {
+            return client().invokeAsync("invoke", key, "1", "9.99").thenAccept(event -> {
+                if (! event.isValid()) {
+                    throw new IllegalStateException("Invalid transaction: " +
+                            event.getValidationCode());
+                }
+            });
+        }
+
+        @Override
+        CompletableFuture<Void> read(String key) {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    for (ProposalResponse response : client().query("query", key)) {
+                        if (response.getStatus() != ChaincodeResponse.Status.SUCCESS) {
+                            throw new IllegalStateException(response.getMessage());
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, _executor);
+        }
+
+        @Override
+        void close() { SharedHFInterface.release(); }
+
+        private HFInterface client() {
+            try {
+                return SharedHFInterface.get(30, TimeUnit.SECONDS);
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+
+    private static class ServiceDriver extends LoadDriver {
+        private final FabricServiceDriver _driver;
+
+        ServiceDriver(Executor executor) {
+            _driver = new FabricServiceDriver(executor);
+        }
+
+        @Override
+        CompletableFuture<Void> write(String key) {
+            return _driver.process("invoke", key + ",1,9.99").thenAccept(result -> {
+                if (result == null || ! result.contains("completed successfully")) {
+                    throw new IllegalStateException(result);
+                }
+            });
+        }
+
+        @Override
+        CompletableFuture<Void> read(String key) {
+            return _driver.process("query", key).thenAccept(result -> {
+                if (result == null || result.startsWith("<failure>") ||
+                        result.contains("Response failed")) {
+                    throw new IllegalStateException(result);
+                }
+            });
+        }
+
+        @Override
+        void close() { _driver.close(); }
+    }
+
+
+    // the servlet maps its order item ids to the first four bundles only
+    private static class ServletDriver extends LoadDriver {
+        private final FabricServiceServlet _servlet = new FabricServiceServlet();
+        private final Executor _executor;
+
+        ServletDriver(Executor executor) throws ServletException {
+            _executor = executor;
+            _servlet.init((ServletConfig) Proxy.newProxyInstance(
+                    ServletConfig.class.getClassLoader(),
+                    new Class<?>[] { ServletConfig.class }, (proxy, method, args) -> {
+                        if (method.getName().equals("getServletName")) return "gateway";
+                        if (method.getName().equals("getInitParameterNames")) {
+                            return Collections.emptyEnumeration();
+                        }
+                        return null;                      // default init params
+                    }));
+        }
+
+        @Override
+        CompletableFuture<Void> write(String key) {
+            int index = BUNDLES.indexOf(key);
+            if (index < 0) throw new IllegalArgumentException("Not a gateway bundle: " + key);
+            String body = "{\"action\":\"order\",\"items\":[{\"item\":\"" +
+                    ITEM_IDS.get(index) + "\",\"quantity\":1,\"total\":9.99}]}";
+            return post(body).thenAccept(response -> {
+                for (JsonValue item : ((JsonObject) response).getJsonArray("items")) {
+                    String result = ((JsonObject) item).getString("result", null);
+                    if (! "success".equals(result)) {
+                        throw new IllegalStateException(item.toString());
+                    }
+                }
+            });
+        }
+
+        @Override
+        CompletableFuture<Void> read(String key) {
+            return post("{\"action\":\"query\",\"key\":\"" + key + "\"}")
+                    .thenAccept(response -> { });
+        }
+
+        @Override
+        void close() { _servlet.destroy(); }
+
+        // a response with an "error" member fails the future
+        private CompletableFuture<JsonValue> post(String body) {
+            return CompletableFuture.supplyAsync(() -> {
+                ResponseCapture capture = new ResponseCapture();
+                try {
+                    _servlet.doPost(newRequest(body), capture.newResponse());
+                }
+                catch (IOException ioe) {
+                    throw new CompletionException(ioe);
+                }
+                String text = new String(capture.body.toByteArray(), StandardCharsets.UTF_8);
+                if (capture.status >= 400) {
+                    throw new IllegalStateException("HTTP " + capture.status + ": " + text);
+                }
+                if (text.isEmpty()) return JsonValue.NULL;        // key has no value
+                JsonValue json;
+                try (JsonReader reader = Json.createReader(new StringReader(text))) {
+                    json = reader.readValue();
+                }
+                if (json instanceof JsonObject && ((JsonObject) json).containsKey("error")) {
+                    throw new IllegalStateException(((JsonObject) json).getString("error"));
+                }
+                return json;
+            }, _executor);
+        }
+
+        private HttpServletRequest newRequest(String body) {
+            ServletInputStream in = new ServletInputStream() {
+                private final ByteArrayInputStream _bytes = new ByteArrayInputStream(
+                        body.getBytes(StandardCharsets.UTF_8));
+
+                @Override
+                public int read() { return _bytes.read(); }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return _bytes.read(b, off, len);
+                }
+            };
+            return (HttpServletRequest) Proxy.newProxyInstance(
+                    HttpServletRequest.class.getClassLoader(),
+                    new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                        if (method.getName().equals("getInputStream")) return in;
+                        throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+    }
+
+
+    // records what the servlet writes to a response
+    private static class ResponseCapture {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status = HttpServletResponse.SC_OK;
+
+        HttpServletResponse newResponse() {
+            ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public void write(int b) { body.write(b); }
+
+                @Override
+                public void write(byte[] b, int off, int len) { body.write(b, off, len); }
+            };
+            return (HttpServletResponse) Proxy.newProxyInstance(
+                    HttpServletResponse.class.getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getOutputStream": return out;
+                            case "setStatus": status = (Integer) args[0]; return null;
+                            case "isCommitted": return false;
+                            case "resetBuffer": body.reset(); return null;
+                            default: return null;          // headers, content type
+                        }
+                    });
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+import org.yawlfoundation.yawl.fabric.bridge.ChaincodeTarget;
+import org.yawlfoundation.yawl.fabric.bridge.FabricMetrics;
+import org.yawlfoundation.yawl.fabric.bridge.Futures;
+import org.yawlfoundation.yawl.fabric.bridge.HFInterface;
+import org.yawlfoundation.yawl.fabric.bridge.LatencyHistogram;
+import org.yawlfoundation.yawl.fabric.bridge.Props;
+import org.yawlfoundation.yawl.fabric.bridge.Resubmitter;
+import org.yawlfoundation.yawl.fabric.bridge.SharedHFInterface;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the service at a target request rate and reports its throughput and
+ * latency percentiles. Requests are sent open-loop: each is issued at its
+ * scheduled time whether or not earlier ones have completed, and its latency is
+ * measured from that scheduled time, so a stall in the service shows up in the
+ * latencies of all the requests it delays rather than being hidden by the
+ * generator slowing down.
+ * <p>
+ * Unless --props names the props of an existing network, a FabricSimulator is
+ * started in-process and the service is pointed at it. Requests go through the
+ * layer chosen by --mode (see LoadDriver); a --queries fraction of them are
+ * queries, the rest are sales, spread over --keys bundles, with a --hot fraction
+ * of them all sent to the first bundle. Requests in the --warmup period aren't
+ * measured. A JSON copy of the report is written to --json, if given.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class LoadGenerator {
+
+    private static final long DRAIN_SECS = 60;        // max wait for the last requests
+
+    private final SimConfig _config;
+    private final List<String> _keys = new ArrayList<>();
+    private final LatencyRecorder _writes = new LatencyRecorder();
+    private final LatencyRecorder _reads = new LatencyRecorder();
+    private final AtomicLong _outstanding = new AtomicLong();
+    private long _drainedMsecs;
+
+
+    LoadGenerator(SimConfig config) {
+        _config = config;
+        for (int i = 0; i < config.keys; i++) {
+            _keys.add(i < LoadDriver.BUNDLES.size() ? LoadDriver.BUNDLES.get(i) :
+                    "bundle" + i);
+        }
+    }
+
+
+    /**
+     * Runs the warmup and measurement periods, then waits for outstanding requests
+     */
+    void run(LoadDriver driver) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / _config.rate);
+        long begin = System.nanoTime();
+        long measureFrom = begin + TimeUnit.SECONDS.toNanos(_config.warmupSecs);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(_config.durationSecs);
+        for (long i = 0; ; i++) {
+            long scheduled = begin + i * interval;
+            if (scheduled >= end) break;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            issue(driver, scheduled, scheduled >= measureFrom);
+        }
+
+        long drainStart = System.nanoTime();
+        long drainEnd = drainStart + TimeUnit.SECONDS.toNanos(DRAIN_SECS);
+        while (_outstanding.get() > 0 && System.nanoTime() < drainEnd) {
+            Thread.sleep(10);
+        }
+        _drainedMsecs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStart);
+    }
+
+
+    private void issue(LoadDriver driver, long scheduled, boolean measured) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean query = random.nextDouble() < _config.queryRatio;
+        String key = random.nextDouble() < _config.hotRatio ? _keys.get(0) :
+                _keys.get(random.nextInt(_keys.size()));
+        LatencyRecorder recorder = query ? _reads : _writes;
+        _outstanding.incrementAndGet();
+        CompletableFuture<Void> future;
+        try {
+            future = query ? driver.read(key) : driver.write(key);
+        }
+        catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((result, ex) -> {
+            long latency = System.nanoTime() - scheduled;
+            if (measured) {
+                if (ex == null) {
+                    recorder.record(latency);
+                }
+                else recorder.fail(reason(ex));
+            }
+            _outstanding.decrementAndGet();
+        });
+    }
+
+
+    // a transaction's validation code, or the exception's type and message, with
+    // transaction ids masked so that like errors are counted together
+    private String reason(Throwable ex) {
+        TxValidationCode code = Resubmitter.getValidationCode(ex);
+        if (code != null) return code.name();
+        ex = Futures.unwrap(ex);
+        String message = String.valueOf(ex.getMessage()).replaceAll("\\s+", " ")
+                .replaceAll("\\b[0-9a-f]{16,}\\b", "[id]");
+        if (message.length() > 100) message = message.substring(0, 100) + "...";
+        return ex.getClass().getSimpleName() + ": " + message;
+    }
+
+
+    void report(FabricSimulator simulator) {
+        System.out.printf("%nmode: %s, offered: %.1f req/s for %ds (after %ds warmup), " +
+                        "queries: %.0f%%, keys: %d, hot: %.0f%%%n", _config.mode,
+                _config.rate, _config.durationSecs, _config.warmupSecs,
+                _config.queryRatio * 100, _config.keys, _config.hotRatio * 100);
+        System.out.printf("%-6s %8s %7s %9s %9s %9s %9s %9s %9s%n", "op", "ok", "errors",
+                "ok/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        printRow("write", _writes);
+        printRow("read", _reads);
+        if (_outstanding.get() > 0) {
+            System.out.println("unfinished after " + DRAIN_SECS + "s: " + _outstanding.get());
+        }
+        printErrors("write", _writes);
+        printErrors("read", _reads);
+        printPhases();
+        Resubmitter resubmitter = getResubmitter();
+        if (resubmitter != null) {
+            long conflicts = 0, resubmitted = 0, exhausted = 0;
+            for (Resubmitter.KeyStats stats : resubmitter.getStats().values()) {
+                conflicts += stats.getConflictCount();
+                resubmitted += stats.getResubmittedCount();
+                exhausted += stats.getExhaustedCount();
+            }
+            System.out.printf("read conflicts: %d, resubmitted: %d, not resubmitted: %d%n",
+                    conflicts, resubmitted, exhausted);
+        }
+        if (simulator != null) System.out.println("network: " + simulator.getSummary());
+    }
+
+
+    private void printRow(String op, LatencyRecorder recorder) {
+        double[] sorted = recorder.getSortedMsecs();
+        System.out.printf("%-6s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", op,
+                sorted.length, recorder.getErrorCount(),
+                (double) sorted.length / _config.durationSecs,
+                LatencyRecorder.percentile(sorted, 50),
+                LatencyRecorder.percentile(sorted, 90),
+                LatencyRecorder.percentile(sorted, 99),
+                LatencyRecorder.percentile(sorted, 99.9),
+                LatencyRecorder.percentile(sorted, 100));
+    }
+
+
+    private void printErrors(String op, LatencyRecorder recorder) {
+        for (Map.Entry<String, Long> entry : recorder.getErrors().entrySet()) {
+            System.out.printf("%s error x%d: %s%n", op, entry.getValue(), entry.getKey());
+        }
+    }
+
+
+    // the service's own latency histograms, by function and phase, including warmup
+    private void printPhases() {
+        HFInterface client = getClient();
+        if (client == null) return;
+        System.out.printf("%n%-26s %-9s %8s %9s %9s %9s %9s%n", "function", "phase",
+                "count", "mean ms", "p50 ms", "p99 ms", "max ms");
+        for (FabricMetrics.FunctionStats stats : client.getMetrics().getFunctionStats()) {
+            String function = stats.getOperation().label() + " " +
+                    ChaincodeTarget.address(stats.getTarget(), stats.getFunction());
+            stats.getPhases().forEach((phase, histogram) -> {
+                LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+                if (snapshot.getCount() == 0) return;
+                System.out.printf("%-26s %-9s %8d %9.2f %9.2f %9.2f %9.2f%n", function,
+                        phase.label(), snapshot.getCount(), snapshot.getMean() / 1e6,
+                        snapshot.getValueAtPercentile(50) / 1e6,
+                        snapshot.getValueAtPercentile(99) / 1e6,
+                        snapshot.getMax() / 1e6);
+            });
+        }
+        Map<String, Long> transactions = client.getMetrics().getTransactionCounts();
+        System.out.println("transactions: " + transactions + ", failed: " +
+                client.getMetrics().getFailedCount() + ", peer errors: " +
+                client.getMetrics().getPeerErrorCounts());
+    }
+
+
+    void writeJson(Path path, FabricSimulator simulator) throws Exception {
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+             JsonGenerator gen = Json.createGeneratorFactory(Collections.singletonMap(
+                     JsonGenerator.PRETTY_PRINTING, true)).createGenerator(writer)) {
+            gen.writeStartObject()
+                    .write("mode", _config.mode)
+                    .write("rate", _config.rate)
+                    .write("durationSecs", _config.durationSecs)
+                    .write("warmupSecs", _config.warmupSecs)
+                    .write("queryRatio", _config.queryRatio)
+                    .write("keys", _config.keys)
+                    .write("hotRatio", _config.hotRatio)
+                    .write("drainMsecs", _drainedMsecs)
+                    .write("unfinished", _outstanding.get());
+            writeJson(gen, "write", _writes);
+            writeJson(gen, "read", _reads);
+            if (simulator != null) {
+                gen.writeStartObject("network")
+                        .write("peers", _config.peers)
+                        .write("endorseMsecs", _config.endorseMsecs)
+                        .write("batchSize", _config.batchSize)
+                        .write("batchTimeoutMsecs", _config.batchTimeoutMsecs)
+                        .write("blocks", simulator.getHeight())
+                        .write("validTransactions", simulator.getValidCount())
+                        .write("invalidTransactions", simulator.getInvalidCount())
+                        .writeEnd();
+            }
+            gen.writeEnd();
+        }
+    }
+
+
+    private void writeJson(JsonGenerator gen, String op, LatencyRecorder recorder) {
+        double[] sorted = recorder.getSortedMsecs();
+        gen.writeStartObject(op)
+                .write("ok", sorted.length)
+                .write("errors", recorder.getErrorCount())
+                .write("throughput", (double) sorted.length / _config.durationSecs)
+                .writeStartObject("latencyMsecs")
+                .write("mean", LatencyRecorder.mean(sorted))
+                .write("p50", LatencyRecorder.percentile(sorted, 50))
+                .write("p90", LatencyRecorder.percentile(sorted, 90))
+                .write("p99", LatencyRecorder.percentile(sorted, 99))
+                .write("p99.9", LatencyRecorder.percentile(sorted, 99.9))
+                .write("max", LatencyRecorder.percentile(sorted, 100))
+                .writeEnd()
+                .writeStartObject("errorReasons");
+        recorder.getErrors().forEach(gen::write);
+        gen.writeEnd().writeEnd();
+    }
+
+
+    private Resubmitter getResubmitter() {
+        HFInterface client = getClient();
+        return client != null ? client.getResubmitter() : null;
+    }
+
+
+    private HFInterface getClient() {
+        try {
+            return SharedHFInterface.get(1, TimeUnit.SECONDS);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        SimConfig config = SimConfig.parse(args);
+        if (config.mode.equals("servlet") && config.keys > LoadDriver.BUNDLES.size()) {
+            System.out.println("The gateway sells " + LoadDriver.BUNDLES.size() +
+                    " bundles: using " + LoadDriver.BUNDLES.size() + " keys");
+            config.keys = LoadDriver.BUNDLES.size();
+        }
+
+        FabricSimulator simulator = null;
+        Path props;
+        if (config.props != null) {
+            props = Paths.get(config.props);
+        }
+        else {
+            if (config.port < 0) config.port = 0;
+            simulator = new FabricSimulator(config);
+            props = simulator.writeProps(config.dataDir != null ?
+                    Paths.get(config.dataDir) : Files.createTempDirectory("fabric-load"),
+                    config.template != null ? Paths.get(config.template) : null);
+        }
+        System.setProperty(Props.PROPS_FILE_PROPERTY, props.toString());
+
+        // hold the shared interface for the whole run, and wait until it's ready
+        SharedHFInterface.acquire();
+        HFInterface client = SharedHFInterface.get(60, TimeUnit.SECONDS);
+        if (client.getTargets().isEmpty()) {
+            throw new IllegalStateException("No channel could be initialised");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(config.concurrency, r -> {
+            Thread t = new Thread(r, "load");
+            t.setDaemon(true);
+            return t;
+        });
+        LoadDriver driver = LoadDriver.create(config.mode, executor);
+        LoadGenerator generator = new LoadGenerator(config);
+        try {
+            generator.run(driver);
+            generator.report(simulator);
+            if (config.json != null) generator.writeJson(Paths.get(config.json), simulator);
+        }
+        finally {
+            driver.close();
+            SharedHFInterface.release();
+            executor.shutdownNow();
+            if (simulator != null) simulator.close();
+        }
+        System.exit(0);                          // the SDK leaves non-daemon threads
+    }
+
+}
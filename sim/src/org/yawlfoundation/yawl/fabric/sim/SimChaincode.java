@@ -0,0 +1,264 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.yawlfoundation.yawl.util.StringUtil;
+
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chaincode run by the simulated peers, modelled on the sales chaincode the
+ * service is used with:
+ * <ul>
+ * <li>invoke(key, quantity, total [, key, quantity, total ...]) adds to the
+ * "quantity" and "total" of each key's JSON value, so it also serves as the order
+ * batch function</li>
+ * <li>query(key) returns the key's value (empty if it has none)</li>
+ * <li>queryHistory(key) returns the key's history as a JSON array of records with
+ * "TxId", "Value", "Timestamp" and "IsDelete" members</li>
+ * <li>queryHistoryPage(key, pageSize, bookmark) returns a page of the history, as
+ * a JSON object with "records" and "bookmark" members</li>
+ * <li>any other function starting with "query" returns the value of its first
+ * argument's key; any other function stores its arguments, as a JSON array, under
+ * its first argument</li>
+ * </ul>
+ * As with a real peer, reads are recorded in the read set with the version read,
+ * and writes are only recorded in the write set; nothing is applied to the world
+ * state until the transaction is committed.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+class SimChaincode {
+
+    private final SimLedger _ledger;
+    private final String _namespace;
+
+    private final Map<String, KvRwset.KVRead> _reads = new LinkedHashMap<>();
+    private final Map<String, KvRwset.KVWrite> _writes = new LinkedHashMap<>();
+
+
+    SimChaincode(SimLedger ledger, String namespace) {
+        _ledger = ledger;
+        _namespace = namespace;
+    }
+
+
+    /**
+     * Executes a function
+     * @param args the function name, followed by its arguments
+     * @return the chaincode's response; its read/write set is then available from
+     * getResults
+     */
+    FabricProposalResponse.Response execute(List<String> args) {
+        if (args.isEmpty()) return error("No function name provided");
+        String fcn = args.get(0);
+        List<String> params = args.subList(1, args.size());
+        try {
+            switch (fcn) {
+                case "invoke": return increment(params);
+                case "query": return read(params);
+                case "queryHistory": return history(params);
+                case "queryHistoryPage": return historyPage(params);
+                default: return fcn.startsWith("query") ? read(params) : store(params);
+            }
+        }
+        catch (IllegalArgumentException iae) {
+            return error(iae.getMessage());
+        }
+    }
+
+
+    ByteString getResults() {
+        KvRwset.KVRWSet kvRwset = KvRwset.KVRWSet.newBuilder()
+                .addAllReads(_reads.values())
+                .addAllWrites(_writes.values())
+                .build();
+        return Rwset.TxReadWriteSet.newBuilder()
+                .setDataModel(Rwset.TxReadWriteSet.DataModel.KV)
+                .addNsRwset(Rwset.NsReadWriteSet.newBuilder()
+                        .setNamespace(_namespace)
+                        .setRwset(kvRwset.toByteString()))
+                .build().toByteString();
+    }
+
+
+    // a single key may be given with just a quantity
+    private FabricProposalResponse.Response increment(List<String> params) {
+        int stride = params.size() == 2 ? 2 : 3;
+        if (params.isEmpty() || params.size() % stride != 0) {
+            throw new IllegalArgumentException("Expecting key, quantity, total triples");
+        }
+        for (int i = 0; i < params.size(); i += stride) {
+            String key = params.get(i);
+            BigDecimal quantity = number(params.get(i + 1));
+            BigDecimal total = stride == 3 ? number(params.get(i + 2)) : BigDecimal.ZERO;
+            JsonObject current = toObject(getState(key));
+            if (current != null) {
+                quantity = quantity.add(amount(current, "quantity"));
+                total = total.add(amount(current, "total"));
+            }
+            putState(key, Json.createObjectBuilder()
+                    .add("quantity", quantity)
+                    .add("total", total)
+                    .build().toString());
+        }
+        return success(ByteString.EMPTY);
+    }
+
+
+    private FabricProposalResponse.Response read(List<String> params) {
+        if (params.isEmpty()) throw new IllegalArgumentException("No key provided");
+        ByteString value = getState(params.get(0));
+        return success(value != null ? value : ByteString.EMPTY);
+    }
+
+
+    private FabricProposalResponse.Response store(List<String> params) {
+        if (params.isEmpty()) throw new IllegalArgumentException("No key provided");
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator gen = Json.createGenerator(writer)) {
+            gen.writeStartArray();
+            params.forEach(gen::write);
+            gen.writeEnd();
+        }
+        putState(params.get(0), writer.toString());
+        return success(ByteString.EMPTY);
+    }
+
+
+    private FabricProposalResponse.Response history(List<String> params) {
+        if (params.isEmpty()) throw new IllegalArgumentException("No key provided");
+        List<SimLedger.HistoryRecord> records = _ledger.getHistory(_namespace,
+                params.get(0));
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator gen = Json.createGenerator(writer)) {
+            gen.writeStartArray();
+            records.forEach(record -> writeRecord(gen, record));
+            gen.writeEnd();
+        }
+        return success(ByteString.copyFromUtf8(writer.toString()));
+    }
+
+
+    // the bookmark is the index of the page's first record
+    private FabricProposalResponse.Response historyPage(List<String> params) {
+        if (params.isEmpty()) throw new IllegalArgumentException("No key provided");
+        List<SimLedger.HistoryRecord> records = _ledger.getHistory(_namespace,
+                params.get(0));
+        int pageSize = params.size() > 1 ? StringUtil.strToInt(params.get(1), 0) : 0;
+        if (pageSize <= 0) pageSize = Integer.MAX_VALUE;
+        int offset = params.size() > 2 ?
+                Math.max(0, StringUtil.strToInt(params.get(2), 0)) : 0;
+        int end = (int) Math.min(records.size(), (long) offset + pageSize);
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator gen = Json.createGenerator(writer)) {
+            gen.writeStartObject().writeStartArray("records");
+            for (int i = offset; i < end; i++) {
+                writeRecord(gen, records.get(i));
+            }
+            gen.writeEnd();
+            if (end < records.size()) gen.write("bookmark", String.valueOf(end));
+            gen.writeEnd();
+        }
+        return success(ByteString.copyFromUtf8(writer.toString()));
+    }
+
+
+    private void writeRecord(JsonGenerator gen, SimLedger.HistoryRecord record) {
+        gen.writeStartObject().write("TxId", record.txId);
+        JsonObject value = toObject(record.value);
+        if (value != null) {
+            gen.write("Value", value);
+        }
+        else gen.write("Value", record.value.toStringUtf8());
+        gen.write("Timestamp", Instant.ofEpochSecond(record.timestamp.getSeconds(),
+                record.timestamp.getNanos()).toString());
+        gen.write("IsDelete", String.valueOf(record.delete));
+        gen.writeEnd();
+    }
+
+
+    private ByteString getState(String key) {
+        SimLedger.VersionedValue current = _ledger.get(_namespace, key);
+        if (! _reads.containsKey(key)) {
+            KvRwset.KVRead.Builder read = KvRwset.KVRead.newBuilder().setKey(key);
+            if (current != null) {
+                read.setVersion(KvRwset.Version.newBuilder()
+                        .setBlockNum(current.blockNum)
+                        .setTxNum(current.txNum));
+            }
+            _reads.put(key, read.build());
+        }
+        return current != null ? current.value : null;
+    }
+
+
+    private void putState(String key, String value) {
+        _writes.put(key, KvRwset.KVWrite.newBuilder()
+                .setKey(key)
+                .setValue(ByteString.copyFrom(value.getBytes(StandardCharsets.UTF_8)))
+                .build());
+    }
+
+
+    private JsonObject toObject(ByteString value) {
+        if (value == null || value.isEmpty() || value.byteAt(0) != '{') return null;
+        try (JsonReader reader = Json.createReader(new StringReader(value.toStringUtf8()))) {
+            JsonValue json = reader.readValue();
+            return json.getValueType() == JsonValue.ValueType.OBJECT ? (JsonObject) json : null;
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+
+    private BigDecimal amount(JsonObject object, String name) {
+        JsonValue value = object.get(name);
+        return value instanceof JsonNumber ? ((JsonNumber) value).bigDecimalValue() :
+                BigDecimal.ZERO;
+    }
+
+
+    private BigDecimal number(String value) {
+        try {
+            return new BigDecimal(value.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+
+
+    static FabricProposalResponse.Response success(ByteString payload) {
+        return FabricProposalResponse.Response.newBuilder()
+                .setStatus(200)
+                .setPayload(payload)
+                .build();
+    }
+
+
+    static FabricProposalResponse.Response error(String message) {
+        return FabricProposalResponse.Response.newBuilder()
+                .setStatus(500)
+                .setMessage(message)
+                .build();
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import org.yawlfoundation.yawl.util.StringUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of the simulated network and of a load run, read from command line
+ * arguments of the form --name=value. Unknown names are rejected.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class SimConfig {
+
+    // network
+    int port = -1;                    // peers and orderer; 0 = any free port,
+                                      // -1 = 7051 standalone, any free port embedded
+    int peers = 2;                    // peers endorsing each proposal
+    String channel = "mychannel";
+    String chaincode = "fabcar";
+    String mspId = "Org1MSP";
+    long endorseMsecs = 5;            // mean endorsement latency
+    long endorseJitterMsecs = 5;      // +/- uniformly
+    int batchSize = 100;              // max transactions per block
+    long batchTimeoutMsecs = 200;     // max wait to fill a block
+    double endorseFailRate;           // proposals answered with status 500
+    double broadcastFailRate;         // transactions refused by the orderer
+    double invalidateRate;            // committed transactions marked invalid
+    boolean mvcc = true;              // false = read conflicts aren't detected
+    String dataDir;                   // for the props and credentials written
+    String template;                  // props file to start from, null = bundled
+
+    // load
+    String mode = "hf";               // hf | service | servlet
+    double rate = 100;                // requests per second
+    long durationSecs = 30;
+    long warmupSecs = 5;
+    int concurrency = 64;             // request threads
+    double queryRatio = 0.2;          // fraction of requests that are queries
+    int keys = 4;                     // distinct keys written
+    double hotRatio;                  // fraction of requests to the first key
+    String props;                     // an existing network's props, null = embed
+    String json;                      // file for the JSON report, null = none
+
+
+    static SimConfig parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            if (! arg.startsWith("--") || ! arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            int pos = arg.indexOf('=');
+            values.put(arg.substring(2, pos), arg.substring(pos + 1));
+        }
+        SimConfig config = new SimConfig();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            config.set(entry.getKey(), entry.getValue());
+        }
+        return config;
+    }
+
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "port": port = StringUtil.strToInt(value, port); break;
+            case "peers": peers = Math.max(1, StringUtil.strToInt(value, peers)); break;
+            case "channel": channel = value; break;
+            case "chaincode": chaincode = value; break;
+            case "endorsemsecs": endorseMsecs = StringUtil.strToLong(value, endorseMsecs); break;
+            case "endorsejitter": endorseJitterMsecs =
+                    StringUtil.strToLong(value, endorseJitterMsecs); break;
+            case "batchsize": batchSize = Math.max(1, StringUtil.strToInt(value, batchSize)); break;
+            case "batchtimeout": batchTimeoutMsecs =
+                    StringUtil.strToLong(value, batchTimeoutMsecs); break;
+            case "endorsefail": endorseFailRate = StringUtil.strToDouble(value, 0); break;
+            case "broadcastfail": broadcastFailRate = StringUtil.strToDouble(value, 0); break;
+            case "invalidate": invalidateRate = StringUtil.strToDouble(value, 0); break;
+            case "mvcc": mvcc = ! "false".equalsIgnoreCase(value); break;
+            case "datadir": dataDir = value; break;
+            case "template": template = value; break;
+            case "mode": mode = value; break;
+            case "rate": rate = StringUtil.strToDouble(value, rate); break;
+            case "duration": durationSecs = StringUtil.strToLong(value, durationSecs); break;
+            case "warmup": warmupSecs = StringUtil.strToLong(value, warmupSecs); break;
+            case "concurrency": concurrency = Math.max(1,
+                    StringUtil.strToInt(value, concurrency)); break;
+            case "queries": queryRatio = StringUtil.strToDouble(value, queryRatio); break;
+            case "keys": keys = Math.max(1, StringUtil.strToInt(value, keys)); break;
+            case "hot": hotRatio = StringUtil.strToDouble(value, 0); break;
+            case "props": props = value; break;
+            case "json": json = value; break;
+            default: throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.hyperledger.fabric.sdk.Enrollment;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The identities of the simulated network: a self-signed CA, the certificate the
+ * peers endorse with, and an admin enrollment for the client, all with P-256 keys
+ * as Fabric uses.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+class SimIdentities {
+
+    private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+    private static final AtomicLong SERIAL = new AtomicLong(System.currentTimeMillis());
+
+    private final KeyPair _caKeys;
+    private final X509Certificate _caCert;
+    private final KeyPair _peerKeys;
+    private final X509Certificate _peerCert;
+    private final KeyPair _adminKeys;
+    private final X509Certificate _adminCert;
+
+
+    SimIdentities() throws Exception {
+        _caKeys = newKeyPair();
+        X500Name caName = new X500Name("CN=ca.sim.example.com,O=sim.example.com");
+        _caCert = newCertificate(caName, caName, _caKeys, _caKeys.getPrivate(), true);
+        _peerKeys = newKeyPair();
+        _peerCert = newCertificate(caName, new X500Name("CN=peer.sim.example.com"),
+                _peerKeys, _caKeys.getPrivate(), false);
+        _adminKeys = newKeyPair();
+        _adminCert = newCertificate(caName, new X500Name("CN=admin"),
+                _adminKeys, _caKeys.getPrivate(), false);
+    }
+
+
+    byte[] getCaCertPem() { return toPem(_caCert).getBytes(StandardCharsets.UTF_8); }
+
+    byte[] getPeerCertPem() { return toPem(_peerCert).getBytes(StandardCharsets.UTF_8); }
+
+
+    Enrollment getAdminEnrollment() {
+        PrivateKey key = _adminKeys.getPrivate();
+        String cert = toPem(_adminCert);
+        return new Enrollment() {
+            @Override
+            public PrivateKey getKey() { return key; }
+
+            @Override
+            public String getCert() { return cert; }
+        };
+    }
+
+
+    // signs as the peers do when endorsing
+    byte[] sign(byte[]... parts) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign(_peerKeys.getPrivate());
+        for (byte[] part : parts) signature.update(part);
+        return signature.sign();
+    }
+
+
+    private KeyPair newKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+
+    private X509Certificate newCertificate(X500Name issuer, X500Name subject,
+                                           KeyPair keys, PrivateKey issuerKey,
+                                           boolean ca) throws Exception {
+        Date from = new Date(System.currentTimeMillis() - 60000);
+        Date to = new Date(System.currentTimeMillis() + 365L * 24 * 3600 * 1000);
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer,
+                BigInteger.valueOf(SERIAL.incrementAndGet()), from, to, subject,
+                keys.getPublic());
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+        builder.addExtension(Extension.keyUsage, true, new KeyUsage(ca ?
+                KeyUsage.keyCertSign | KeyUsage.cRLSign | KeyUsage.digitalSignature :
+                KeyUsage.digitalSignature));
+        ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM)
+                .build(issuerKey);
+        X509CertificateHolder holder = builder.build(signer);
+        return new JcaX509CertificateConverter().getCertificate(holder);
+    }
+
+
+    private String toPem(X509Certificate cert) {
+        try {
+            return "-----BEGIN CERTIFICATE-----\n" +
+                    Base64.getMimeEncoder(64, new byte[] { '\n' }).encodeToString(
+                            cert.getEncoded()) +
+                    "\n-----END CERTIFICATE-----\n";
+        }
+        catch (GeneralSecurityException gse) {
+            throw new IllegalStateException(gse);
+        }
+    }
+
+}
@@ -0,0 +1,424 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.common.Configtx;
+import org.hyperledger.fabric.protos.common.Ledger;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.msp.MspConfig;
+import org.hyperledger.fabric.protos.orderer.Ab;
+import org.hyperledger.fabric.protos.peer.FabricProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.protos.peer.FabricTransaction;
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The simulated channel's ledger, shared by all simulated peers and the orderer.
+ * Ordered transactions are cut into blocks when a batch is full or its timeout
+ * expires. Each transaction is then validated as a committing peer would: its read
+ * set must match the current versions of the keys it read (MVCC), and its id must
+ * be unique. The write sets of valid transactions are applied to the world state,
+ * and each block is delivered to the subscribed event streams. Block 0 is a
+ * configuration block holding the organisation's MSP, from which clients load the
+ * CA certificate that endorsements are verified against.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+class SimLedger {
+
+    /**
+     * Receives the blocks of a deliver stream
+     */
+    interface BlockSink {
+
+        // returns false if the stream is gone
+        boolean block(Common.Block block);
+
+        void done(Common.Status status);
+    }
+
+    private final SimConfig _config;
+    private final ScheduledExecutorService _scheduler;
+
+    private final List<Common.Block> _blocks = new ArrayList<>();
+    private final Map<String, VersionedValue> _state = new HashMap<>();   // ns\0key
+    private final Map<String, List<HistoryRecord>> _history = new HashMap<>();
+    private final Set<String> _txIds = new HashSet<>();
+    private final List<Subscription> _subscriptions = new ArrayList<>();
+
+    private final List<Common.Envelope> _pending = new ArrayList<>();
+    private ScheduledFuture<?> _batchTimer;
+
+    private long _valid;
+    private long _invalid;
+
+
+    SimLedger(SimConfig config, SimIdentities identities, ScheduledExecutorService scheduler) {
+        _config = config;
+        _scheduler = scheduler;
+        _blocks.add(newConfigBlock(identities));
+    }
+
+
+    /**
+     * A key's value and the version (block and transaction number) that wrote it
+     */
+    static class VersionedValue {
+        final ByteString value;
+        final long blockNum;
+        final long txNum;
+
+        VersionedValue(ByteString value, long blockNum, long txNum) {
+            this.value = value;
+            this.blockNum = blockNum;
+            this.txNum = txNum;
+        }
+    }
+
+
+    static class HistoryRecord {
+        final String txId;
+        final ByteString value;
+        final Timestamp timestamp;
+        final boolean delete;
+
+        HistoryRecord(String txId, ByteString value, Timestamp timestamp, boolean delete) {
+            this.txId = txId;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.delete = delete;
+        }
+    }
+
+
+    synchronized VersionedValue get(String namespace, String key) {
+        return _state.get(namespace + '\u0000' + key);
+    }
+
+
+    synchronized List<HistoryRecord> getHistory(String namespace, String key) {
+        List<HistoryRecord> history = _history.get(namespace + '\u0000' + key);
+        return history != null ? new ArrayList<>(history) : Collections.emptyList();
+    }
+
+
+    synchronized long getHeight() { return _blocks.size(); }
+
+
+    synchronized Common.Block getBlock(long number) {
+        return number >= 0 && number < _blocks.size() ? _blocks.get((int) number) : null;
+    }
+
+
+    synchronized Ledger.BlockchainInfo getInfo() {
+        Common.Block last = _blocks.get(_blocks.size() - 1);
+        return Ledger.BlockchainInfo.newBuilder()
+                .setHeight(_blocks.size())
+                .setCurrentBlockHash(ByteString.copyFrom(hash(last.getHeader().toByteArray())))
+                .setPreviousBlockHash(last.getHeader().getPreviousHash())
+                .build();
+    }
+
+
+    synchronized long getValidCount() { return _valid; }
+
+    synchronized long getInvalidCount() { return _invalid; }
+
+
+    /**
+     * Adds an envelope to the next block
+     * @param envelope a transaction envelope accepted by the orderer
+     */
+    synchronized void order(Common.Envelope envelope) {
+        _pending.add(envelope);
+        if (_pending.size() >= _config.batchSize) {
+            cut();
+        }
+        else if (_batchTimer == null) {
+            _batchTimer = _scheduler.schedule(this::timeout, _config.batchTimeoutMsecs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * Delivers blocks to a stream as requested by a seek, first any existing blocks
+     * in its range, then new blocks as they are cut, until its stop position
+     * @param seek the range of blocks to deliver
+     * @param sink the stream
+     * @return the subscription for new blocks, to cancel when the stream ends, or
+     * null if the range has already been delivered
+     */
+    synchronized Object deliver(Ab.SeekInfo seek, BlockSink sink) {
+        long height = _blocks.size();
+        long start = position(seek.getStart(), 0);
+        long stop = seek.hasStop() ? position(seek.getStop(), Long.MAX_VALUE) : Long.MAX_VALUE;
+        if (start >= height &&
+                seek.getBehavior() == Ab.SeekInfo.SeekBehavior.FAIL_IF_NOT_READY) {
+            sink.done(Common.Status.NOT_FOUND);
+            return null;
+        }
+        if (stop < start) {
+            sink.done(Common.Status.BAD_REQUEST);
+            return null;
+        }
+        for (long number = start; number < height && number <= stop; number++) {
+            if (! sink.block(_blocks.get((int) number))) return null;
+        }
+        if (stop < height) {
+            sink.done(Common.Status.SUCCESS);
+            return null;
+        }
+        Subscription subscription = new Subscription(sink, Math.max(start, height), stop);
+        _subscriptions.add(subscription);
+        return subscription;
+    }
+
+
+    synchronized void cancel(Object subscription) {
+        _subscriptions.remove(subscription);
+    }
+
+
+    private long position(Ab.SeekPosition position, long fallback) {
+        switch (position.getTypeCase()) {
+            case OLDEST: return 0;
+            case NEWEST: return _blocks.size() - 1;
+            case SPECIFIED: return position.getSpecified().getNumber();
+            default: return fallback;
+        }
+    }
+
+
+    private synchronized void timeout() {
+        _batchTimer = null;
+        if (! _pending.isEmpty()) cut();
+    }
+
+
+    private void cut() {
+        if (_batchTimer != null) {
+            _batchTimer.cancel(false);
+            _batchTimer = null;
+        }
+        long number = _blocks.size();
+        byte[] filter = new byte[_pending.size()];
+        Common.BlockData.Builder data = Common.BlockData.newBuilder();
+        for (int i = 0; i < _pending.size(); i++) {
+            Common.Envelope envelope = _pending.get(i);
+            TxValidationCode code = commit(envelope, number, i);
+            if (code == TxValidationCode.VALID) _valid++; else _invalid++;
+            filter[i] = (byte) code.getNumber();
+            data.addData(envelope.toByteString());
+        }
+        _pending.clear();
+        append(data.build(), filter);
+    }
+
+
+    // validates a transaction and, if valid, applies its writes
+    private TxValidationCode commit(Common.Envelope envelope, long blockNum, long txNum) {
+        Common.ChannelHeader header;
+        List<Rwset.NsReadWriteSet> rwsets = new ArrayList<>();
+        try {
+            Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
+            header = Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+            if (header.getType() != Common.HeaderType.ENDORSER_TRANSACTION_VALUE) {
+                return TxValidationCode.UNKNOWN_TX_TYPE;
+            }
+            FabricTransaction.Transaction transaction =
+                    FabricTransaction.Transaction.parseFrom(payload.getData());
+            for (FabricTransaction.TransactionAction action : transaction.getActionsList()) {
+                FabricTransaction.ChaincodeActionPayload actionPayload =
+                        FabricTransaction.ChaincodeActionPayload.parseFrom(action.getPayload());
+                FabricProposalResponse.ProposalResponsePayload responsePayload =
+                        FabricProposalResponse.ProposalResponsePayload.parseFrom(
+                                actionPayload.getAction().getProposalResponsePayload());
+                FabricProposal.ChaincodeAction chaincodeAction =
+                        FabricProposal.ChaincodeAction.parseFrom(
+                                responsePayload.getExtension());
+                rwsets.addAll(Rwset.TxReadWriteSet.parseFrom(chaincodeAction.getResults())
+                        .getNsRwsetList());
+            }
+        }
+        catch (InvalidProtocolBufferException e) {
+            return TxValidationCode.BAD_PAYLOAD;
+        }
+        if (! _txIds.add(header.getTxId())) {
+            return TxValidationCode.DUPLICATE_TXID;
+        }
+        if (ThreadLocalRandom.current().nextDouble() < _config.invalidateRate) {
+            return TxValidationCode.ENDORSEMENT_POLICY_FAILURE;
+        }
+
+        List<KvRwset.KVRWSet> kvsets = new ArrayList<>();
+        try {
+            for (Rwset.NsReadWriteSet rwset : rwsets) {
+                kvsets.add(KvRwset.KVRWSet.parseFrom(rwset.getRwset()));
+            }
+        }
+        catch (InvalidProtocolBufferException e) {
+            return TxValidationCode.BAD_RWSET;
+        }
+        if (_config.mvcc) {
+            for (int i = 0; i < rwsets.size(); i++) {
+                String namespace = rwsets.get(i).getNamespace();
+                for (KvRwset.KVRead read : kvsets.get(i).getReadsList()) {
+                    if (! isCurrent(namespace, read)) {
+                        return TxValidationCode.MVCC_READ_CONFLICT;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < rwsets.size(); i++) {
+            String namespace = rwsets.get(i).getNamespace();
+            for (KvRwset.KVWrite write : kvsets.get(i).getWritesList()) {
+                String id = namespace + '\u0000' + write.getKey();
+                if (write.getIsDelete()) {
+                    _state.remove(id);
+                }
+                else {
+                    _state.put(id, new VersionedValue(write.getValue(), blockNum, txNum));
+                }
+                _history.computeIfAbsent(id, k -> new ArrayList<>()).add(new HistoryRecord(
+                        header.getTxId(), write.getValue(), header.getTimestamp(),
+                        write.getIsDelete()));
+            }
+        }
+        return TxValidationCode.VALID;
+    }
+
+
+    private boolean isCurrent(String namespace, KvRwset.KVRead read) {
+        VersionedValue current = _state.get(namespace + '\u0000' + read.getKey());
+        if (! read.hasVersion()) return current == null;
+        return current != null && current.blockNum == read.getVersion().getBlockNum() &&
+                current.txNum == read.getVersion().getTxNum();
+    }
+
+
+    private void append(Common.BlockData data, byte[] filter) {
+        long number = _blocks.size();
+        Common.BlockHeader previous = _blocks.get(_blocks.size() - 1).getHeader();
+        Common.Block block = newBlock(number, hash(previous.toByteArray()), data, filter);
+        _blocks.add(block);
+
+        Iterator<Subscription> iterator = _subscriptions.iterator();
+        while (iterator.hasNext()) {
+            Subscription subscription = iterator.next();
+            if (number < subscription.next) continue;
+            if (! subscription.sink.block(block)) {
+                iterator.remove();
+            }
+            else if (number >= subscription.stop) {
+                subscription.sink.done(Common.Status.SUCCESS);
+                iterator.remove();
+            }
+            else subscription.next = number + 1;
+        }
+    }
+
+
+    // the hashes chain the blocks, but aren't Fabric's ASN.1 header hashes
+    private Common.Block newBlock(long number, byte[] previousHash, Common.BlockData data,
+                                  byte[] filter) {
+        MessageDigest digest = newDigest();
+        data.getDataList().forEach(bytes -> digest.update(bytes.toByteArray()));
+        Common.BlockMetadata.Builder metadata = Common.BlockMetadata.newBuilder();
+        for (int i = 0; i < Common.BlockMetadataIndex.values().length - 1; i++) {
+            metadata.addMetadata(i == Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE ?
+                    ByteString.copyFrom(filter) : ByteString.EMPTY);
+        }
+        return Common.Block.newBuilder()
+                .setHeader(Common.BlockHeader.newBuilder()
+                        .setNumber(number)
+                        .setPreviousHash(ByteString.copyFrom(previousHash))
+                        .setDataHash(ByteString.copyFrom(digest.digest())))
+                .setData(data)
+                .setMetadata(metadata)
+                .build();
+    }
+
+
+    // a genesis block with the channel's single application organisation
+    private Common.Block newConfigBlock(SimIdentities identities) {
+        MspConfig.FabricMSPConfig fabricMsp = MspConfig.FabricMSPConfig.newBuilder()
+                .setName(_config.mspId)
+                .addRootCerts(ByteString.copyFrom(identities.getCaCertPem()))
+                .build();
+        MspConfig.MSPConfig msp = MspConfig.MSPConfig.newBuilder()
+                .setType(0)                                          // FABRIC
+                .setConfig(fabricMsp.toByteString())
+                .build();
+        Configtx.ConfigGroup org = Configtx.ConfigGroup.newBuilder()
+                .putValues("MSP", Configtx.ConfigValue.newBuilder()
+                        .setValue(msp.toByteString()).build())
+                .build();
+        Configtx.ConfigGroup channel = Configtx.ConfigGroup.newBuilder()
+                .putGroups("Application", Configtx.ConfigGroup.newBuilder()
+                        .putGroups(_config.mspId, org).build())
+                .build();
+        Configtx.ConfigEnvelope configEnvelope = Configtx.ConfigEnvelope.newBuilder()
+                .setConfig(Configtx.Config.newBuilder().setChannelGroup(channel))
+                .build();
+        Common.ChannelHeader header = Common.ChannelHeader.newBuilder()
+                .setType(Common.HeaderType.CONFIG_VALUE)
+                .setChannelId(_config.channel)
+                .build();
+        Common.Payload payload = Common.Payload.newBuilder()
+                .setHeader(Common.Header.newBuilder().setChannelHeader(header.toByteString()))
+                .setData(configEnvelope.toByteString())
+                .build();
+        Common.Envelope envelope = Common.Envelope.newBuilder()
+                .setPayload(payload.toByteString())
+                .build();
+        return newBlock(0, new byte[0], Common.BlockData.newBuilder()
+                .addData(envelope.toByteString()).build(), new byte[] { 0 });
+    }
+
+
+    static byte[] hash(byte[] bytes) { return newDigest().digest(bytes); }
+
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);             // always available
+        }
+    }
+
+
+    private static class Subscription {
+        final BlockSink sink;
+        final long stop;
+        long next;
+
+        Subscription(BlockSink sink, long next, long stop) {
+            this.sink = sink;
+            this.next = next;
+            this.stop = stop;
+        }
+    }
+
+}
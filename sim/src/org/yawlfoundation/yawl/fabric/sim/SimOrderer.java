@@ -0,0 +1,84 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import io.grpc.stub.StreamObserver;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.orderer.Ab;
+import org.hyperledger.fabric.protos.orderer.AtomicBroadcastGrpc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The broadcast and deliver services of the simulated orderer. Broadcast envelopes
+ * are passed to the ledger to be cut into blocks, unless a simulated failure
+ * refuses them with SERVICE_UNAVAILABLE, as an orderer does when it has lost its
+ * consensus backend.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+class SimOrderer extends AtomicBroadcastGrpc.AtomicBroadcastImplBase {
+
+    private final SimConfig _config;
+    private final SimLedger _ledger;
+
+    private final LongAdder _accepted = new LongAdder();
+    private final LongAdder _refused = new LongAdder();
+
+
+    SimOrderer(SimConfig config, SimLedger ledger) {
+        _config = config;
+        _ledger = ledger;
+    }
+
+
+    long getAcceptedCount() { return _accepted.sum(); }
+
+    long getRefusedCount() { return _refused.sum(); }
+
+
+    @Override
+    public StreamObserver<Common.Envelope> broadcast(
+            StreamObserver<Ab.BroadcastResponse> observer) {
+        return new StreamObserver<Common.Envelope>() {
+            @Override
+            public void onNext(Common.Envelope envelope) {
+                Common.Status status;
+                if (ThreadLocalRandom.current().nextDouble() < _config.broadcastFailRate) {
+                    _refused.increment();
+                    status = Common.Status.SERVICE_UNAVAILABLE;
+                }
+                else {
+                    _accepted.increment();
+                    _ledger.order(envelope);
+                    status = Common.Status.SUCCESS;
+                }
+                observer.onNext(Ab.BroadcastResponse.newBuilder().setStatus(status).build());
+            }
+
+            @Override
+            public void onError(Throwable t) { }
+
+            @Override
+            public void onCompleted() { observer.onCompleted(); }
+        };
+    }
+
+
+    @Override
+    public StreamObserver<Common.Envelope> deliver(
+            StreamObserver<Ab.DeliverResponse> observer) {
+        return new DeliverStream<Ab.DeliverResponse>(_ledger, observer) {
+            @Override
+            Ab.DeliverResponse toResponse(Common.Block block) {
+                return Ab.DeliverResponse.newBuilder().setBlock(block).build();
+            }
+
+            @Override
+            Ab.DeliverResponse toResponse(Common.Status status) {
+                return Ab.DeliverResponse.newBuilder().setStatus(status).build();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,274 @@
+package org.yawlfoundation.yawl.fabric.sim;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.msp.Identities;
+import org.hyperledger.fabric.protos.peer.Chaincode;
+import org.hyperledger.fabric.protos.peer.DeliverGrpc;
+import org.hyperledger.fabric.protos.peer.EndorserGrpc;
+import org.hyperledger.fabric.protos.peer.FabricProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.protos.peer.FabricTransaction;
+import org.hyperledger.fabric.protos.peer.PeerEvents;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The endorser and deliver services of the simulated peers. Every simulated peer is
+ * served by this one instance, since they share the ledger; the client addresses
+ * them by name, and sends each its own proposal, so each endorsement is simulated
+ * separately, with its own latency and chance of failure.
+ * <p>
+ * Proposals to the "cscc" and "qscc" system chaincodes are answered with the
+ * channel's configuration block, blocks by number and the chain's height, which
+ * is what a client needs to initialise a channel and fetch missed blocks. All
+ * other proposals are executed by the simulated chaincode.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+class SimPeer {
+
+    private final SimConfig _config;
+    private final SimLedger _ledger;
+    private final SimIdentities _identities;
+    private final ScheduledExecutorService _scheduler;
+    private final ByteString _endorser;
+
+    // identical endorsements by different peers share a signature, since they share
+    // an identity; this keeps the simulator's CPU use out of the client's way
+    private final Map<ByteString, ByteString> _signatures = new LinkedHashMap<ByteString,
+            ByteString>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteString, ByteString> eldest) {
+            return size() > MAX_SIGNATURES;
+        }
+    };
+    private static final int MAX_SIGNATURES = 1024;
+
+    private final LongAdder _proposals = new LongAdder();
+    private final LongAdder _failed = new LongAdder();
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    SimPeer(SimConfig config, SimLedger ledger, SimIdentities identities,
+            ScheduledExecutorService scheduler) {
+        _config = config;
+        _ledger = ledger;
+        _identities = identities;
+        _scheduler = scheduler;
+        _endorser = Identities.SerializedIdentity.newBuilder()
+                .setMspid(config.mspId)
+                .setIdBytes(ByteString.copyFrom(identities.getPeerCertPem()))
+                .build().toByteString();
+    }
+
+
+    EndorserGrpc.EndorserImplBase getEndorserService() {
+        return new EndorserGrpc.EndorserImplBase() {
+            @Override
+            public void processProposal(FabricProposal.SignedProposal proposal,
+                        StreamObserver<FabricProposalResponse.ProposalResponse> observer) {
+                _proposals.increment();
+                _scheduler.schedule(() -> respond(proposal, observer), endorseDelay(),
+                        TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+
+    DeliverGrpc.DeliverImplBase getDeliverService() {
+        return new DeliverGrpc.DeliverImplBase() {
+            @Override
+            public StreamObserver<Common.Envelope> deliver(
+                    StreamObserver<PeerEvents.DeliverResponse> observer) {
+                return newDeliverStream(observer, false);
+            }
+
+            @Override
+            public StreamObserver<Common.Envelope> deliverFiltered(
+                    StreamObserver<PeerEvents.DeliverResponse> observer) {
+                return newDeliverStream(observer, true);
+            }
+        };
+    }
+
+
+    long getProposalCount() { return _proposals.sum(); }
+
+    long getFailedCount() { return _failed.sum(); }
+
+
+    private long endorseDelay() {
+        long jitter = _config.endorseJitterMsecs;
+        long delay = _config.endorseMsecs + (jitter > 0 ?
+                ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0);
+        return Math.max(0, delay);
+    }
+
+
+    private void respond(FabricProposal.SignedProposal proposal,
+                         StreamObserver<FabricProposalResponse.ProposalResponse> observer) {
+        try {
+            observer.onNext(endorse(proposal));
+            observer.onCompleted();
+        }
+        catch (Exception e) {
+            _logger.warn("Failed to process proposal: {}", e.getMessage());
+            observer.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage())
+                    .asRuntimeException());
+        }
+    }
+
+
+    private FabricProposalResponse.ProposalResponse endorse(
+            FabricProposal.SignedProposal signedProposal) throws Exception {
+        FabricProposal.Proposal proposal = FabricProposal.Proposal.parseFrom(
+                signedProposal.getProposalBytes());
+        Common.Header header = Common.Header.parseFrom(proposal.getHeader());
+        Common.ChannelHeader channelHeader = Common.ChannelHeader.parseFrom(
+                header.getChannelHeader());
+        Chaincode.ChaincodeInvocationSpec invocation = Chaincode.ChaincodeInvocationSpec
+                .parseFrom(FabricProposal.ChaincodeProposalPayload.parseFrom(
+                        proposal.getPayload()).getInput());
+        Chaincode.ChaincodeID chaincodeId = invocation.getChaincodeSpec().getChaincodeId();
+        List<String> args = new ArrayList<>();
+        invocation.getChaincodeSpec().getInput().getArgsList().forEach(
+                arg -> args.add(arg.toStringUtf8()));
+
+        FabricProposalResponse.Response response;
+        ByteString results = ByteString.EMPTY;
+        String name = chaincodeId.getName();
+        if (name.equals("cscc") || name.equals("qscc")) {
+            response = system(args);
+        }
+        else if (! channelHeader.getChannelId().equals(_config.channel)) {
+            response = SimChaincode.error("Channel not found: " +
+                    channelHeader.getChannelId());
+        }
+        else if (ThreadLocalRandom.current().nextDouble() < _config.endorseFailRate) {
+            response = SimChaincode.error("Simulated endorsement failure");
+        }
+        else {
+            SimChaincode chaincode = new SimChaincode(_ledger, name);
+            response = chaincode.execute(args);
+            results = chaincode.getResults();
+        }
+        if (response.getStatus() >= 400) _failed.increment();
+
+        ByteString payload = FabricProposalResponse.ProposalResponsePayload.newBuilder()
+                .setProposalHash(ByteString.copyFrom(SimLedger.hash(
+                        signedProposal.getProposalBytes().toByteArray())))
+                .setExtension(FabricProposal.ChaincodeAction.newBuilder()
+                        .setResults(results)
+                        .setResponse(response)
+                        .setChaincodeId(chaincodeId)
+                        .build().toByteString())
+                .build().toByteString();
+        return FabricProposalResponse.ProposalResponse.newBuilder()
+                .setVersion(1)
+                .setResponse(response)
+                .setPayload(payload)
+                .setEndorsement(FabricProposalResponse.Endorsement.newBuilder()
+                        .setEndorser(_endorser)
+                        .setSignature(sign(payload)))
+                .build();
+    }
+
+
+    private ByteString sign(ByteString payload) throws GeneralSecurityException {
+        synchronized (_signatures) {
+            ByteString signature = _signatures.get(payload);
+            if (signature != null) return signature;
+        }
+        ByteString signature = ByteString.copyFrom(_identities.sign(payload.toByteArray(),
+                _endorser.toByteArray()));
+        synchronized (_signatures) {
+            _signatures.put(payload, signature);
+        }
+        return signature;
+    }
+
+
+    private DeliverStream<PeerEvents.DeliverResponse> newDeliverStream(
+            StreamObserver<PeerEvents.DeliverResponse> observer, boolean filtered) {
+        return new DeliverStream<PeerEvents.DeliverResponse>(_ledger, observer) {
+            @Override
+            PeerEvents.DeliverResponse toResponse(Common.Block block) {
+                PeerEvents.DeliverResponse.Builder response =
+                        PeerEvents.DeliverResponse.newBuilder();
+                if (filtered) {
+                    response.setFilteredBlock(filter(block));
+                }
+                else response.setBlock(block);
+                return response.build();
+            }
+
+            @Override
+            PeerEvents.DeliverResponse toResponse(Common.Status status) {
+                return PeerEvents.DeliverResponse.newBuilder().setStatus(status).build();
+            }
+        };
+    }
+
+
+    private FabricProposalResponse.Response system(List<String> args) {
+        String fcn = args.isEmpty() ? "" : args.get(0);
+        switch (fcn) {
+            case "GetConfigBlock":
+                return SimChaincode.success(_ledger.getBlock(0).toByteString());
+            case "GetChainInfo":
+                return SimChaincode.success(_ledger.getInfo().toByteString());
+            case "GetBlockByNumber":
+                Common.Block block = args.size() > 2 ?
+                        _ledger.getBlock(Long.parseLong(args.get(2))) : null;
+                return block != null ? SimChaincode.success(block.toByteString()) :
+                        SimChaincode.error("Block not found");
+            default:
+                return SimChaincode.error("Unsupported system function: " + fcn);
+        }
+    }
+
+
+    // a filtered block has just the id, type and validation code of each transaction
+    private PeerEvents.FilteredBlock filter(Common.Block block) {
+        PeerEvents.FilteredBlock.Builder filtered = PeerEvents.FilteredBlock.newBuilder()
+                .setChannelId(_config.channel)
+                .setNumber(block.getHeader().getNumber());
+        ByteString codes = block.getMetadata().getMetadata(
+                Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE);
+        for (int i = 0; i < block.getData().getDataCount(); i++) {
+            PeerEvents.FilteredTransaction.Builder transaction =
+                    PeerEvents.FilteredTransaction.newBuilder()
+                    .setTxValidationCodeValue(codes.byteAt(i));
+            try {
+                Common.ChannelHeader header = Common.ChannelHeader.parseFrom(
+                        Common.Payload.parseFrom(Common.Envelope.parseFrom(
+                                block.getData().getData(i)).getPayload())
+                                .getHeader().getChannelHeader());
+                transaction.setTxid(header.getTxId()).setTypeValue(header.getType());
+            }
+            catch (InvalidProtocolBufferException e) {
+                transaction.setTxValidationCode(
+                        FabricTransaction.TxValidationCode.BAD_PAYLOAD);
+            }
+            filtered.addFilteredTransactions(transaction);
+        }
+        return filtered.build();
+    }
+
+}
@@ -0,0 +1,247 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The typed arguments of a chaincode function. A work item's parameters, named by
+ * the arguments, are mapped directly to the function's byte arguments, in order,
+ * so values may hold commas, and binary content is passed to the chaincode as is
+ * rather than as text.
+ * <p>
+ * Text types are validated and passed as UTF-8; base64Binary and hexBinary values
+ * are decoded; an xml argument is its parameter's content, as compact XML. A
+ * payload argument's base64 content is decoded into the payload store as it is
+ * read, and passed as two arguments: its digest and its size. A repeated argument
+ * gives one argument per child element of its parameter. An optional argument
+ * whose parameter is absent is left out.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class ArgSchema {
+
+    public enum Type {
+        STRING("string"), INTEGER("integer"), DECIMAL("decimal"), BOOLEAN("boolean"),
+        BASE64("base64Binary"), HEX("hexBinary"), XML("anyType"),
+        PAYLOAD("base64Binary");
+
+        private final String _xsdType;
+
+        Type(String xsdType) { _xsdType = xsdType; }
+
+        public String getXsdType() { return _xsdType; }
+
+        /**
+         * @param s a type name: an XML Schema type name, case insensitive, or "xml"
+         * @return the matching type, STRING if s is null, or null if unknown
+         */
+        public static Type fromString(String s) {
+            if (s == null) return STRING;
+            switch (s.trim().toLowerCase()) {
+                case "string": return STRING;
+                case "integer":
+                case "long":
+                case "int": return INTEGER;
+                case "decimal":
+                case "double": return DECIMAL;
+                case "boolean": return BOOLEAN;
+                case "base64binary":
+                case "base64": return BASE64;
+                case "hexbinary":
+                case "hex": return HEX;
+                case "xml":
+                case "anytype": return XML;
+                case "payload": return PAYLOAD;
+                default: return null;
+            }
+        }
+    }
+
+
+    private final String _function;
+    private final List<Arg> _args;
+
+
+    public ArgSchema(String function, List<Arg> args) {
+        _function = function;
+        _args = Collections.unmodifiableList(new ArrayList<>(args));
+    }
+
+
+    public String getFunction() { return _function; }
+
+    public List<Arg> getArgs() { return _args; }
+
+
+    /**
+     * Maps a work item's parameters to the function's arguments
+     * @param data the work item's data
+     * @param store the store for payload arguments, or null if there isn't one
+     * @return the arguments, in order
+     * @throws IllegalArgumentException if a required parameter is missing, or a
+     * value isn't valid for its type
+     * @throws IOException if a payload can't be stored
+     */
+    public List<byte[]> toArgs(Element data, PayloadStore store) throws IOException {
+        List<byte[]> args = new ArrayList<>();
+        for (Arg arg : _args) {
+            Element param = data != null ? data.getChild(arg.getName()) : null;
+            if (param == null) {
+                if (arg.isOptional()) continue;
+                throw new IllegalArgumentException("No value provided for argument '" +
+                        arg.getName() + "' of function '" + _function + "'");
+            }
+            if (arg.isRepeated()) {
+                for (Element child : param.getChildren()) {
+                    arg.addTo(args, child, store);
+                }
+            }
+            else arg.addTo(args, param, store);
+        }
+        return args;
+    }
+
+
+    /**
+     * A named, typed argument
+     */
+    public static class Arg {
+        private final String _name;
+        private final Type _type;
+        private final boolean _repeated;
+        private final boolean _optional;
+
+        public Arg(String name, Type type, boolean repeated, boolean optional) {
+            _name = name;
+            _type = type;
+            _repeated = repeated;
+            _optional = optional;
+        }
+
+        public String getName() { return _name; }
+
+        public Type getType() { return _type; }
+
+        public boolean isRepeated() { return _repeated; }
+
+        public boolean isOptional() { return _optional; }
+
+        /**
+         * @return the XML Schema type of the argument's work item parameter; a
+         * repeated argument's parameter is complex, so is declared as anyType
+         */
+        public String getXsdType() {
+            return _repeated ? Type.XML.getXsdType() : _type.getXsdType();
+        }
+
+
+        void addTo(List<byte[]> args, Element element, PayloadStore store)
+                throws IOException {
+            if (_type != Type.PAYLOAD) {
+                args.add(toBytes(element));
+                return;
+            }
+            if (store == null) {
+                throw new IllegalStateException("Argument '" + _name +
+                        "' is a payload, but the payload store is not enabled");
+            }
+            PayloadStore.Ref ref;
+            try {
+                ref = store.put(Base64.getMimeDecoder().wrap(
+                        new TextInputStream(element.getText())));
+            }
+            catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Invalid payload value for argument '" +
+                        _name + "': " + iae.getMessage());
+            }
+            args.add(ref.getDigest().getBytes(StandardCharsets.UTF_8));
+            args.add(String.valueOf(ref.getSize()).getBytes(StandardCharsets.UTF_8));
+        }
+
+
+        // converts an element's value to an argument
+        byte[] toBytes(Element element) {
+            if (_type == Type.XML) {
+                return new XMLOutputter(Format.getCompactFormat())
+                        .outputString(element.getContent())
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            String text = element.getText();
+            try {
+                switch (_type) {
+                    case INTEGER: text = new BigInteger(text.trim()).toString(); break;
+                    case DECIMAL: text = new BigDecimal(text.trim()).toPlainString(); break;
+                    case BOOLEAN: text = String.valueOf(toBoolean(text.trim())); break;
+                    case BASE64: return Base64.getMimeDecoder().decode(text);
+                    case HEX: return fromHex(text.trim());
+                }
+            }
+            catch (IllegalArgumentException iae) {        // incl. NumberFormatException
+                throw new IllegalArgumentException("Invalid " + _type.getXsdType() +
+                        " value for argument '" + _name + "': " + iae.getMessage());
+            }
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+
+
+        private boolean toBoolean(String s) {
+            if (s.equals("true") || s.equals("1")) return true;
+            if (s.equals("false") || s.equals("0")) return false;
+            throw new IllegalArgumentException(s);
+        }
+
+
+        private byte[] fromHex(String s) {
+            if (s.length() % 2 != 0) throw new IllegalArgumentException("odd length");
+            byte[] bytes = new byte[s.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                int hi = Character.digit(s.charAt(i * 2), 16);
+                int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+                if (hi < 0 || lo < 0) {
+                    throw new IllegalArgumentException("not a hex digit at " + i * 2);
+                }
+                bytes[i] = (byte) ((hi << 4) + lo);
+            }
+            return bytes;
+        }
+    }
+
+
+
+    // reads base64 text as bytes, without copying it
+    private static class TextInputStream extends InputStream {
+        private final String _text;
+        private int _pos;
+
+        TextInputStream(String text) { _text = text; }
+
+        @Override
+        public int read() {
+            return _pos < _text.length() ? _text.charAt(_pos++) & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (len == 0) return 0;
+            if (_pos >= _text.length()) return -1;
+            int count = Math.min(len, _text.length() - _pos);
+            for (int i = 0; i < count; i++) {
+                bytes[off + i] = (byte) _text.charAt(_pos++);
+            }
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.ChaincodeID;
+import org.yawlfoundation.yawl.fabric.event.YBlockListener;
+import org.yawlfoundation.yawl.fabric.event.YChaincodeEventListener;
+
+/**
+ * An initialised channel and chaincode pair that chaincode functions can be
+ * addressed to. A function is addressed to a named target by prefixing it with the
+ * target name and a colon (eg. "sales:invoke"); functions without a prefix are
+ * addressed to the default target.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class ChaincodeTarget {
+
+    public static final String DEFAULT_NAME = "default";
+    public static final char SEPARATOR = ':';
+
+    private final String _name;
+    private final Channel _channel;
+    private final ChaincodeID _chaincodeID;
+    private final YBlockListener _blockListener;     // shared by targets on a channel
+    private QueryCache _queryCache;                  // null if caching is disabled
+    private YChaincodeEventListener _eventListener;  // null until first requested
+    private WorldStateMirror _mirror;                // null if mirroring is disabled
+
+
+    public ChaincodeTarget(String name, Channel channel, String chaincodeName,
+                           YBlockListener blockListener) {
+        _name = name;
+        _channel = channel;
+        _chaincodeID = ChaincodeID.newBuilder().setName(chaincodeName).build();
+        _blockListener = blockListener;
+    }
+
+
+    public String getName() { return _name; }
+
+    public Channel getChannel() { return _channel; }
+
+    public ChaincodeID getChaincodeID() { return _chaincodeID; }
+
+    public String getChaincodeName() { return _chaincodeID.getName(); }
+
+    public YBlockListener getBlockListener() { return _blockListener; }
+
+    public QueryCache getQueryCache() { return _queryCache; }
+
+    public WorldStateMirror getMirror() { return _mirror; }
+
+    public YChaincodeEventListener getEventListener() { return _eventListener; }
+
+    public void setEventListener(YChaincodeEventListener listener) {
+        _eventListener = listener;
+    }
+
+
+    public void setQueryCache(QueryCache cache) {
+        if (_queryCache != null) _blockListener.unregisterWriteSetListener(_queryCache);
+        _queryCache = cache;
+        if (cache != null) _blockListener.registerWriteSetListener(cache);
+    }
+
+
+    public void setMirror(WorldStateMirror mirror) {
+        if (_mirror != null) _blockListener.unregisterWriteSetListener(_mirror);
+        _mirror = mirror;
+        if (mirror != null) _blockListener.registerWriteSetListener(mirror);
+    }
+
+
+    /**
+     * @param fcn a function name, optionally prefixed by a target name
+     * @return the target name prefix, or null if there isn't one
+     */
+    public static String targetName(String fcn) {
+        int pos = fcn != null ? fcn.indexOf(SEPARATOR) : -1;
+        return pos > 0 ? fcn.substring(0, pos) : null;
+    }
+
+
+    /**
+     * @param fcn a function name, optionally prefixed by a target name
+     * @return the function name without any target name prefix
+     */
+    public static String functionName(String fcn) {
+        int pos = fcn != null ? fcn.indexOf(SEPARATOR) : -1;
+        return pos > -1 ? fcn.substring(pos + 1) : fcn;
+    }
+
+
+    /**
+     * @param target a target name, or null for the default target
+     * @param fcn a function name
+     * @return the function name addressed to the target
+     */
+    public static String address(String target, String fcn) {
+        return target == null || target.isEmpty() ? fcn : target + SEPARATOR + fcn;
+    }
+
+}
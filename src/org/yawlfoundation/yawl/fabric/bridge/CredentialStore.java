@@ -0,0 +1,135 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.hyperledger.fabric.sdk.Enrollment;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Base64;
+
+/**
+ * Keeps the enrollments (private key and certificate) of users in a single
+ * password protected PKCS#12 file, each under the user's id. The file is loaded
+ * once and rewritten atomically on each change.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class CredentialStore {
+
+    private static final String TYPE = "PKCS12";
+
+    private final Path _path;
+    private final char[] _password;
+    private final KeyStore _keyStore;
+
+
+    /**
+     * @param path the store's file, created on the first change if it doesn't exist
+     * @param password the password protecting the file and its keys
+     */
+    public CredentialStore(Path path, char[] password)
+            throws IOException, GeneralSecurityException {
+        _path = path;
+        _password = password;
+        _keyStore = KeyStore.getInstance(TYPE);
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                _keyStore.load(in, password);
+            }
+        }
+        else {
+            _keyStore.load(null, password);
+        }
+    }
+
+
+    /**
+     * @param id a user id
+     * @return the user's stored enrollment, or null if there isn't one
+     */
+    public synchronized Enrollment get(String id) throws GeneralSecurityException {
+        if (! _keyStore.isKeyEntry(id)) return null;
+        Key key = _keyStore.getKey(id, _password);
+        Certificate cert = _keyStore.getCertificate(id);
+        return new StoredEnrollment((PrivateKey) key, toPem(cert));
+    }
+
+
+    /**
+     * Stores a user's enrollment, replacing any previous one
+     * @param id the user id
+     * @param enrollment the enrollment
+     */
+    public synchronized void put(String id, Enrollment enrollment)
+            throws IOException, GeneralSecurityException {
+        Certificate cert = CertificateFactory.getInstance("X.509").generateCertificate(
+                new ByteArrayInputStream(enrollment.getCert().getBytes(
+                        StandardCharsets.UTF_8)));
+        _keyStore.setKeyEntry(id, enrollment.getKey(), _password,
+                new Certificate[] { cert });
+        save();
+    }
+
+
+    public synchronized boolean contains(String id) throws GeneralSecurityException {
+        return _keyStore.isKeyEntry(id);
+    }
+
+
+    public synchronized int size() throws GeneralSecurityException {
+        return _keyStore.size();
+    }
+
+
+    public Path getPath() { return _path; }
+
+
+    // writes to a temporary file first, so the store is never left half written
+    private void save() throws IOException, GeneralSecurityException {
+        if (_path.getParent() != null) Files.createDirectories(_path.getParent());
+        Path temp = _path.resolveSibling(_path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            _keyStore.store(out, _password);
+        }
+        Files.move(temp, _path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    private String toPem(Certificate cert) throws GeneralSecurityException {
+        return "-----BEGIN CERTIFICATE-----\n" +
+                Base64.getMimeEncoder(64, new byte[] { '\n' }).encodeToString(
+                        cert.getEncoded()) +
+                "\n-----END CERTIFICATE-----\n";
+    }
+
+
+    private static class StoredEnrollment implements Enrollment {
+        private final PrivateKey _key;
+        private final String _cert;
+
+        StoredEnrollment(PrivateKey key, String cert) {
+            _key = key;
+            _cert = cert;
+        }
+
+        @Override
+        public PrivateKey getKey() { return _key; }
+
+        @Override
+        public String getCert() { return _cert; }
+    }
+
+}
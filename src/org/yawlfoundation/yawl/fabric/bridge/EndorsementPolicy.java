@@ -0,0 +1,163 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hyperledger.fabric.protos.msp.Identities;
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+
+import java.util.*;
+
+/**
+ * Decides which of the responses to a transaction proposal are sufficient to
+ * submit the transaction. A policy requires a quorum of N successful responses
+ * that agree on the same result (0 meaning every peer must respond successfully),
+ * and optionally a minimum number of those responses from each of a set of orgs.
+ * Responses that fail, time out or disagree with the quorum are dropped.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class EndorsementPolicy {
+
+    private final int _quorum;                         // 0 = all peers
+    private final Map<String, Integer> _orgCounts;     // mspid -> min responses
+    private final long _peerTimeout;                   // msecs, 0 = sdk default
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    public EndorsementPolicy(int quorum, Map<String, Integer> orgCounts,
+                             long peerTimeout) {
+        _quorum = Math.max(0, quorum);
+        _orgCounts = orgCounts != null ? orgCounts : Collections.emptyMap();
+        _peerTimeout = peerTimeout;
+    }
+
+
+    /**
+     * @return the default policy, requiring a successful response from every peer
+     */
+    public static EndorsementPolicy all() {
+        return new EndorsementPolicy(0, null, 0);
+    }
+
+
+    public int getQuorum() { return _quorum; }
+
+    public Map<String, Integer> getOrgCounts() { return _orgCounts; }
+
+    public long getPeerTimeout() { return _peerTimeout; }
+
+
+    /**
+     * Selects the responses to submit with the transaction
+     *
+     * @param responses all responses received for the proposal
+     * @return the agreeing successful responses that satisfy the policy
+     * @throws ProposalException if the policy can't be satisfied
+     */
+    public Collection<ProposalResponse> select(Collection<ProposalResponse> responses)
+            throws ProposalException {
+
+        // default policy: every response must be valid, and all are submitted
+        if (_quorum == 0 && _orgCounts.isEmpty()) {
+            List<ProposalResponse> invalid = new ArrayList<>();
+            responses.stream().filter(ProposalResponse::isInvalid).forEach(invalid::add);
+            if (! invalid.isEmpty()) {
+                invalid.forEach(response -> _logger.error(response.getMessage()));
+                throw new ProposalException("invalid response(s) found");
+            }
+            return responses;
+        }
+
+        // group the successful responses by the result they endorse
+        Map<ByteString, List<ProposalResponse>> groups = new HashMap<>();
+        List<ProposalResponse> failed = new ArrayList<>();
+        for (ProposalResponse response : responses) {
+            if (isSuccessful(response)) {
+                groups.computeIfAbsent(response.getProposalResponse().getPayload(),
+                        k -> new ArrayList<>()).add(response);
+            }
+            else {
+                failed.add(response);
+            }
+        }
+
+        // choose the largest group that meets the policy
+        List<ProposalResponse> best = null;
+        for (List<ProposalResponse> group : groups.values()) {
+            if (satisfies(group, responses.size()) &&
+                    (best == null || group.size() > best.size())) {
+                best = group;
+            }
+        }
+        if (best == null) {
+            failed.forEach(response -> _logger.warn("Proposal response from {} " +
+                    "failed: {}", getPeerName(response), response.getMessage()));
+            throw new ProposalException(String.format("endorsement policy not " +
+                    "satisfied: %d of %d responses agree, %d failed", largest(groups),
+                    responses.size(), failed.size()));
+        }
+        if (best.size() < responses.size()) {
+            _logger.debug("Dropping {} non-conforming proposal response(s)",
+                    responses.size() - best.size());
+        }
+        return best;
+    }
+
+
+    private boolean satisfies(List<ProposalResponse> group, int peerCount) {
+        int required = _quorum == 0 ? peerCount : _quorum;
+        if (group.size() < required) return false;
+        if (_orgCounts.isEmpty()) return true;
+
+        Map<String, Integer> orgTally = new HashMap<>();
+        for (ProposalResponse response : group) {
+            String mspid = getMspId(response);
+            if (mspid != null) orgTally.merge(mspid, 1, Integer::sum);
+        }
+        for (String mspid : _orgCounts.keySet()) {
+            if (orgTally.getOrDefault(mspid, 0) < _orgCounts.get(mspid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private boolean isSuccessful(ProposalResponse response) {
+        return ! response.isInvalid() && response.isVerified() &&
+                response.getStatus() == ChaincodeResponse.Status.SUCCESS &&
+                response.getProposalResponse() != null;
+    }
+
+
+    private String getMspId(ProposalResponse response) {
+        try {
+            return Identities.SerializedIdentity.parseFrom(response.getProposalResponse()
+                    .getEndorsement().getEndorser()).getMspid();
+        }
+        catch (InvalidProtocolBufferException ipbe) {
+            return null;
+        }
+    }
+
+
+    private String getPeerName(ProposalResponse response) {
+        return response.getPeer() != null ? response.getPeer().getName() : "unknown peer";
+    }
+
+
+    private int largest(Map<ByteString, List<ProposalResponse>> groups) {
+        int max = 0;
+        for (List<ProposalResponse> group : groups.values()) {
+            max = Math.max(max, group.size());
+        }
+        return max;
+    }
+
+}
@@ -0,0 +1,188 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms of the queries and invocations made through an HFInterface,
+ * per chaincode function and per phase, and counts of their outcomes.
+ * <p>
+ * A query is built, then sent to peers for execution (its endorse phase). An
+ * invocation waits for a proposal thread if invoked asynchronously (queue), is
+ * built, endorsed, broadcast to the orderer, and then waits for the commit event
+ * of its block (commit). Every query and invocation also has its total latency
+ * recorded; a resubmitted invocation records each attempt's phases, and one
+ * total. Function names are taken from callers, so beyond a fixed number of
+ * them, further functions are recorded together as "other".
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class FabricMetrics {
+
+    public enum Operation {
+        QUERY, INVOKE;
+
+        public String label() { return name().toLowerCase(); }
+    }
+
+    public enum Phase {
+        QUEUE, BUILD, ENDORSE, BROADCAST, COMMIT, TOTAL;
+
+        public String label() { return name().toLowerCase(); }
+    }
+
+    private static final int MAX_FUNCTIONS = 256;
+    private static final String OTHER = "other";
+
+    private final Map<String, FunctionStats> _functions = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> _transactions = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> _peerErrors = new ConcurrentHashMap<>();
+    private final LongAdder _failed = new LongAdder();
+
+
+    /**
+     * Gets the statistics of a function, creating them on first use
+     * @param operation whether the function is queried or invoked
+     * @param fcn the function name, optionally prefixed by a target name
+     * @return the function's statistics
+     */
+    public FunctionStats get(Operation operation, String fcn) {
+        String target = ChaincodeTarget.targetName(fcn);
+        if (target == null) target = ChaincodeTarget.DEFAULT_NAME;
+        String function = ChaincodeTarget.functionName(fcn);
+        String key = operation.label() + ChaincodeTarget.SEPARATOR + target +
+                ChaincodeTarget.SEPARATOR + function;
+        FunctionStats stats = _functions.get(key);
+        if (stats != null) return stats;
+        if (_functions.size() >= MAX_FUNCTIONS) {
+            function = OTHER;
+            key = operation.label() + ChaincodeTarget.SEPARATOR + target +
+                    ChaincodeTarget.SEPARATOR + OTHER;
+        }
+        String name = function;
+        String targetName = target;
+        return _functions.computeIfAbsent(key,
+                k -> new FunctionStats(operation, targetName, name));
+    }
+
+
+    public Collection<FunctionStats> getFunctionStats() {
+        return Collections.unmodifiableCollection(_functions.values());
+    }
+
+
+    /**
+     * Counts the failed responses among a proposal's responses, by peer. A response
+     * fails if it isn't a success or its signature doesn't verify.
+     */
+    public void countPeerErrors(Collection<ProposalResponse> responses) {
+        for (ProposalResponse response : responses) {
+            if (! response.isVerified() ||
+                    response.getStatus() != ChaincodeResponse.Status.SUCCESS) {
+                peerError(response.getPeer() != null ? response.getPeer().getName() :
+                        "unknown");
+            }
+        }
+    }
+
+
+    public void peerError(String peerName) {
+        _peerErrors.computeIfAbsent(peerName, k -> new LongAdder()).increment();
+    }
+
+
+    /**
+     * Counts the outcome of a submitted transaction
+     * @param ex the exception the transaction's future completed with, or null if
+     *           it committed as valid
+     * @return true if the transaction reached a block, valid or not
+     */
+    public boolean countTransaction(Throwable ex) {
+        TxValidationCode code = ex != null ? Resubmitter.getValidationCode(ex) :
+                TxValidationCode.VALID;
+        if (code == null) {
+            _failed.increment();                  // refused by orderer, or timed out
+            return false;
+        }
+        _transactions.computeIfAbsent(code.name(), k -> new LongAdder()).increment();
+        return true;
+    }
+
+
+    /**
+     * @return the numbers of transactions that reached a block, by validation code
+     */
+    public Map<String, Long> getTransactionCounts() { return sums(_transactions); }
+
+    public Map<String, Long> getPeerErrorCounts() { return sums(_peerErrors); }
+
+    /**
+     * @return the number of transactions that didn't reach a block: refused by
+     * the orderer, or not seen committed before the SDK's timeout
+     */
+    public long getFailedCount() { return _failed.sum(); }
+
+
+    private Map<String, Long> sums(Map<String, LongAdder> adders) {
+        Map<String, Long> sums = new TreeMap<>();
+        adders.forEach((k, v) -> sums.put(k, v.sum()));
+        return sums;
+    }
+
+
+    /**
+     * The latency histograms of a function's phases
+     */
+    public static class FunctionStats {
+        private final Operation _operation;
+        private final String _target;
+        private final String _function;
+        private final Map<Phase, LatencyHistogram> _phases = new EnumMap<>(Phase.class);
+
+        FunctionStats(Operation operation, String target, String function) {
+            _operation = operation;
+            _target = target;
+            _function = function;
+            for (Phase phase : Phase.values()) {
+                if (operation == Operation.INVOKE || phase == Phase.BUILD ||
+                        phase == Phase.ENDORSE || phase == Phase.TOTAL) {
+                    _phases.put(phase, new LatencyHistogram());
+                }
+            }
+        }
+
+        public Operation getOperation() { return _operation; }
+
+        public String getTarget() { return _target; }
+
+        public String getFunction() { return _function; }
+
+        /**
+         * @return the histograms of the operation's phases, in phase order
+         */
+        public Map<Phase, LatencyHistogram> getPhases() {
+            return Collections.unmodifiableMap(_phases);
+        }
+
+        /**
+         * Records the time a phase took
+         * @param phase the phase
+         * @param startNanos the phase's start time, from System.nanoTime()
+         * @return the current time, from System.nanoTime()
+         */
+        public long record(Phase phase, long startNanos) {
+            return _phases.get(phase).recordSince(startNanos);
+        }
+    }
+
+}
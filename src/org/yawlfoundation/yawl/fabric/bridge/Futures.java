@@ -0,0 +1,85 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Static helpers for CompletableFutures
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class Futures {
+
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "futures-timer");
+                t.setDaemon(true);
+                return t;
+            });
+
+
+    private Futures() { }
+
+
+    /**
+     * Gets a future that completes with the result of the one supplied, or
+     * exceptionally with a TimeoutException if that doesn't complete in time.
+     * The supplied future is left untouched on timeout.
+     *
+     * @param future the future to wait on
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout value
+     * @return the new future
+     */
+    public static <T> CompletableFuture<T> within(CompletableFuture<T> future,
+                                                  long timeout, TimeUnit unit) {
+        if (future.isDone()) return future;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timer = TIMER.schedule(() -> result.completeExceptionally(
+                new TimeoutException("Timed out after " + unit.toMillis(timeout) + "ms")),
+                timeout, unit);
+        future.whenComplete((value, ex) -> {
+            timer.cancel(false);
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            }
+            else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+
+    /**
+     * @param ex an exception thrown by a future's completion chain
+     * @return the underlying cause, unwrapped from any CompletionException
+     */
+    public static Throwable unwrap(Throwable ex) {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) &&
+                ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return ex;
+    }
+
+
+    /**
+     * Runs a task after a delay on the shared timer thread
+     * @param task the task to run
+     * @param delay the delay
+     * @param unit the unit of the delay value
+     * @return the scheduled future of the task
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return TIMER.schedule(task, delay, unit);
+    }
+
+}
@@ -18,24 +18,41 @@ import org.hyperledger.fabric_ca.sdk.exception.EnrollmentException;
 import org.yawlfoundation.yawl.fabric.AppUser;
 import org.yawlfoundation.yawl.fabric.CarRecord;
 import org.yawlfoundation.yawl.fabric.event.BlockUpdateListener;
+import org.yawlfoundation.yawl.fabric.event.BlockCheckpoint;
+import org.yawlfoundation.yawl.fabric.event.ChaincodeEventRegistry;
+import org.yawlfoundation.yawl.fabric.event.ListenerDispatcher;
 import org.yawlfoundation.yawl.fabric.event.YBlockListener;
+import org.yawlfoundation.yawl.fabric.event.YChaincodeEventListener;
+import org.yawlfoundation.yawl.fabric.jfr.FlightContext;
+import org.yawlfoundation.yawl.fabric.jfr.FlightEvents;
+import org.yawlfoundation.yawl.util.StringUtil;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.stream.JsonParser;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.StringReader;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
 /**
  * <h1>HFInterface</h1>
@@ -54,15 +71,74 @@ import java.util.stream.Collectors;
  *
  * @author lkolisko
  */
-public class HFInterface {
+public class HFInterface implements Closeable {
 
     private HFClient _client;
     private AppUser _admin;
-    private List<AppUser> _users;
-    private final YBlockListener _blockListener = new YBlockListener();
-
+    private HFCAClient _caClient;
+    private CredentialStore _credentials;
     private final Props _props = new Props();
 
+    // initialised channel/chaincode targets, by name; the default target is first
+    private final Map<String, ChaincodeTarget> _targets = new LinkedHashMap<>();
+    private final Map<String, YBlockListener> _blockListeners = new HashMap<>();
+
+    // sends proposals for invokeAsync, so that callers aren't held during endorsement
+    private final ExecutorService _proposalExecutor = Executors.newFixedThreadPool(
+            PROPOSAL_THREADS, r -> {
+                Thread t = new Thread(r, "hf-proposal");
+                t.setDaemon(true);
+                return t;
+            });
+    private static final int PROPOSAL_THREADS = 16;
+
+    // max wait on close for coalesced increments flushed then to commit
+    private static final long CLOSE_FLUSH_SECS = 10;
+
+    // longer first arguments, eg. binary content, aren't taken as keys written
+    private static final int MAX_KEY_BYTES = 1024;
+
+    // fetches blocks missed by the block listeners; null if checkpointing is disabled
+    private final ExecutorService _backfillExecutor = _props.isCheckpointingEnabled() ?
+            Executors.newFixedThreadPool(_props.getBackfillThreads(), r -> {
+                Thread t = new Thread(r, "block-backfill");
+                t.setDaemon(true);
+                return t;
+            }) : null;
+
+    // routes each query to a single peer; null if queries go to all peers
+    private final PeerRouter _peerRouter = _props.isQueryRoutingEnabled() ?
+            new PeerRouter(_props.getQueryRoutingAlpha()) : null;
+
+    // resubmits transactions invalidated by read conflicts; null if disabled
+    private final Resubmitter _resubmitter = _props.getResubmitAttempts() > 1 ?
+            new Resubmitter(_props.getResubmitAttempts(), _props.getResubmitBaseDelay(),
+                    _props.getResubmitMaxDelay(), _props.getResubmitBudgetRatio(),
+                    _props.getResubmitBudgetReserve()) : null;
+
+    // merges increments to the same key into one transaction; null if disabled
+    private final WriteCoalescer _coalescer = _props.isCoalescingEnabled() ?
+            new WriteCoalescer(this::invokeAsync, _props.getCoalesceWindowMsecs(),
+                    _props.getCoalesceMaxBatch()) : null;
+
+    // keeps large payloads off-chain, by content digest; null if disabled
+    private final PayloadStore _payloadStore = _props.isPayloadStoreEnabled() ?
+            new PayloadStore(Paths.get(_props.getDataDir()).resolve(_props.getPayloadDir()),
+                    _props.getPayloadMaxSize()) : null;
+
+    // latencies of queries and invocations, by function and phase
+    private final FabricMetrics _metrics = new FabricMetrics();
+
+    // users other than the admin are enrolled on first use, by id
+    private final Map<String, CompletableFuture<AppUser>> _users =
+            new ConcurrentHashMap<>();
+    private final ExecutorService _enrolExecutor = Executors.newFixedThreadPool(
+            _props.getEnrolThreads(), r -> {
+                Thread t = new Thread(r, "hf-enrol");
+                t.setDaemon(true);
+                return t;
+            });
+
     private static final Logger log = Logger.getLogger(HFInterface.class);
 
 
@@ -73,7 +149,7 @@ public class HFInterface {
             _client = initHfClient(admin);
         }
         try {
-            initChannel();
+            initTargets();
             log.info("Initialisation Completed");
         }
         catch(Exception e) {
@@ -82,18 +158,17 @@ public class HFInterface {
     }
 
 
+    // only the admin is needed at startup; other users are enrolled when first used
     private AppUser enrolUsers() {
         try {
-            HFCAClient caClient = getHfCaClient(_props.getCaURL(), null);
+            _caClient = getHfCaClient(_props.getCaURL(), null);
+            _credentials = new CredentialStore(Paths.get(_props.getDataDir(),
+                    _props.getCredentialFile()), _props.getCredentialPassword().toCharArray());
 
             // enrol or load admin
-            _admin = initAdmin(caClient);
+            _admin = initAdmin(_caClient);
 
-            // register and enrol new users
-            _users = new ArrayList<>();
-            for (Props.User user : _props.getUsers()) {
-                _users.add(initUser(caClient, _admin, user));
-            }
+            if (_props.isEagerEnrolment()) enrolAllUsers();
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -109,6 +184,90 @@ public class HFInterface {
     }
 
 
+    /**
+     * Reads a key's value from the local world state mirror, when the function is
+     * the point read function of a target with a mirror
+     * @param query the query function, optionally prefixed by a target name
+     * @param key the key to read
+     * @param minBlock the lowest acceptable height of the mirror, or 0 for any
+     * @return the key's value, or null if it must be read from a peer
+     */
+    public byte[] readState(String query, String key, long minBlock) {
+        ChaincodeTarget target = getTarget(query);
+        WorldStateMirror mirror = target.getMirror();
+        if (mirror == null || key == null || ! ChaincodeTarget.functionName(query)
+                .equals(_props.getMirrorReadFcn())) {
+            return null;
+        }
+        return mirror.get(key, minBlock);
+    }
+
+
+    /**
+     * Gets a page of the history of a key
+     * @param fcn the history function, optionally prefixed by a target name
+     * @param key the key
+     * @param pageSize the maximum number of records on the page, or 0 for the
+     *                 configured default
+     * @param bookmark the bookmark from the previous page, or null for the first
+     * @return the page
+     */
+    public HistoryPage queryHistoryPage(String fcn, String key, int pageSize,
+                                        String bookmark)
+            throws ProposalException, InvalidArgumentException {
+        return queryHistory(fcn, key, pageSize, bookmark).next();
+    }
+
+
+    /**
+     * Gets the pages of the history of a key, from a bookmark on. If a paginated
+     * history function is configured, each page is fetched by it as the cursor
+     * reaches it; otherwise the key's full history is fetched once, here, and the
+     * pages are successive windows of it.
+     * @param fcn the history function, optionally prefixed by a target name
+     * @param key the key
+     * @param pageSize the maximum number of records on a page, or 0 for the
+     *                 configured default
+     * @param bookmark the bookmark of the first page, or null to start at the first
+     * @return a cursor over the pages
+     */
+    public HistoryPage.Cursor queryHistory(String fcn, String key, int pageSize,
+                                           String bookmark)
+            throws ProposalException, InvalidArgumentException {
+        String size = String.valueOf(pageSize > 0 ? pageSize :
+                _props.getHistoryPageSize());
+        String pageFcn = _props.getHistoryPageFcn();
+        if (pageFcn == null) {
+            int offset = bookmark != null ? StringUtil.strToInt(bookmark, -1) : 0;
+            if (offset < 0) {
+                throw new IllegalArgumentException("Invalid bookmark: " + bookmark);
+            }
+            return HistoryPage.windowsOf(getPayload(query(fcn, key)), offset,
+                    Integer.parseInt(size));
+        }
+        String pageQuery = ChaincodeTarget.address(ChaincodeTarget.targetName(fcn),
+                pageFcn);
+        return new HistoryPage.Cursor() {
+            private String _bookmark = bookmark != null ? bookmark : "";
+            private boolean _more = true;
+
+            @Override
+            public boolean hasNext() { return _more; }
+
+            @Override
+            public HistoryPage next()
+                    throws ProposalException, InvalidArgumentException {
+                if (! _more) throw new NoSuchElementException();
+                HistoryPage page = HistoryPage.fromPagePayload(getPayload(
+                        query(pageQuery, key, size, _bookmark)));
+                _more = ! page.isLast();
+                _bookmark = page.getBookmark();
+                return page;
+            }
+        };
+    }
+
+
     /**
      * Invoke blockchain query
      *
@@ -117,14 +276,279 @@ public class HFInterface {
      */
     public Collection<ProposalResponse> query(String query, String... argsArray)
             throws ProposalException, InvalidArgumentException {
+        if (argsArray == null) argsArray = new String[0];
+        return query(query, argsArray, toBytes(argsArray));
+    }
+
+
+    /**
+     * Queries a chaincode function with arguments that are passed to the chaincode
+     * as given, such as binary content. The query cache, which is keyed by string
+     * arguments, is used only if every argument is valid UTF-8.
+     * @param query the query function, optionally prefixed by a target name
+     * @param args the function arguments
+     * @return the peers' responses
+     */
+    public Collection<ProposalResponse> query(String query, List<byte[]> args)
+            throws ProposalException, InvalidArgumentException {
+        byte[][] argBytes = args.toArray(new byte[0][]);
+        return query(query, toStrings(argBytes), argBytes);
+    }
+
+
+    // cacheArgs are the arguments as strings, or null if they can't be cached
+    private Collection<ProposalResponse> query(String query, String[] cacheArgs,
+                                               byte[][] args)
+            throws ProposalException, InvalidArgumentException {
+        long start = System.nanoTime();
+        ChaincodeTarget target = getTarget(query);
+        FabricMetrics.FunctionStats stats = _metrics.get(FabricMetrics.Operation.QUERY,
+                query);
+        try {
+            return query(stats, target, query, cacheArgs, args);
+        }
+        finally {
+            stats.record(FabricMetrics.Phase.TOTAL, start);
+        }
+    }
+
+
+    private Collection<ProposalResponse> query(FabricMetrics.FunctionStats stats,
+                                               ChaincodeTarget target, String query,
+                                               String[] cacheArgs, byte[][] args)
+            throws ProposalException, InvalidArgumentException {
 
         // create new chaincode request
-        if (argsArray == null) argsArray = new String[0];
+        String fcn = ChaincodeTarget.functionName(query);
+        QueryCache cache = cacheArgs != null ? target.getQueryCache() : null;
+        long cacheSequence = 0;
+        if (cache != null) {
+            Collection<ProposalResponse> cached = cache.get(fcn, cacheArgs);
+            if (cached != null) return cached;
+            cacheSequence = cache.getSequence();
+        }
+        Collection<ProposalResponse> responses = null;
+        FlightEvents.ProposalSpan event = FlightEvents.beginProposal(
+                FabricMetrics.Operation.QUERY.label(), query,
+                FlightContext.getWorkItemId());
+        try {
+            if (_peerRouter != null) {
+                responses = routeQuery(stats, target, fcn, args);
+            }
+            else {
+                long start = System.nanoTime();
+                QueryByChaincodeRequest request = newQueryRequest(target, fcn, args);
+                start = stats.record(FabricMetrics.Phase.BUILD, start);
+                responses = target.getChannel().queryByChaincode(request);
+                stats.record(FabricMetrics.Phase.ENDORSE, start);
+                _metrics.countPeerErrors(responses);
+            }
+        }
+        finally {
+            event.finish(responses, responses);
+        }
+        if (cache != null) {
+            cache.put(fcn, cacheArgs, responses, cacheSequence);
+        }
+        return responses;
+    }
+
+
+    /**
+     * Sends a query to the best ranked peer(s) on the target's channel, failing over
+     * to the next ranked peer on an error or timeout. If verification is configured,
+     * successful responses are required from that number of peers, and they must
+     * agree. Each attempt's build and endorse phases are recorded.
+     */
+    private Collection<ProposalResponse> routeQuery(FabricMetrics.FunctionStats stats,
+                                                    ChaincodeTarget target, String fcn,
+                                                    byte[][] args)
+            throws ProposalException, InvalidArgumentException {
+        Channel channel = target.getChannel();
+        int required = Math.max(1, _props.getQueryVerifyCount());
+        Deque<Peer> candidates = new ArrayDeque<>(_peerRouter.rank(
+                channel.getPeers(EnumSet.of(Peer.PeerRole.CHAINCODE_QUERY))));
+        List<ProposalResponse> successes = new ArrayList<>();
+        String lastError = "no peers available";
+
+        while (successes.size() < required && ! candidates.isEmpty()) {
+            List<Peer> batch = new ArrayList<>();
+            while (batch.size() < required - successes.size() && ! candidates.isEmpty()) {
+                batch.add(candidates.poll());
+            }
+            // every peer started is settled, so its in-flight count can't leak
+            Map<String, Long> startTimes = new HashMap<>();
+            Map<String, Peer> unsettled = new HashMap<>();
+            for (Peer peer : batch) {
+                startTimes.put(peer.getName(), _peerRouter.started(peer));
+                unsettled.put(peer.getName(), peer);
+            }
+            try {
+                Collection<ProposalResponse> responses;
+                long phaseStart = System.nanoTime();
+                QueryByChaincodeRequest request = newQueryRequest(target, fcn, args);
+                phaseStart = stats.record(FabricMetrics.Phase.BUILD, phaseStart);
+                try {
+                    responses = channel.queryByChaincode(request, batch);
+                }
+                finally {
+                    stats.record(FabricMetrics.Phase.ENDORSE, phaseStart);
+                }
+                for (ProposalResponse response : responses) {
+                    Peer peer = response.getPeer();
+                    if (peer == null || unsettled.remove(peer.getName()) == null) {
+                        continue;                          // not one of this batch
+                    }
+                    long start = startTimes.get(peer.getName());
+                    if (response.isVerified() &&
+                            response.getStatus() == ChaincodeResponse.Status.SUCCESS) {
+                        _peerRouter.succeeded(peer, start);
+                        successes.add(response);
+                    }
+                    else {
+                        _peerRouter.failed(peer, start);
+                        _metrics.peerError(peer.getName());
+                        lastError = peer.getName() + ": " + response.getMessage();
+                    }
+                }
+                if (! unsettled.isEmpty()) {
+                    lastError = unsettled.keySet().iterator().next() + ": no response";
+                }
+            }
+            catch (ProposalException pe) {
+                lastError = pe.getMessage();
+            }
+            finally {
+                for (Peer peer : unsettled.values()) {         // failed or didn't respond
+                    _peerRouter.failed(peer, startTimes.get(peer.getName()));
+                    _metrics.peerError(peer.getName());
+                }
+            }
+        }
+
+        if (successes.size() < required) {
+            throw new ProposalException("Query failed on all available peers. Last error: " +
+                    lastError);
+        }
+        if (required > 1) {
+            Set<Object> payloads = new HashSet<>();
+            successes.forEach(r -> payloads.add(r.getProposalResponse().getResponse()
+                    .getPayload()));
+            if (payloads.size() > 1) {
+                throw new ProposalException("Query responses from " + required +
+                        " peers do not agree");
+            }
+        }
+        return successes;
+    }
+
+
+    private QueryByChaincodeRequest newQueryRequest(ChaincodeTarget target, String fcn,
+                                                    byte[][] args) {
         QueryByChaincodeRequest qpr = _client.newQueryProposalRequest();
-        buildChainCodeParams(qpr, query, argsArray);            // set up request
-        return _client.getChannel(_props.getChannelName()).queryByChaincode(qpr);
+        buildChainCodeParams(qpr, target, fcn, args);            // set up request
+        if (_props.getQueryTimeout() > 0) {
+            qpr.setProposalWaitTime(_props.getQueryTimeout());
+        }
+        return qpr;
     }
-    
+
+
+    public PeerRouter getPeerRouter() { return _peerRouter; }
+
+
+    /**
+     * @return the latency histograms and outcome counts of queries and invocations
+     */
+    public FabricMetrics getMetrics() { return _metrics; }
+
+
+    /**
+     * Gets a configured user, enrolling it with the CA on first use if its
+     * credentials aren't already stored. A failed enrolment is retried on the
+     * next request for the user.
+     * @param id the user's id
+     * @return a future completed with the user
+     */
+    public CompletableFuture<AppUser> getUser(String id) {
+        CompletableFuture<AppUser> future = _users.computeIfAbsent(id,
+                k -> CompletableFuture.supplyAsync(() -> initUser(k), _enrolExecutor));
+        future.whenComplete((user, ex) -> {
+            if (ex != null) _users.remove(id, future);
+        });
+        return future;
+    }
+
+
+    /**
+     * Enrols all configured users in parallel
+     * @return a future completed when all enrolments have completed
+     */
+    public CompletableFuture<Void> enrolAllUsers() {
+        return CompletableFuture.allOf(_props.getUsers().stream()
+                .map(user -> getUser(user.id))
+                .toArray(CompletableFuture<?>[]::new));
+    }
+
+
+    /**
+     * @return the default target's query cache, or null if query caching is disabled
+     */
+    public QueryCache getQueryCache() { return getTarget(null).getQueryCache(); }
+
+
+    /**
+     * @param fcn a function name, optionally prefixed by a target name
+     * @return the target the function is addressed to
+     * @throws IllegalArgumentException if there is no such target
+     */
+    public ChaincodeTarget getTarget(String fcn) {
+        String name = ChaincodeTarget.targetName(fcn);
+        ChaincodeTarget target = name != null ? _targets.get(name) :
+                _targets.get(ChaincodeTarget.DEFAULT_NAME);
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown or uninitialised target: " +
+                    (name != null ? name : ChaincodeTarget.DEFAULT_NAME));
+        }
+        return target;
+    }
+
+
+    public Collection<ChaincodeTarget> getTargets() { return _targets.values(); }
+
+
+    /**
+     * Gets the listener for the chaincode events of a target, registering it with
+     * the target's channel on first use
+     * @param fcn a function name, optionally prefixed by a target name
+     * @return the listener of the target the function is addressed to
+     */
+    public YChaincodeEventListener getChaincodeEventListener(String fcn) {
+        ChaincodeTarget target = getTarget(fcn);
+        synchronized (target) {
+            if (target.getEventListener() == null) {
+                target.setEventListener(new YChaincodeEventListener(target.getChannel(),
+                        Pattern.quote(target.getChaincodeName()), ".*",
+                        new ChaincodeEventRegistry(_props.getEventRetainCount(),
+                                _props.getEventRetainMsecs())));
+            }
+            return target.getEventListener();
+        }
+    }
+
+
+    private byte[] getPayload(Collection<ProposalResponse> responses)
+            throws ProposalException {
+        for (ProposalResponse response : responses) {
+            if (response.isVerified() &&
+                    response.getStatus() == ChaincodeResponse.Status.SUCCESS) {
+                return response.getProposalResponse().getResponse().getPayload()
+                        .toByteArray();
+            }
+        }
+        throw new ProposalException("No successful response");
+    }
+
 
     private List<CarRecord> parseResponses(Collection<ProposalResponse> responses) {
         // display response
@@ -149,52 +573,390 @@ public class HFInterface {
     }
 
 
-    private void buildChainCodeParams(TransactionRequest request, String fcn, String... args) {
-        ChaincodeID cid = ChaincodeID.newBuilder().setName(_props.getChainCodeName()).build();
-        request.setChaincodeID(cid);
+    private void buildChainCodeParams(TransactionRequest request, ChaincodeTarget target,
+                                      String fcn, byte[][] args) {
+        request.setChaincodeID(target.getChaincodeID());
         request.setFcn(fcn);
-        if (! (args == null || args.length == 0)) {
+        if (args.length > 0) {
             request.setArgs(args);
         }
     }
 
 
+    // the SDK would encode string arguments as UTF-8 in the same way
+    private byte[][] toBytes(String[] args) {
+        if (args == null) return new byte[0][];
+        byte[][] bytes = new byte[args.length][];
+        for (int i = 0; i < args.length; i++) {
+            bytes[i] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+
+    // returns null if any argument isn't valid UTF-8
+    private String[] toStrings(byte[][] args) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();  // reports errors
+        String[] strings = new String[args.length];
+        try {
+            for (int i = 0; i < args.length; i++) {
+                strings[i] = decoder.decode(ByteBuffer.wrap(args[i])).toString();
+            }
+        }
+        catch (CharacterCodingException cce) {
+            return null;
+        }
+        return strings;
+    }
+
+
+    // the first argument, if short UTF-8 text, is taken as the key written
+    private String writeKey(byte[][] args) {
+        if (args.length == 0 || args[0].length > MAX_KEY_BYTES) return null;
+        String[] key = toStrings(new byte[][] { args[0] });
+        return key != null ? key[0] : null;
+    }
+
+
+    public Props getProps() { return _props; }
+
+
     public void registerBlockUpdateListener(BlockUpdateListener listener) {
-        _blockListener.registerUpdateListener(listener);
+        _blockListeners.values().forEach(l -> l.registerUpdateListener(listener));
     }
 
 
+    public void unregisterBlockUpdateListener(BlockUpdateListener listener) {
+        _blockListeners.values().forEach(l -> l.unregisterUpdateListener(listener));
+    }
+
+
+    /**
+     * Stops the channels' event streams and the worker pools, fails any callers
+     * waiting on chaincode events, and closes the block checkpoints and world
+     * state mirrors
+     */
+    @Override
+    public void close() {
+        log.info("Closing YAWL-Hyperledger interface");
+        if (_coalescer != null) awaitFlush(_coalescer.close());   // open batches
+        _proposalExecutor.shutdown();
+        _enrolExecutor.shutdown();
+        if (_backfillExecutor != null) _backfillExecutor.shutdown();
+        Set<Channel> channels = new LinkedHashSet<>();
+        for (ChaincodeTarget target : _targets.values()) {
+            YChaincodeEventListener eventListener = target.getEventListener();
+            if (eventListener != null) eventListener.close(target.getChannel());
+            channels.add(target.getChannel());
+        }
+        channels.forEach(channel -> channel.shutdown(true));
+        _blockListeners.values().forEach(YBlockListener::shutdown);
+        for (ChaincodeTarget target : _targets.values()) {
+            if (target.getMirror() != null) {
+                try {
+                    target.getMirror().close();
+                }
+                catch (IOException ioe) {
+                    log.warn("Failed to close world state mirror of target '" +
+                            target.getName() + "': " + ioe.getMessage());
+                }
+            }
+        }
+    }
+
+
+    // waits, for a bounded time, for flushed transactions to be committed, so that
+    // the channels aren't shut down under them
+    private void awaitFlush(List<CompletableFuture<BlockEvent.TransactionEvent>> flushed) {
+        if (flushed.isEmpty()) return;
+        try {
+            CompletableFuture.allOf(flushed.toArray(new CompletableFuture<?>[0]))
+                    .get(CLOSE_FLUSH_SECS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ee) {
+            // each failure is reported to the callers of the increments
+        }
+        catch (TimeoutException te) {
+            log.warn("Closing with " + flushed.stream().filter(f -> ! f.isDone())
+                    .count() + " coalesced transaction(s) not yet committed");
+        }
+    }
+
+
+    /**
+     * Invokes a chaincode function. The proposal is sent to all peers on the channel
+     * in parallel; responses not received within the endorsement policy's per-peer
+     * timeout are treated as failed. The transaction is submitted with the agreeing
+     * responses that satisfy the policy. If resubmission is enabled, a transaction
+     * invalidated by a read conflict is endorsed and submitted again, as a new
+     * transaction, until it commits or its attempts or the retry budget run out.
+     *
+     * @param fcn the chaincode function name
+     * @param args the function arguments; the first is taken as the key written
+     * @return a future that completes when the transaction has been committed
+     * @throws ProposalException if the endorsement policy can't be satisfied
+     */
     public CompletableFuture<BlockEvent.TransactionEvent> invoke(String fcn, String... args)
             throws ProposalException, InvalidArgumentException {
+        return invoke(fcn, args != null && args.length > 0 ? args[0] : null,
+                toBytes(args));
+    }
+
+
+    /**
+     * Invokes a chaincode function with arguments that are passed to the chaincode
+     * as given, such as binary content, as for {@link #invoke(String, String...)}.
+     * The first argument is taken as the key written if it is short UTF-8 text.
+     *
+     * @param fcn the chaincode function name
+     * @param args the function arguments
+     * @return a future that completes when the transaction has been committed
+     * @throws ProposalException if the endorsement policy can't be satisfied
+     */
+    public CompletableFuture<BlockEvent.TransactionEvent> invoke(String fcn,
+                                                                 List<byte[]> args)
+            throws ProposalException, InvalidArgumentException {
+        byte[][] argBytes = args.toArray(new byte[0][]);
+        return invoke(fcn, writeKey(argBytes), argBytes);
+    }
+
+
+    // key is the key written, which resubmissions are serialised by, or null
+    private CompletableFuture<BlockEvent.TransactionEvent> invoke(String fcn, String key,
+                                                                  byte[][] args)
+            throws ProposalException, InvalidArgumentException {
+        long start = System.nanoTime();
+        getTarget(fcn);                               // only known targets are recorded
+        FabricMetrics.FunctionStats stats = _metrics.get(FabricMetrics.Operation.INVOKE,
+                fcn);
+        String workItemId = FlightContext.getWorkItemId();       // for resubmissions
+        CompletableFuture<BlockEvent.TransactionEvent> future;
+        try {
+            if (_resubmitter == null) {
+                future = submit(stats, workItemId, fcn, args);
+            }
+            else {
+                String address = ChaincodeTarget.address(ChaincodeTarget.targetName(fcn),
+                        key != null ? key : fcn);
+                future = _resubmitter.submit(address, () -> submit(stats, workItemId, fcn, args),
+                        _proposalExecutor);
+            }
+        }
+        catch (ProposalException | InvalidArgumentException | RuntimeException e) {
+            stats.record(FabricMetrics.Phase.TOTAL, start);
+            throw e;
+        }
+        return future.whenComplete((event, ex) ->
+                stats.record(FabricMetrics.Phase.TOTAL, start));
+    }
+
+
+    /**
+     * @return the resubmitter of conflicted transactions, for its per-key
+     * statistics, or null if resubmission is disabled
+     */
+    public Resubmitter getResubmitter() { return _resubmitter; }
+
+
+    /**
+     * @return the coalescer of increments to the same key, or null if coalescing
+     * is disabled
+     */
+    public WriteCoalescer getWriteCoalescer() { return _coalescer; }
+
+
+    /**
+     * @return the store of payloads kept off-chain, or null if it is disabled
+     */
+    public PayloadStore getPayloadStore() { return _payloadStore; }
+
+
+    // endorses and submits a single transaction, recording the time of each phase
+    private CompletableFuture<BlockEvent.TransactionEvent> submit(
+            FabricMetrics.FunctionStats stats, String workItemId, String fcn,
+            byte[][] args)
+            throws ProposalException, InvalidArgumentException {
+        long start = System.nanoTime();
+        ChaincodeTarget target = getTarget(fcn);
         TransactionProposalRequest tpr = _client.newTransactionProposalRequest();
-        buildChainCodeParams(tpr, fcn, args);
-        Channel channel = _client.getChannel(_props.getChannelName());
-        Collection<ProposalResponse> responses = channel.sendTransactionProposal(tpr);
-        List<ProposalResponse> invalid = responses.stream().filter(
-                r -> r.isInvalid()).collect(Collectors.toList());
-        if (!invalid.isEmpty()) {
-            invalid.forEach(response -> {
-                log.error(response.getMessage());
-            });
-            throw new RuntimeException("invalid response(s) found");
+        buildChainCodeParams(tpr, target, ChaincodeTarget.functionName(fcn), args);
+        EndorsementPolicy policy = _props.getEndorsementPolicy();
+        if (policy.getPeerTimeout() > 0) {
+            tpr.setProposalWaitTime(policy.getPeerTimeout());
+        }
+        start = stats.record(FabricMetrics.Phase.BUILD, start);
+        Channel channel = target.getChannel();
+        Collection<ProposalResponse> received = null, responses = null;
+        FlightEvents.ProposalSpan event = FlightEvents.beginProposal(
+                FabricMetrics.Operation.INVOKE.label(), fcn, workItemId);
+        try {
+            received = channel.sendTransactionProposal(tpr);
+            _metrics.countPeerErrors(received);
+            responses = policy.select(received);
+        }
+        finally {
+            event.finish(received, responses);
+        }
+        start = stats.record(FabricMetrics.Phase.ENDORSE, start);
+
+        // hide cached reads of the keys being written until the tx is resolved
+        QueryCache cache = target.getQueryCache();
+        String txId = cache != null ? responses.iterator().next().getTransactionID() : null;
+        if (cache != null) cache.addPending(txId, responses);
+
+        // the SDK broadcasts to the orderer before returning the commit future
+        CompletableFuture<BlockEvent.TransactionEvent> future =
+                channel.sendTransaction(responses);
+        long sent = stats.record(FabricMetrics.Phase.BROADCAST, start);
+        return future.whenComplete((txEvent, ex) -> {
+            if (cache != null) cache.removePending(txId);
+            if (_metrics.countTransaction(ex)) {
+                stats.record(FabricMetrics.Phase.COMMIT, sent);      // reached a block
+            }
+        });
+    }
+
+    /**
+     * Invokes a chaincode function without blocking the caller. The proposal is
+     * sent and endorsed on a pooled thread, then the endorsed transaction is sent
+     * for ordering.
+     *
+     * @param fcn the chaincode function name
+     * @param args the function arguments
+     * @return a future that completes when the transaction has been committed
+     */
+    public CompletableFuture<BlockEvent.TransactionEvent> invokeAsync(String fcn,
+                                                                      String... args) {
+        return invokeAsync(fcn, args != null && args.length > 0 ? args[0] : null,
+                toBytes(args));
+    }
+
+
+    /**
+     * Invokes a chaincode function, with arguments that are passed to the chaincode
+     * as given, without blocking the caller
+     *
+     * @param fcn the chaincode function name
+     * @param args the function arguments
+     * @return a future that completes when the transaction has been committed
+     */
+    public CompletableFuture<BlockEvent.TransactionEvent> invokeAsync(String fcn,
+                                                                      List<byte[]> args) {
+        byte[][] argBytes = args.toArray(new byte[0][]);
+        return invokeAsync(fcn, writeKey(argBytes), argBytes);
+    }
+
+
+    private CompletableFuture<BlockEvent.TransactionEvent> invokeAsync(String fcn,
+                                                                       String key,
+                                                                       byte[][] args) {
+        long queued = System.nanoTime();
+        String workItemId = FlightContext.getWorkItemId();     // for the pooled thread
+        return CompletableFuture.supplyAsync(() -> {
+            FlightContext.setWorkItemId(workItemId);
+            try {
+                getTarget(fcn);
+                _metrics.get(FabricMetrics.Operation.INVOKE, fcn).record(
+                        FabricMetrics.Phase.QUEUE, queued);
+                return invoke(fcn, key, args);
+            }
+            catch (ProposalException | InvalidArgumentException e) {
+                throw new CompletionException(e);
+            }
+            finally {
+                FlightContext.setWorkItemId(null);
+            }
+        }, _proposalExecutor).thenCompose(future -> future);
+    }
+
+
+    /**
+     * Initialises each configured channel once, and creates a target for each
+     * configured channel/chaincode pair
+     */
+    private void initTargets() {
+        Map<String, Channel> channels = new LinkedHashMap<>();
+        for (Props.Target config : _props.getTargets()) {
+            try {
+                Channel channel = channels.get(config.channel);
+                if (channel == null) {
+                    YBlockListener listener = new YBlockListener(
+                            _props.getDispatchCapacity(), ListenerDispatcher.Overflow
+                                    .fromString(_props.getDispatchOverflow()));
+                    if (_props.isCheckpointingEnabled()) {
+                        listener.setCheckpoint(new BlockCheckpoint(Paths.get(
+                                _props.getDataDir(), config.channel + ".checkpoint"),
+                                _props.getCheckpointFlushMsecs()));
+                    }
+                    channel = initChannel(config.channel, listener);
+                    if (_backfillExecutor != null) {
+                        listener.enableBackfill(channel, _backfillExecutor);
+                    }
+                    channels.put(config.channel, channel);
+                    _blockListeners.put(config.channel, listener);
+                }
+                ChaincodeTarget target = new ChaincodeTarget(config.name, channel,
+                        config.chaincode, _blockListeners.get(config.channel));
+                if (_props.getQueryCacheSize() > 0) {
+                    target.setQueryCache(new QueryCache(config.chaincode,
+                            _props.getQueryCacheSize()));
+                }
+                if (_props.isMirrorEnabled()) {
+                    target.setMirror(new WorldStateMirror(config.chaincode, Paths.get(
+                            _props.getDataDir(), config.name + ".mirror"),
+                            _props.getMirrorFlushMsecs()));
+                }
+                _targets.put(config.name, target);
+            }
+            catch (Exception e) {
+                log.error("Failed to initialise target '" + config.name + "': " +
+                        e.getMessage());
+            }
+        }
+
+        // block delivery starts only once every listener is in place
+        for (Channel channel : channels.values()) {
+            try {
+                channel.initialize();
+            }
+            catch (Exception e) {
+                log.error("Failed to initialise channel '" + channel.getName() + "': " +
+                        e.getMessage());
+                _targets.values().removeIf(target -> target.getChannel() == channel);
+            }
         }
-        return channel.sendTransaction(responses);
     }
 
+
     /**
      * Initialize and get HF channel
      *
+     * @param channelName the name of the channel
+     * @param blockListener the listener for the channel's block events
      * @return Initialized channel
      * @throws InvalidArgumentException
      * @throws TransactionException
      */
-    private Channel initChannel() throws InvalidArgumentException, TransactionException {
-        Channel channel = _client.newChannel(_props.getChannelName());
+    private Channel initChannel(String channelName, YBlockListener blockListener)
+            throws InvalidArgumentException, TransactionException {
+        Channel channel = _client.newChannel(channelName);
+
+        // resume block events from the listener's checkpoint, if it has one
+        long startBlock = blockListener.getStartBlock();
+        if (startBlock > -1) {
+            log.info("Resuming block events for channel " + channelName +
+                    " from block " + startBlock);
+        }
 
         // peer name and endpoint in fabcar network
         for (Props.NameURLPair pair : _props.getPeers()) {
             Peer peer = _client.newPeer(pair.name, pair.url);
-            channel.addPeer(peer);
+            Channel.PeerOptions options = Channel.PeerOptions.createPeerOptions();
+            if (startBlock > -1) options.startEvents(startBlock);
+            channel.addPeer(peer, options);
         }
 
         // eventhub name and endpoint in fabcar network
@@ -208,10 +970,8 @@ public class HFInterface {
             channel.addOrderer(orderer);
         }
 
-        channel.registerBlockListener(_blockListener);
-
-        channel.initialize(); 
-        return channel;
+        channel.registerBlockListener(blockListener);
+        return channel;                                 // initialised by the caller
     }
 
     /**
@@ -237,46 +997,50 @@ public class HFInterface {
 
     /**
      * Register and enroll user with userId.
-     * If AppUser object with the name already exist on fs it will be loaded and
+     * If the user's credentials are already stored they will be loaded and
      * registration and enrollment will be skipped.
      *
-     * @param caClient  The fabric-ca client.
-     * @param registrar The registrar to be used.
-     * @param user    The user id.
+     * @param id    The user id.
      * @return AppUser instance with userId, affiliation,mspId and enrollment set.
-     * @throws Exception
      */
-    private AppUser initUser(HFCAClient caClient, AppUser registrar, Props.User user)
-            throws Exception {
-        AppUser appUser = tryDeserialize(user.id);
-        if (appUser == null) {
-            RegistrationRequest rr = new RegistrationRequest(user.id, user.affiliation);
-            String enrollmentSecret = caClient.register(rr, registrar);
-            Enrollment enrollment = caClient.enroll(user.id, enrollmentSecret);
-            appUser = new AppUser(user.id, user.affiliation, user.mspid, enrollment);
-            serialize(appUser);
+    private AppUser initUser(String id) {
+        Props.User user = null;
+        for (Props.User candidate : _props.getUsers()) {
+            if (candidate.id.equals(id)) user = candidate;
+        }
+        if (user == null) throw new IllegalArgumentException("Unknown user: " + id);
+        try {
+            AppUser appUser = loadUser(user);
+            if (appUser == null) {
+                RegistrationRequest rr = new RegistrationRequest(user.id, user.affiliation);
+                String enrollmentSecret = _caClient.register(rr, _admin);
+                Enrollment enrollment = _caClient.enroll(user.id, enrollmentSecret);
+                appUser = new AppUser(user.id, user.affiliation, user.mspid, enrollment);
+                _credentials.put(user.id, enrollment);
+            }
+            return appUser;
+        }
+        catch (Exception e) {
+            throw new CompletionException(e);
         }
-        return appUser;
     }
 
     /**
      * Enroll admin into fabric-ca using {@code admin/adminpw} credentials.
-     * If AppUser object already exist serialized on fs it will be loaded and
+     * If the admin's credentials are already stored they will be loaded and
      * new enrollment will not be executed.
      *
      * @param caClient The fabric-ca client
      * @return AppUser instance with userid, affiliation, mspId and enrollment set
      * @throws Exception
      */
-    private AppUser initAdmin(HFCAClient caClient) throws EnrollmentException,
-            org.hyperledger.fabric_ca.sdk.exception.InvalidArgumentException,
-            IOException, ClassNotFoundException {
+    private AppUser initAdmin(HFCAClient caClient) throws Exception {
         Props.User user = _props.getAdmin();
-        AppUser admin = tryDeserialize(user.id);
+        AppUser admin = loadUser(user);
         if (admin == null) {
             Enrollment adminEnrollment = caClient.enroll(user.id, user.pw);
             admin = new AppUser(user.id, user.affiliation, user.mspid, adminEnrollment);
-            serialize(admin);
+            _credentials.put(user.id, adminEnrollment);
         }
         return admin;
     }
@@ -300,43 +1064,45 @@ public class HFInterface {
     }
 
 
-    // user serialization and deserialization utility functions
-    // files are stored in the base directory
-
     /**
-     * Serialize AppUser object to file
+     * Loads a user's stored credentials. Credentials found only in a serialized
+     * AppUser file (as kept by earlier versions in the working directory) are
+     * imported into the credential store.
      *
-     * @param appUser The object to be serialized
-     * @throws IOException
+     * @param user the user
+     * @return the user, or null if it has no stored credentials
      */
-    private void serialize(AppUser appUser) throws IOException {
-        try (ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(
-                Paths.get(appUser.getName() + ".jso")))) {
-            oos.writeObject(appUser);
+    private AppUser loadUser(Props.User user) throws Exception {
+        Enrollment enrollment = _credentials.get(user.id);
+        if (enrollment == null) {
+            AppUser legacy = tryDeserialize(user.id);
+            if (legacy == null) return null;
+            enrollment = legacy.getEnrollment();
+            _credentials.put(user.id, enrollment);
+            log.info("Imported credentials of user '" + user.id + "' into " +
+                    _credentials.getPath());
         }
+        return new AppUser(user.id, user.affiliation, user.mspid, enrollment);
     }
 
+
     /**
      * Deserialize AppUser object from file
      *
      * @param name The name of the user. Used to build file name ${name}.jso
-     * @return
+     * @return the user, or null if there is no such file
      * @throws Exception
      */
     private AppUser tryDeserialize(String name) throws IOException, ClassNotFoundException {
         if (Files.exists(Paths.get(name + ".jso"))) {
-            return deserialize(name);
+            try (ObjectInputStream decoder = new ObjectInputStream(
+                    Files.newInputStream(Paths.get(name + ".jso")))) {
+                return (AppUser) decoder.readObject();
+            }
         }
         return null;
     }
 
-    private AppUser deserialize(String name) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream decoder = new ObjectInputStream(
-                Files.newInputStream(Paths.get(name + ".jso")))) {
-            return (AppUser) decoder.readObject();
-        }
-    }
-
 
     public static void main(String[] args) throws Exception {
         HFInterface hfi = new HFInterface();
@@ -0,0 +1,211 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+
+import javax.json.Json;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * One page of the history of a key. The bookmark identifies where the next page
+ * starts, and is null when this is the last page.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class HistoryPage {
+
+    /**
+     * Successive pages of a key's history
+     */
+    public interface Cursor {
+        boolean hasNext();
+
+        /**
+         * @return the next page
+         * @throws NoSuchElementException if the last page has been returned
+         */
+        HistoryPage next() throws ProposalException, InvalidArgumentException;
+    }
+
+
+    private static final JsonParserFactory PARSER_FACTORY =
+            Json.createParserFactory(null);
+
+    private final List<JsonValue> _records;
+    private final String _bookmark;
+
+
+    public HistoryPage(List<JsonValue> records, String bookmark) {
+        _records = records;
+        _bookmark = bookmark != null && ! bookmark.isEmpty() ? bookmark : null;
+    }
+
+
+    public List<JsonValue> getRecords() { return _records; }
+
+    public String getBookmark() { return _bookmark; }
+
+    public boolean isLast() { return _bookmark == null; }
+
+
+    /**
+     * Writes the page as a JSON object with "records" and "bookmark" members
+     */
+    public void write(JsonGenerator gen) {
+        gen.writeStartObject().writeStartArray("records");
+        _records.forEach(gen::write);
+        gen.writeEnd();
+        if (_bookmark != null) gen.write("bookmark", _bookmark);
+        gen.writeEnd();
+    }
+
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator gen = Json.createGenerator(writer)) {
+            write(gen);
+        }
+        return writer.toString();
+    }
+
+
+    /**
+     * Reads the response of a paginated history function, a JSON object with a
+     * "records" array and a "bookmark" string
+     * @param payload the response payload
+     * @return the page
+     */
+    public static HistoryPage fromPagePayload(byte[] payload) {
+        List<JsonValue> records = new ArrayList<>();
+        String bookmark = null;
+        try (JsonParser parser = newParser(payload)) {
+            expect(parser, JsonParser.Event.START_OBJECT);
+            while (parser.hasNext()) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_OBJECT) break;
+                String name = parser.getString();
+                event = parser.next();
+                if (name.equals("records") && event == JsonParser.Event.START_ARRAY) {
+                    while (parser.next() != JsonParser.Event.END_ARRAY) {
+                        records.add(parser.getValue());
+                    }
+                }
+                else if (name.equals("bookmark") &&
+                        event == JsonParser.Event.VALUE_STRING) {
+                    bookmark = parser.getString();
+                }
+                else {
+                    parser.getValue();                              // skip it
+                }
+            }
+        }
+        return new HistoryPage(records, bookmark);
+    }
+
+
+    /**
+     * Reads a window of the response of an unpaginated history function, a JSON
+     * array of records. Records before the window are skipped without being
+     * materialised. The bookmark of the page is the offset of its successor.
+     * @param payload the response payload
+     * @param offset the index of the first record in the window
+     * @param pageSize the maximum number of records in the window
+     * @return the page
+     */
+    public static HistoryPage fromHistoryPayload(byte[] payload, int offset,
+                                                 int pageSize) {
+        return new Windows(payload, offset, pageSize).next();
+    }
+
+
+    /**
+     * Reads successive windows of the response of an unpaginated history function,
+     * in a single pass over it, so the pages of a full history fetched once cost
+     * no more to read than the history itself
+     * @param payload the response payload
+     * @param offset the index of the first record in the first window
+     * @param pageSize the maximum number of records in each window
+     * @return a cursor over the windows, which has at least one (perhaps empty)
+     */
+    public static Cursor windowsOf(byte[] payload, int offset, int pageSize) {
+        return new Windows(payload, offset, pageSize);
+    }
+
+
+    private static JsonParser newParser(byte[] payload) {
+        return PARSER_FACTORY.createParser(new ByteArrayInputStream(payload),
+                StandardCharsets.UTF_8);
+    }
+
+
+    private static void expect(JsonParser parser, JsonParser.Event expected) {
+        if (! parser.hasNext() || parser.next() != expected) {
+            throw new IllegalArgumentException("Unexpected history response format");
+        }
+    }
+
+
+    // holds its parser on the first event of the next record to read
+    private static class Windows implements Cursor {
+        private final int _pageSize;
+        private JsonParser _parser;                 // null once all records are read
+        private int _index;                         // of the next record
+        private boolean _first = true;
+
+        Windows(byte[] payload, int offset, int pageSize) {
+            _pageSize = Math.max(1, pageSize);
+            if (payload.length == 0) return;
+            _parser = newParser(payload);
+            expect(_parser, JsonParser.Event.START_ARRAY);
+            JsonParser.Event event = advance();
+            while (_parser != null && _index < offset) {
+                if (event == JsonParser.Event.START_OBJECT) {
+                    _parser.skipObject();
+                }
+                else if (event == JsonParser.Event.START_ARRAY) {
+                    _parser.skipArray();
+                }
+                _index++;
+                event = advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() { return _first || _parser != null; }
+
+        @Override
+        public HistoryPage next() {
+            if (! hasNext()) throw new NoSuchElementException();
+            _first = false;
+            List<JsonValue> records = new ArrayList<>(Math.min(_pageSize, 1024));
+            while (_parser != null && records.size() < _pageSize) {
+                records.add(_parser.getValue());
+                _index++;
+                advance();
+            }
+            return new HistoryPage(records, _parser != null ?
+                    String.valueOf(_index) : null);
+        }
+
+        private JsonParser.Event advance() {
+            JsonParser.Event event = _parser.next();
+            if (event == JsonParser.Event.END_ARRAY) {
+                _parser.close();
+                _parser = null;
+            }
+            return event;
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies, in nanoseconds, with log-linear buckets (as
+ * HdrHistogram uses): each power of two range is split into 32 equal buckets, so
+ * a value is counted with a relative error of at most 1/32 (about 3%) from a few
+ * nanoseconds up to {@link #MAX_NANOS}, in a fixed 1,184 counts. Values beyond
+ * the range are counted in the top bucket.
+ * <p>
+ * Recording is an array increment and two adder updates, cheap enough for every
+ * call. Percentiles are read from a {@link Snapshot}, which copies the counts.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;                    // 32 buckets per range
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    public static final long MAX_NANOS = (1L << (MAX_EXPONENT + 1)) - 1;  // ~36 mins
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder _count = new LongAdder();
+    private final LongAdder _sum = new LongAdder();
+    private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+
+    /**
+     * Records a latency
+     * @param nanos the latency; negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, Math.min(nanos, MAX_NANOS));
+        _counts.incrementAndGet(index(nanos));
+        _count.increment();
+        _sum.add(nanos);
+        _max.accumulate(nanos);
+    }
+
+
+    /**
+     * Records the time since a start time
+     * @param startNanos the start time, from System.nanoTime()
+     * @return the current time, from System.nanoTime(), for use as the start time
+     * of a following phase
+     */
+    public long recordSince(long startNanos) {
+        long now = System.nanoTime();
+        record(now - startNanos);
+        return now;
+    }
+
+
+    public long getCount() { return _count.sum(); }
+
+    public long getSum() { return _sum.sum(); }
+
+
+    /**
+     * @return a copy of the current counts. Concurrent recording may leave the
+     * copy's total count and sum a few values apart from its buckets.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) counts[i] = _counts.get(i);
+        return new Snapshot(counts, _sum.sum(), _max.get());
+    }
+
+
+    // values below SUB_COUNT have a bucket each; above, the bucket is the value's
+    // power of two range and its next SUB_BITS most significant bits
+    static int index(long nanos) {
+        if (nanos < SUB_COUNT) return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = exponent - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((nanos >>> shift) - SUB_COUNT);
+    }
+
+
+    // the lowest value counted in a bucket
+    static long lowestValue(int index) {
+        int range = index >>> SUB_BITS;
+        if (range == 0) return index;
+        return (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << (range - 1);
+    }
+
+
+    /**
+     * An immutable copy of a histogram's counts
+     */
+    public static class Snapshot {
+        private final long[] _counts;
+        private final long _count;
+        private final long _sum;
+        private final long _max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            _counts = counts;
+            long count = 0;
+            for (long c : counts) count += c;
+            _count = count;
+            _sum = sum;
+            _max = max;
+        }
+
+        public long getCount() { return _count; }
+
+        public long getSum() { return _sum; }
+
+        public long getMax() { return _max; }
+
+        public double getMean() { return _count > 0 ? (double) _sum / _count : 0; }
+
+
+        /**
+         * @param percentile the percentile, from 0 to 100
+         * @return the highest value that could have been counted in the bucket
+         * holding the value at the percentile (but no more than the largest value
+         * recorded), or 0 if nothing has been recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (_count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * _count));
+            long seen = 0;
+            for (int i = 0; i < _counts.length; i++) {
+                seen += _counts[i];
+                if (seen >= rank) {
+                    long highest = i + 1 < _counts.length ? lowestValue(i + 1) - 1 :
+                            MAX_NANOS;
+                    return Math.min(highest, _max);
+                }
+            }
+            return _max;
+        }
+    }
+
+}
@@ -0,0 +1,260 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * A local store of payloads too large to pass to chaincode, addressed by the
+ * SHA-256 digest of their content, so that only the digest and size need be
+ * committed to the ledger. Block size and endorsement time are then the same
+ * whatever a payload's size.
+ * <p>
+ * Each payload is a file named by its digest, in a two level tree of directories
+ * named by the digest's first two byte pairs (so no directory gets too large).
+ * A payload is streamed to a temporary file as its digest is computed, forced to
+ * disk, then moved into place; storing content that is already held just discards
+ * the copy. Reads are verified against the digest as they are streamed.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class PayloadStore {
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final Pattern DIGEST = Pattern.compile("[0-9a-f]{64}");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path _root;
+    private final Path _tempDir;
+    private final long _maxSize;                      // bytes; 0 = no limit
+
+    private final LongAdder _stored = new LongAdder();
+    private final LongAdder _storedBytes = new LongAdder();
+    private final LongAdder _duplicates = new LongAdder();
+    private final LongAdder _reads = new LongAdder();
+    private final LongAdder _verifyFailures = new LongAdder();
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    /**
+     * @param root the store's directory, created when first stored to
+     * @param maxSize the maximum size of a payload, in bytes, or 0 for no limit
+     */
+    public PayloadStore(Path root, long maxSize) {
+        _root = root;
+        _tempDir = root.resolve("tmp");
+        _maxSize = maxSize;
+    }
+
+
+    /**
+     * Streams a payload into the store
+     * @param in the payload's content, read to its end (but not closed)
+     * @return the payload's digest and size
+     * @throws IOException if the payload can't be read or written, or is larger
+     * than the maximum size
+     */
+    public Ref put(InputStream in) throws IOException {
+        Files.createDirectories(_tempDir);
+        Path temp = Files.createTempFile(_tempDir, "put", ".part");
+        try {
+            MessageDigest md = newDigest();
+            long size = 0;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    size += n;
+                    if (_maxSize > 0 && size > _maxSize) {
+                        throw new IOException("Payload exceeds the maximum size of " +
+                                _maxSize + " bytes");
+                    }
+                    md.update(buffer, 0, n);
+                    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+                    while (bytes.hasRemaining()) out.write(bytes);
+                }
+                out.force(true);             // on disk before its digest is committed
+            }
+            String digest = toHex(md.digest());
+            Path path = pathOf(digest);
+            if (Files.exists(path)) {
+                _duplicates.increment();
+            }
+            else {
+                Files.createDirectories(path.getParent());
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+                _stored.increment();
+                _storedBytes.add(size);
+            }
+            return new Ref(digest, size);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+
+    /**
+     * @param digest a payload's digest
+     * @return true if the store holds the payload
+     */
+    public boolean contains(String digest) {
+        return isDigest(digest) && Files.exists(pathOf(digest));
+    }
+
+
+    /**
+     * @param digest a payload's digest
+     * @return the payload's size, in bytes
+     * @throws NoSuchFileException if the store doesn't hold the payload
+     */
+    public long size(String digest) throws IOException {
+        return Files.size(pathOf(checkDigest(digest)));
+    }
+
+
+    /**
+     * Streams a payload out of the store, verifying it against its digest. The
+     * final part of the payload is written only once the whole of it has been
+     * verified, so a corrupt payload is never written in full.
+     * @param digest the payload's digest
+     * @param out the stream to write the payload to (not closed)
+     * @return the number of bytes written
+     * @throws NoSuchFileException if the store doesn't hold the payload
+     * @throws IOException if the payload fails verification, or can't be read or
+     * written
+     */
+    public long copyTo(String digest, OutputStream out) throws IOException {
+        Path path = pathOf(checkDigest(digest));
+        MessageDigest md = newDigest();
+        byte[] held = new byte[BUFFER_SIZE];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int heldCount = 0;
+        long size = 0;
+        _reads.increment();
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = readFully(in, buffer)) > 0) {
+                if (heldCount > 0) out.write(held, 0, heldCount);
+                md.update(buffer, 0, n);
+                byte[] swap = held;
+                held = buffer;
+                buffer = swap;
+                heldCount = n;
+                size += n;
+            }
+        }
+        if (! digest.equals(toHex(md.digest()))) {
+            _verifyFailures.increment();
+            _logger.error("Payload '{}' failed verification: its content has changed.",
+                    path);
+            throw new IOException("Payload " + digest + " failed verification");
+        }
+        if (heldCount > 0) out.write(held, 0, heldCount);
+        out.flush();
+        return size;
+    }
+
+
+    public long getStoredCount() { return _stored.sum(); }
+
+    public long getStoredBytes() { return _storedBytes.sum(); }
+
+    /**
+     * @return the number of payloads stored that were already held
+     */
+    public long getDuplicateCount() { return _duplicates.sum(); }
+
+    public long getReadCount() { return _reads.sum(); }
+
+    public long getVerifyFailureCount() { return _verifyFailures.sum(); }
+
+
+    private Path pathOf(String digest) {
+        return _root.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4))
+                .resolve(digest);
+    }
+
+
+    // digests name files, so only well formed ones are accepted
+    private String checkDigest(String digest) {
+        if (! isDigest(digest)) {
+            throw new IllegalArgumentException("Invalid payload digest: " + digest);
+        }
+        return digest;
+    }
+
+
+    private boolean isDigest(String digest) {
+        return digest != null && DIGEST.matcher(digest).matches();
+    }
+
+
+    // fills the buffer unless the end of the stream is reached first
+    private int readFully(InputStream in, byte[] buffer) throws IOException {
+        int count = 0;
+        int n;
+        while (count < buffer.length && (n = in.read(buffer, count,
+                buffer.length - count)) >= 0) {
+            count += n;
+        }
+        return count;
+    }
+
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);    // every JVM must provide it
+        }
+    }
+
+
+    private String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+
+    /**
+     * The digest and size of a stored payload: what is committed to the ledger
+     */
+    public static class Ref {
+        private final String _digest;
+        private final long _size;
+
+        Ref(String digest, long size) {
+            _digest = digest;
+            _size = size;
+        }
+
+        public String getDigest() { return _digest; }
+
+        public long getSize() { return _size; }
+    }
+
+}
@@ -0,0 +1,114 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.hyperledger.fabric.sdk.Peer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders the peers of a channel for query routing, preferring the peer with the
+ * lowest expected wait. Each peer's latency is tracked as an exponentially
+ * weighted moving average, which is scaled by the number of queries currently in
+ * flight to the peer. A peer that has recently failed is tried last until its
+ * penalty period expires.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class PeerRouter {
+
+    private static final long FAILURE_PENALTY_NANOS = 10_000_000_000L;     // 10 secs
+
+    private final double _alpha;                 // weight given to each new sample
+    private final Map<String, PeerStats> _stats = new ConcurrentHashMap<>();
+
+
+    public PeerRouter(double alpha) {
+        _alpha = alpha > 0 && alpha <= 1 ? alpha : 0.2;
+    }
+
+
+    /**
+     * @param peers the candidate peers
+     * @return the peers, best first
+     */
+    public List<Peer> rank(Collection<Peer> peers) {
+        long now = System.nanoTime();
+        List<Peer> ranked = new ArrayList<>(peers);
+        Map<Peer, Double> scores = new HashMap<>();
+        for (Peer peer : ranked) {
+            scores.put(peer, getStats(peer).score(now));
+        }
+        ranked.sort(Comparator.comparingDouble(scores::get));
+        return ranked;
+    }
+
+
+    /**
+     * Records the start of a query to a peer
+     * @return the start time, to be passed to succeeded or failed
+     */
+    public long started(Peer peer) {
+        getStats(peer).inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+
+    public void succeeded(Peer peer, long startNanos) {
+        PeerStats stats = getStats(peer);
+        stats.inFlight.decrementAndGet();
+        stats.sample(System.nanoTime() - startNanos, _alpha);
+        stats.lastFailure.set(0);
+    }
+
+
+    public void failed(Peer peer, long startNanos) {
+        PeerStats stats = getStats(peer);
+        stats.inFlight.decrementAndGet();
+        stats.failures.incrementAndGet();
+        stats.lastFailure.set(System.nanoTime());
+    }
+
+
+    /**
+     * @return the current latency average for a peer, in msecs, or 0 if unknown
+     */
+    public double getLatencyMsecs(Peer peer) {
+        return getStats(peer).ewmaNanos / 1_000_000d;
+    }
+
+    public int getInFlight(Peer peer) { return getStats(peer).inFlight.get(); }
+
+    public long getFailureCount(Peer peer) { return getStats(peer).failures.get(); }
+
+
+    private PeerStats getStats(Peer peer) {
+        return _stats.computeIfAbsent(peer.getName(), k -> new PeerStats());
+    }
+
+
+    private static class PeerStats {
+        volatile double ewmaNanos;                   // 0 until the first sample
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong lastFailure = new AtomicLong();
+
+        synchronized void sample(long nanos, double alpha) {
+            ewmaNanos = ewmaNanos == 0 ? nanos : ewmaNanos + alpha * (nanos - ewmaNanos);
+        }
+
+        double score(long now) {
+
+            // unmeasured peers score best, so that each gets a sample
+            double score = ewmaNanos * (1 + inFlight.get());
+            long failedAt = lastFailure.get();
+            if (failedAt != 0 && now - failedAt < FAILURE_PENALTY_NANOS) {
+                score += FAILURE_PENALTY_NANOS;
+            }
+            return score;
+        }
+    }
+
+}
@@ -2,13 +2,18 @@ package org.yawlfoundation.yawl.fabric.bridge;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.yawlfoundation.yawl.fabric.event.YBlockListener;
 import org.yawlfoundation.yawl.util.StringUtil;
 import org.yawlfoundation.yawl.util.XNode;
 import org.yawlfoundation.yawl.util.XNodeParser;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Michael Adams
@@ -19,15 +24,62 @@ public class Props {
     private static final String PROPS_FILE_NAME =
             "org/yawlfoundation/yawl/fabric/bridge/serviceProps.xml";
 
+    // names a props file to load instead of the one on the classpath
+    public static final String PROPS_FILE_PROPERTY = "yawl.fabric.props";
+
     private Logger _logger;
     private String _caURL;
     private String _channelName;
     private String _chainCodeName;
     private User _admin;
-    private List<User> _users;
-    private List<NameURLPair> _peers;   // name::url
-    private List<NameURLPair> _orderers;
+    private List<User> _users = new ArrayList<>();
+    private List<NameURLPair> _peers = new ArrayList<>();   // name::url
+    private List<NameURLPair> _orderers = new ArrayList<>();
     private NameURLPair _eventHub;
+    private int _pipelineThreads;       // 0 = handle work items synchronously
+    private int _pipelineQueueSize;
+    private String _pipelineRejection;
+    private long _pipelineOfferTimeout;
+    private boolean _asyncInvoke;
+    private String _orderBatchFcn;      // null = one transaction per order item
+    private EndorsementPolicy _endorsementPolicy = EndorsementPolicy.all();
+    private int _queryCacheSize;        // 0 = no query caching
+    private List<Target> _targets = new ArrayList<>();   // default target is first
+    private boolean _queryRouting;      // false = send each query to all peers
+    private int _queryVerifyCount = 1;
+    private long _queryTimeout;
+    private double _queryRoutingAlpha = 0.2;
+    private int _dispatchCapacity = YBlockListener.DEFAULT_CAPACITY;
+    private String _dispatchOverflow;
+    private int _eventRetainCount = 1000;
+    private String _dataDir = ".";      // for files kept between restarts
+    private boolean _checkpointing;     // false = events start from the newest block
+    private long _checkpointFlushMsecs = 1000;
+    private int _backfillThreads = 4;
+    private String _credentialFile = "credentials.p12";
+    private String _credentialPassword;  // null = the admin's password
+    private boolean _eagerEnrolment;    // false = users are enrolled on first use
+    private int _enrolThreads = 4;
+    private String _historyFcn = "queryHistory";
+    private String _historyPageFcn;     // null = pages are windows of the full history
+    private int _historyPageSize = 100;
+    private boolean _mirror;            // false = all reads go to peers
+    private String _mirrorReadFcn = "query";
+    private long _mirrorFlushMsecs = 1000;
+    private long _eventRetainMsecs = 60000;
+    private int _resubmitAttempts = 1;  // 1 = invalid transactions aren't resubmitted
+    private long _resubmitBaseDelay = 50;
+    private long _resubmitMaxDelay = 2000;
+    private double _resubmitBudgetRatio = 0.2;
+    private int _resubmitBudgetReserve = 100;
+    private boolean _coalescing;        // false = one transaction per order item
+    private long _coalesceWindowMsecs = 20;
+    private int _coalesceMaxBatch = 100;
+    private boolean _payloadStore;      // false = no off-chain payloads
+    private String _payloadDir = "payloads";
+    private long _payloadMaxSize;       // bytes; 0 = no limit
+    private String _payloadRecordFcn = "storePayload";
+    private Map<String, ArgSchema> _argSchemas = new LinkedHashMap<>();  // fcn::schema
 
 
     public Props() {
@@ -52,19 +104,131 @@ public class Props {
 
     public NameURLPair getEventHub() { return _eventHub; }
 
+    public int getPipelineThreads() { return _pipelineThreads; }
+
+    public int getPipelineQueueSize() { return _pipelineQueueSize; }
+
+    public String getPipelineRejection() { return _pipelineRejection; }
+
+    public long getPipelineOfferTimeout() { return _pipelineOfferTimeout; }
+
+    public boolean isAsyncInvoke() { return _asyncInvoke; }
+
+    public String getOrderBatchFcn() { return _orderBatchFcn; }
+
+    public EndorsementPolicy getEndorsementPolicy() { return _endorsementPolicy; }
+
+    public int getQueryCacheSize() { return _queryCacheSize; }
+
+    public List<Target> getTargets() { return _targets; }
+
+    public int getDispatchCapacity() { return _dispatchCapacity; }
+
+    public String getDispatchOverflow() { return _dispatchOverflow; }
+
+    public String getDataDir() { return _dataDir; }
+
+    public boolean isCheckpointingEnabled() { return _checkpointing; }
+
+    public long getCheckpointFlushMsecs() { return _checkpointFlushMsecs; }
+
+    public int getBackfillThreads() { return _backfillThreads; }
+
+    public String getCredentialFile() { return _credentialFile; }
+
+    public String getCredentialPassword() {
+        return _credentialPassword != null ? _credentialPassword :
+                _admin != null && _admin.pw != null ? _admin.pw : "";
+    }
+
+    public boolean isEagerEnrolment() { return _eagerEnrolment; }
+
+    public int getEnrolThreads() { return _enrolThreads; }
+
+    public String getHistoryFcn() { return _historyFcn; }
+
+    public String getHistoryPageFcn() { return _historyPageFcn; }
+
+    public int getHistoryPageSize() { return _historyPageSize; }
+
+    public boolean isMirrorEnabled() { return _mirror; }
+
+    public String getMirrorReadFcn() { return _mirrorReadFcn; }
+
+    public long getMirrorFlushMsecs() { return _mirrorFlushMsecs; }
+
+    public int getEventRetainCount() { return _eventRetainCount; }
+
+    public long getEventRetainMsecs() { return _eventRetainMsecs; }
+
+    public int getResubmitAttempts() { return _resubmitAttempts; }
+
+    public long getResubmitBaseDelay() { return _resubmitBaseDelay; }
+
+    public long getResubmitMaxDelay() { return _resubmitMaxDelay; }
+
+    public double getResubmitBudgetRatio() { return _resubmitBudgetRatio; }
+
+    public int getResubmitBudgetReserve() { return _resubmitBudgetReserve; }
+
+    public boolean isCoalescingEnabled() { return _coalescing; }
+
+    public long getCoalesceWindowMsecs() { return _coalesceWindowMsecs; }
+
+    public int getCoalesceMaxBatch() { return _coalesceMaxBatch; }
+
+    public boolean isPayloadStoreEnabled() { return _payloadStore; }
+
+    /**
+     * @return the payload store's directory, resolved against the data directory
+     */
+    public String getPayloadDir() { return _payloadDir; }
+
+    public long getPayloadMaxSize() { return _payloadMaxSize; }
+
+    public String getPayloadRecordFcn() { return _payloadRecordFcn; }
+
+
+    /**
+     * Gets the typed arguments of a function. A schema configured for a function
+     * name without a target prefix applies to that function on every target.
+     * @param fcn the function name, optionally prefixed by a target name
+     * @return the function's schema, or null if its arguments are untyped
+     */
+    public ArgSchema getArgSchema(String fcn) {
+        ArgSchema schema = _argSchemas.get(fcn);
+        return schema != null ? schema :
+                _argSchemas.get(ChaincodeTarget.functionName(fcn));
+    }
+
+    public Collection<ArgSchema> getArgSchemas() { return _argSchemas.values(); }
+
+    public boolean isQueryRoutingEnabled() { return _queryRouting; }
+
+    public int getQueryVerifyCount() { return _queryVerifyCount; }
+
+    public long getQueryTimeout() { return _queryTimeout; }
+
+    public double getQueryRoutingAlpha() { return _queryRoutingAlpha; }
+
 
     private void load() {
-//        String xml = StringUtil.fileToString("/Users/adamsmj/Documents/Git/YAWLFabric/src/org/yawlfoundation/yawl/fabric/bridge/serviceProps.xml");
-//        if (xml != null) {
-//            parse(xml);
-//        }
+        String path = System.getProperty(PROPS_FILE_PROPERTY);
+        if (path != null) {
+            String xml = StringUtil.fileToString(path);
+            if (xml != null) {
+                parse(xml, path);
+            }
+            else _logger.warn("Error reading file '{}'.", path);
+            return;
+        }
 
         InputStream in = Thread.currentThread().getContextClassLoader()
                 .getResourceAsStream(PROPS_FILE_NAME);
         if (in != null) {
             String xml = StringUtil.streamToString(in);
             if (xml != null) {
-                parse(xml);
+                parse(xml, PROPS_FILE_NAME);
             }
             else {
                 _logger.warn("Error reading file '{}'.", PROPS_FILE_NAME);
@@ -74,19 +238,39 @@ public class Props {
     }
 
 
-    private void parse(String xml) {
+    private void parse(String xml, String source) {
         XNode root = new XNodeParser().parse(xml);
         if (root == null) {
-            _logger.error("Invalid config xml in file '{}'.", PROPS_FILE_NAME);
+            _logger.error("Invalid config xml in file '{}'.", source);
             return;
         }
         _caURL = root.getChildText("caurl");
         _channelName = root.getChildText("channel");
         _chainCodeName = root.getChildText("chaincode");
+        _asyncInvoke = "true".equalsIgnoreCase(root.getChildText("asyncinvoke"));
+        _orderBatchFcn = root.getChildText("orderbatchfcn");
+        if (StringUtil.isNullOrEmpty(_orderBatchFcn)) _orderBatchFcn = null;
         parseUsers(root.getChild("users"));
         parsePeers(root.getChild("peers"));
         parseOrderers(root.getChild("orderers"));
         parseEventHub(root.getChild("eventhub"));
+        parsePipeline(root.getChild("pipeline"));
+        parseEndorsement(root.getChild("endorsement"));
+        parseQueryCache(root.getChild("querycache"));
+        parseTargets(root.getChild("targets"));
+        parseQueryRouting(root.getChild("queryrouting"));
+        parseDispatch(root.getChild("blockdispatch"));
+        parseChaincodeEvents(root.getChild("chaincodeevents"));
+        parseCheckpoint(root.getChild("checkpoint"));
+        parseMirror(root.getChild("mirror"));
+        parseHistory(root.getChild("history"));
+        parseCredentials(root.getChild("credentials"));
+        parseResubmit(root.getChild("resubmit"));
+        parseCoalesce(root.getChild("coalesce"));
+        parseFunctions(root.getChild("functions"));
+        parsePayloadStore(root.getChild("payloadstore"));
+        String dataDir = root.getChildText("datadir");
+        if (! StringUtil.isNullOrEmpty(dataDir)) _dataDir = dataDir;
     }
 
 
@@ -141,6 +325,199 @@ public class Props {
     }
 
 
+    private void parsePipeline(XNode node) {
+        if (node != null) {
+            _pipelineThreads = StringUtil.strToInt(node.getChildText("threads"), 0);
+            _pipelineQueueSize = StringUtil.strToInt(node.getChildText("queue"), 100);
+            _pipelineRejection = node.getChildText("rejection");
+            _pipelineOfferTimeout = StringUtil.strToLong(
+                    node.getChildText("offertimeout"), 5000);
+        }
+    }
+
+
+    private void parseEndorsement(XNode node) {
+        if (node != null) {
+            int quorum = StringUtil.strToInt(node.getChildText("quorum"), 0);
+            long peerTimeout = StringUtil.strToLong(node.getChildText("peertimeout"), 0);
+            Map<String, Integer> orgCounts = new HashMap<>();
+            for (XNode orgNode : node.getChildren("org")) {
+                String mspid = orgNode.getChildText("mspid");
+                int count = StringUtil.strToInt(orgNode.getChildText("count"), 1);
+                if (mspid != null) orgCounts.put(mspid, count);
+            }
+            _endorsementPolicy = new EndorsementPolicy(quorum, orgCounts, peerTimeout);
+        }
+    }
+
+    private void parseQueryCache(XNode node) {
+        if (node != null) {
+            _queryCacheSize = StringUtil.strToInt(node.getChildText("size"), 0);
+        }
+    }
+
+
+    // the top level channel and chaincode form the default target
+    private void parseTargets(XNode parent) {
+        _targets = new ArrayList<>();
+        _targets.add(new Target(ChaincodeTarget.DEFAULT_NAME, _channelName, _chainCodeName));
+        if (parent != null) {
+            for (XNode node : parent.getChildren()) {
+                String name = node.getChildText("name");
+                String channel = node.getChildText("channel");
+                String chaincode = node.getChildText("chaincode");
+                if (name == null || chaincode == null) {
+                    _logger.warn("Ignoring target with no name or chaincode in file '{}'.",
+                            PROPS_FILE_NAME);
+                    continue;
+                }
+                _targets.add(new Target(name, channel != null ? channel : _channelName,
+                        chaincode));
+            }
+        }
+    }
+
+
+    private void parseQueryRouting(XNode node) {
+        if (node != null) {
+            _queryRouting = "single".equalsIgnoreCase(node.getChildText("mode"));
+            _queryVerifyCount = StringUtil.strToInt(node.getChildText("verify"), 1);
+            _queryTimeout = StringUtil.strToLong(node.getChildText("timeout"), 0);
+            _queryRoutingAlpha = StringUtil.strToDouble(node.getChildText("alpha"), 0.2);
+        }
+    }
+
+
+    private void parseDispatch(XNode node) {
+        if (node != null) {
+            _dispatchCapacity = StringUtil.strToInt(node.getChildText("capacity"),
+                    YBlockListener.DEFAULT_CAPACITY);
+            _dispatchOverflow = node.getChildText("overflow");
+        }
+    }
+
+
+    private void parseChaincodeEvents(XNode node) {
+        if (node != null) {
+            _eventRetainCount = StringUtil.strToInt(node.getChildText("retain"), 1000);
+            _eventRetainMsecs = StringUtil.strToLong(node.getChildText("retainmsecs"),
+                    60000);
+        }
+    }
+
+
+    private void parseCheckpoint(XNode node) {
+        if (node != null) {
+            _checkpointing = "true".equalsIgnoreCase(node.getChildText("enabled"));
+            _checkpointFlushMsecs = StringUtil.strToLong(node.getChildText("flushmsecs"),
+                    1000);
+            _backfillThreads = Math.max(1, StringUtil.strToInt(
+                    node.getChildText("backfillthreads"), 4));
+        }
+    }
+
+
+    private void parseMirror(XNode node) {
+        if (node != null) {
+            _mirror = "true".equalsIgnoreCase(node.getChildText("enabled"));
+            String readFcn = node.getChildText("readfcn");
+            if (! StringUtil.isNullOrEmpty(readFcn)) _mirrorReadFcn = readFcn;
+            _mirrorFlushMsecs = StringUtil.strToLong(node.getChildText("flushmsecs"),
+                    1000);
+        }
+    }
+
+
+    private void parseHistory(XNode node) {
+        if (node != null) {
+            String fcn = node.getChildText("fcn");
+            if (! StringUtil.isNullOrEmpty(fcn)) _historyFcn = fcn;
+            String pageFcn = node.getChildText("pagefcn");
+            _historyPageFcn = StringUtil.isNullOrEmpty(pageFcn) ? null : pageFcn;
+            _historyPageSize = Math.max(1, StringUtil.strToInt(
+                    node.getChildText("pagesize"), 100));
+        }
+    }
+
+
+    private void parseCredentials(XNode node) {
+        if (node != null) {
+            String file = node.getChildText("file");
+            if (! StringUtil.isNullOrEmpty(file)) _credentialFile = file;
+            String password = node.getChildText("password");
+            if (! StringUtil.isNullOrEmpty(password)) _credentialPassword = password;
+            _eagerEnrolment = "true".equalsIgnoreCase(node.getChildText("eager"));
+            _enrolThreads = Math.max(1, StringUtil.strToInt(
+                    node.getChildText("threads"), 4));
+        }
+    }
+
+
+    private void parseResubmit(XNode node) {
+        if (node != null) {
+            _resubmitAttempts = Math.max(1, StringUtil.strToInt(
+                    node.getChildText("attempts"), _resubmitAttempts));
+            _resubmitBaseDelay = StringUtil.strToLong(node.getChildText("basedelay"), 50);
+            _resubmitMaxDelay = StringUtil.strToLong(node.getChildText("maxdelay"), 2000);
+            _resubmitBudgetRatio = StringUtil.strToDouble(
+                    node.getChildText("budgetratio"), 0.2);
+            _resubmitBudgetReserve = StringUtil.strToInt(
+                    node.getChildText("budgetreserve"), 100);
+        }
+    }
+
+
+    private void parseCoalesce(XNode node) {
+        if (node != null) {
+            _coalescing = "true".equalsIgnoreCase(node.getChildText("enabled"));
+            _coalesceWindowMsecs = StringUtil.strToLong(
+                    node.getChildText("windowmsecs"), 20);
+            _coalesceMaxBatch = StringUtil.strToInt(node.getChildText("maxbatch"), 100);
+        }
+    }
+
+
+    private void parseFunctions(XNode parent) {
+        _argSchemas = new LinkedHashMap<>();
+        if (parent != null) {
+            for (XNode node : parent.getChildren()) {
+                String name = node.getChildText("name");
+                if (StringUtil.isNullOrEmpty(name)) {
+                    _logger.warn("Ignoring function with no name in file '{}'.",
+                            PROPS_FILE_NAME);
+                    continue;
+                }
+                List<ArgSchema.Arg> args = new ArrayList<>();
+                for (XNode argNode : node.getChildren("arg")) {
+                    String argName = argNode.getChildText("name");
+                    ArgSchema.Type type = ArgSchema.Type.fromString(
+                            argNode.getChildText("type"));
+                    if (StringUtil.isNullOrEmpty(argName) || type == null) {
+                        _logger.warn("Ignoring argument of function '{}' with no name " +
+                                "or an unknown type in file '{}'.", name, PROPS_FILE_NAME);
+                        continue;
+                    }
+                    args.add(new ArgSchema.Arg(argName, type,
+                            "true".equalsIgnoreCase(argNode.getChildText("repeated")),
+                            "true".equalsIgnoreCase(argNode.getChildText("optional"))));
+                }
+                _argSchemas.put(name, new ArgSchema(name, args));
+            }
+        }
+    }
+
+
+    private void parsePayloadStore(XNode node) {
+        if (node != null) {
+            _payloadStore = "true".equalsIgnoreCase(node.getChildText("enabled"));
+            String dir = node.getChildText("dir");
+            if (! StringUtil.isNullOrEmpty(dir)) _payloadDir = dir;
+            _payloadMaxSize = StringUtil.strToLong(node.getChildText("maxsize"), 0);
+            String recordFcn = node.getChildText("recordfcn");
+            if (! StringUtil.isNullOrEmpty(recordFcn)) _payloadRecordFcn = recordFcn;
+        }
+    }
+
 
     protected class NameURLPair {
         String name;
@@ -153,6 +530,19 @@ public class Props {
     }
 
 
+    protected class Target {
+        String name;
+        String channel;
+        String chaincode;
+
+        Target(String name, String channel, String chaincode) {
+            this.name = name;
+            this.channel = channel;
+            this.chaincode = chaincode;
+        }
+    }
+
+
     protected class User {
         String id;
         String affiliation;
@@ -0,0 +1,296 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.yawlfoundation.yawl.fabric.event.KeyWrite;
+import org.yawlfoundation.yawl.fabric.event.WriteSetListener;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of chaincode query responses.
+ * <p>
+ * Each entry is indexed by the world state keys its query read, taken from the
+ * read set of the query's proposal response. An entry is invalidated when a
+ * committed block writes any of those keys. Queries that perform range reads, or
+ * that leave no read set (such as rich queries and key history), are never
+ * cached, since the keys their results depend on can't be known.
+ * <p>
+ * To give read-your-writes, the keys written by a transaction submitted through
+ * the owning HFInterface are marked pending from submission until the
+ * transaction's block is seen (or the transaction fails), and entries reading a
+ * pending key are neither served nor stored.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class QueryCache implements WriteSetListener {
+
+    private final String _namespace;             // the chaincode name
+    private final int _maxEntries;
+
+    private final LinkedHashMap<String, Entry> _entries;
+    private final Map<String, Set<String>> _keyIndex = new HashMap<>();  // key -> entries
+    private final Map<String, Integer> _pendingKeys = new HashMap<>();   // key -> tx count
+    private final Map<String, Set<String>> _pendingTxs = new HashMap<>(); // txid -> keys
+    private long _invalidationSeq;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+
+
+    public QueryCache(String namespace, int maxEntries) {
+        _namespace = namespace;
+        _maxEntries = maxEntries;
+        _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > _maxEntries) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * @return the cached responses for the query, or null if not cached
+     */
+    public synchronized Collection<ProposalResponse> get(String fcn, String[] args) {
+        Entry entry = _entries.get(toCacheKey(fcn, args));
+        if (entry == null || isPending(entry.keys)) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return entry.responses;
+    }
+
+
+    /**
+     * Gets a marker to be passed to a subsequent put, so that a query response
+     * that was in flight while a block invalidated cache entries isn't stored
+     */
+    public synchronized long getSequence() { return _invalidationSeq; }
+
+
+    /**
+     * Stores the responses to a query, if they are all successful and cacheable
+     * @param fcn the query function
+     * @param args the query arguments
+     * @param responses the responses to the query
+     * @param sequence the value of getSequence taken before the query was sent
+     */
+    public void put(String fcn, String[] args, Collection<ProposalResponse> responses,
+                    long sequence) {
+        Set<String> keys = getReadKeys(responses);
+        if (keys == null) return;                              // not cacheable
+        synchronized (this) {
+            if (sequence != _invalidationSeq || isPending(keys)) return;
+            String cacheKey = toCacheKey(fcn, args);
+            Entry previous = _entries.put(cacheKey, new Entry(responses, keys));
+            if (previous != null) unindex(cacheKey, previous);
+            for (String key : keys) {
+                _keyIndex.computeIfAbsent(key, k -> new HashSet<>()).add(cacheKey);
+            }
+        }
+    }
+
+
+    /**
+     * Marks the keys written by a submitted transaction as pending, invalidating
+     * any entries that read them
+     * @param txId the transaction id
+     * @param responses the endorsed responses submitted with the transaction
+     */
+    public void addPending(String txId, Collection<ProposalResponse> responses) {
+        Set<String> keys = getWriteKeys(responses);
+        if (keys.isEmpty()) return;
+        synchronized (this) {
+            _pendingTxs.put(txId, keys);
+            for (String key : keys) {
+                _pendingKeys.merge(key, 1, Integer::sum);
+            }
+            invalidate(keys);
+        }
+    }
+
+
+    /**
+     * Clears the pending status of a transaction's keys
+     * @param txId the transaction id
+     */
+    public synchronized void removePending(String txId) {
+        Set<String> keys = _pendingTxs.remove(txId);
+        if (keys != null) {
+            for (String key : keys) {
+                _pendingKeys.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+    }
+
+
+    @Override
+    public void writesReceived(long blockNumber, List<KeyWrite> writes) {
+        Set<String> keys = new HashSet<>();
+        Set<String> txIds = new HashSet<>();
+        for (KeyWrite write : writes) {
+            if (_namespace.equals(write.getNamespace())) {
+                keys.add(write.getKey());
+                txIds.add(write.getTxId());
+            }
+        }
+        if (keys.isEmpty()) return;
+        synchronized (this) {
+            invalidate(keys);
+            txIds.forEach(this::removePending);
+        }
+    }
+
+
+    public synchronized void clear() {
+        _entries.clear();
+        _keyIndex.clear();
+        _invalidationSeq++;
+    }
+
+
+    public synchronized int size() { return _entries.size(); }
+
+    public int getMaxEntries() { return _maxEntries; }
+
+    public long getHitCount() { return _hits.get(); }
+
+    public long getMissCount() { return _misses.get(); }
+
+    public long getInvalidationCount() { return _invalidations.get(); }
+
+
+    // must be called while holding the lock
+    private void invalidate(Set<String> keys) {
+        _invalidationSeq++;
+        for (String key : keys) {
+            Set<String> cacheKeys = _keyIndex.remove(key);
+            if (cacheKeys != null) {
+                for (String cacheKey : cacheKeys) {
+                    Entry entry = _entries.remove(cacheKey);
+                    if (entry != null) {
+                        unindex(cacheKey, entry);
+                        _invalidations.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+
+    // must be called while holding the lock
+    private void unindex(String cacheKey, Entry entry) {
+        for (String key : entry.keys) {
+            Set<String> cacheKeys = _keyIndex.get(key);
+            if (cacheKeys != null) {
+                cacheKeys.remove(cacheKey);
+                if (cacheKeys.isEmpty()) _keyIndex.remove(key);
+            }
+        }
+    }
+
+
+    // must be called while holding the lock
+    private boolean isPending(Set<String> keys) {
+        if (_pendingKeys.isEmpty()) return false;
+        for (String key : keys) {
+            if (_pendingKeys.containsKey(key)) return true;
+        }
+        return false;
+    }
+
+
+    // returns null if the responses can't be cached
+    private Set<String> getReadKeys(Collection<ProposalResponse> responses) {
+        if (responses.isEmpty()) return null;
+        Set<String> keys = new HashSet<>();
+        for (ProposalResponse response : responses) {
+            if (response.isInvalid() ||
+                    response.getStatus() != ChaincodeResponse.Status.SUCCESS) {
+                return null;
+            }
+            try {
+                for (KvRwset.KVRWSet rwset : getRwsets(response)) {
+                    if (rwset.getRangeQueriesInfoCount() > 0) return null;
+                    for (KvRwset.KVRead read : rwset.getReadsList()) {
+                        keys.add(read.getKey());
+                    }
+                }
+            }
+            catch (InvalidArgumentException | InvalidProtocolBufferException e) {
+                return null;
+            }
+        }
+        return keys.isEmpty() ? null : keys;
+    }
+
+
+    private Set<String> getWriteKeys(Collection<ProposalResponse> responses) {
+        Set<String> keys = new HashSet<>();
+        for (ProposalResponse response : responses) {
+            try {
+                for (KvRwset.KVRWSet rwset : getRwsets(response)) {
+                    for (KvRwset.KVWrite write : rwset.getWritesList()) {
+                        keys.add(write.getKey());
+                    }
+                }
+            }
+            catch (InvalidArgumentException | InvalidProtocolBufferException e) {
+                // no write set available from this response
+            }
+        }
+        return keys;
+    }
+
+
+    private List<KvRwset.KVRWSet> getRwsets(ProposalResponse response)
+            throws InvalidArgumentException, InvalidProtocolBufferException {
+        List<KvRwset.KVRWSet> rwsets = new ArrayList<>();
+        TxReadWriteSetInfo rwsetInfo = response.getChaincodeActionResponseReadWriteSetInfo();
+        if (rwsetInfo != null) {
+            for (TxReadWriteSetInfo.NsRwsetInfo nsInfo : rwsetInfo.getNsRwsetInfos()) {
+                if (_namespace.equals(nsInfo.getNamespace())) {
+                    rwsets.add(nsInfo.getRwset());
+                }
+            }
+        }
+        return rwsets;
+    }
+
+
+    private String toCacheKey(String fcn, String[] args) {
+        StringBuilder sb = new StringBuilder(fcn);
+        if (args != null) {
+            for (String arg : args) {
+                sb.append('\u0000').append(arg);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private static class Entry {
+        final Collection<ProposalResponse> responses;
+        final Set<String> keys;
+
+        Entry(Collection<ProposalResponse> responses, Set<String> keys) {
+            this.responses = responses;
+            this.keys = keys;
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resubmits transactions that fail validation because of a read conflict with a
+ * concurrent transaction (MVCC_READ_CONFLICT or PHANTOM_READ_CONFLICT). Such a
+ * transaction has no effect on the ledger, so it is safe to endorse and submit it
+ * again, as a new transaction, against the updated world state. All other
+ * failures are passed straight back to the caller.
+ * <p>
+ * Resubmissions are delayed by a random backoff (full jitter, doubling with each
+ * attempt), so that conflicting clients don't collide again in the next block.
+ * They are also limited by a retry budget: each new transaction adds a fraction of
+ * a retry to the budget, up to a reserve, and each resubmission spends one. Under
+ * sustained contention the budget runs out, and conflicts are then failed at once
+ * rather than multiplying the load on the network.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class Resubmitter {
+
+    public static final String OTHER_KEYS = "*";
+    private static final int MAX_KEYS = 10000;        // keys with their own stats
+
+    private final int _maxAttempts;
+    private final long _baseDelay;                    // msecs
+    private final long _maxDelay;                     // msecs
+    private final double _budgetRatio;
+    private final double _budgetReserve;
+    private double _budget;
+
+    private final Map<String, KeyStats> _stats = new ConcurrentHashMap<>();
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    /**
+     * @param maxAttempts the maximum number of submissions of a transaction
+     * @param baseDelay the maximum backoff, in msecs, before the first resubmission
+     * @param maxDelay the maximum backoff, in msecs, before any resubmission
+     * @param budgetRatio the number of resubmissions earned by each new transaction
+     * @param budgetReserve the maximum number of resubmissions that may be saved up
+     */
+    public Resubmitter(int maxAttempts, long baseDelay, long maxDelay,
+                       double budgetRatio, int budgetReserve) {
+        _maxAttempts = Math.max(1, maxAttempts);
+        _baseDelay = Math.max(1, baseDelay);
+        _maxDelay = Math.max(_baseDelay, maxDelay);
+        _budgetRatio = Math.max(0, budgetRatio);
+        _budgetReserve = Math.max(0, budgetReserve);
+        _budget = _budgetReserve;
+    }
+
+
+    /**
+     * Something that endorses a transaction and submits it for ordering. Each
+     * call must build a new proposal, so that each submission is a new transaction.
+     */
+    public interface Submission {
+        CompletableFuture<BlockEvent.TransactionEvent> submit()
+                throws ProposalException, InvalidArgumentException;
+    }
+
+
+    /**
+     * Submits a transaction, resubmitting it if it fails validation with a read
+     * conflict. The first submission is made on the caller's thread, so that its
+     * proposal errors are thrown directly; resubmissions are made on the executor.
+     * @param key the key the transaction writes, for its statistics
+     * @param submission makes each submission
+     * @param executor the executor to make resubmissions on
+     * @return a future completed when a submission has committed, or exceptionally
+     * when one has failed and won't be resubmitted
+     */
+    public CompletableFuture<BlockEvent.TransactionEvent> submit(String key,
+            Submission submission, Executor executor)
+            throws ProposalException, InvalidArgumentException {
+        KeyStats stats = getOrCreateStats(key);
+        stats._submitted.increment();
+        deposit();
+        CompletableFuture<BlockEvent.TransactionEvent> result = new CompletableFuture<>();
+        try {
+            watch(submission.submit(), key, stats, submission, executor, 1, result);
+        }
+        catch (ProposalException | InvalidArgumentException | RuntimeException e) {
+            stats._failed.increment();
+            throw e;
+        }
+        return result;
+    }
+
+
+    /**
+     * @param ex the exception a submission failed with
+     * @return the transaction's validation code, or null if the transaction failed
+     * before being validated
+     */
+    public static TxValidationCode getValidationCode(Throwable ex) {
+        ex = Futures.unwrap(ex);
+        if (ex instanceof TransactionEventException) {
+            BlockEvent.TransactionEvent event =
+                    ((TransactionEventException) ex).getTransactionEvent();
+            if (event != null) return getValidationCode(event);
+        }
+        return null;
+    }
+
+
+    public static TxValidationCode getValidationCode(BlockEvent.TransactionEvent event) {
+        TxValidationCode code = TxValidationCode.forNumber(event.getValidationCode());
+        return code != null ? code : TxValidationCode.UNRECOGNIZED;
+    }
+
+
+    /**
+     * @param code a validation code
+     * @return true if a transaction invalidated with the code may be resubmitted
+     */
+    public static boolean isRetryable(TxValidationCode code) {
+        return code == TxValidationCode.MVCC_READ_CONFLICT ||
+                code == TxValidationCode.PHANTOM_READ_CONFLICT;
+    }
+
+
+    /**
+     * @return the statistics of each key, by key; keys beyond the first 10000 are
+     * counted together under OTHER_KEYS
+     */
+    public Map<String, KeyStats> getStats() { return Collections.unmodifiableMap(_stats); }
+
+
+    public KeyStats getStats(String key) { return _stats.get(key); }
+
+
+    public synchronized double getBudget() { return _budget; }
+
+
+    private void watch(CompletableFuture<BlockEvent.TransactionEvent> future, String key,
+                       KeyStats stats, Submission submission, Executor executor,
+                       int attempt, CompletableFuture<BlockEvent.TransactionEvent> result) {
+        future.whenComplete((event, ex) -> {
+            if (ex == null && event.isValid()) {
+                stats._committed.increment();
+                result.complete(event);
+                return;
+            }
+            TxValidationCode code = ex != null ? getValidationCode(ex) :
+                    getValidationCode(event);
+            Throwable failure = ex != null ? Futures.unwrap(ex) :
+                    new TransactionEventException("Transaction " +
+                            event.getTransactionID() + " was invalid: " + code, event);
+            if (! isRetryable(code)) {
+                stats._failed.increment();
+                result.completeExceptionally(failure);
+                return;
+            }
+            stats._conflicts.increment();
+            if (attempt >= _maxAttempts || ! withdraw()) {
+                stats._exhausted.increment();
+                _logger.debug("Not resubmitting transaction for key '{}' after {} " +
+                        "attempt(s): {}", key, attempt, code);
+                result.completeExceptionally(failure);
+                return;
+            }
+            stats._resubmitted.increment();
+            Futures.schedule(() -> executor.execute(() -> {
+                try {
+                    watch(submission.submit(), key, stats, submission, executor,
+                            attempt + 1, result);
+                }
+                catch (Exception e) {
+                    stats._failed.increment();
+                    result.completeExceptionally(e);
+                }
+            }), backoff(attempt), TimeUnit.MILLISECONDS);
+        });
+    }
+
+
+    // a random delay of up to base * 2^(attempt-1), capped at the maximum
+    private long backoff(int attempt) {
+        long ceiling = _baseDelay << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > _maxDelay) ceiling = _maxDelay;
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+
+    private synchronized void deposit() {
+        _budget = Math.min(_budgetReserve, _budget + _budgetRatio);
+    }
+
+
+    private synchronized boolean withdraw() {
+        if (_budget < 1) return false;
+        _budget -= 1;
+        return true;
+    }
+
+
+    private KeyStats getOrCreateStats(String key) {
+        if (key == null) key = OTHER_KEYS;
+        KeyStats stats = _stats.get(key);
+        if (stats == null) {
+            if (_stats.size() >= MAX_KEYS) key = OTHER_KEYS;
+            stats = _stats.computeIfAbsent(key, k -> new KeyStats());
+        }
+        return stats;
+    }
+
+
+    /**
+     * Counts of the transactions submitted for a key and their outcomes
+     */
+    public static class KeyStats {
+        private final LongAdder _submitted = new LongAdder();
+        private final LongAdder _committed = new LongAdder();
+        private final LongAdder _conflicts = new LongAdder();
+        private final LongAdder _resubmitted = new LongAdder();
+        private final LongAdder _exhausted = new LongAdder();
+        private final LongAdder _failed = new LongAdder();
+
+        public long getSubmittedCount() { return _submitted.sum(); }
+
+        public long getCommittedCount() { return _committed.sum(); }
+
+        public long getConflictCount() { return _conflicts.sum(); }
+
+        public long getResubmittedCount() { return _resubmitted.sum(); }
+
+        // conflicts not resubmitted because of the attempt limit or retry budget
+        public long getExhaustedCount() { return _exhausted.sum(); }
+
+        public long getFailedCount() { return _failed.sum(); }
+
+        // conflicts per submission, including resubmissions
+        public double getConflictRate() {
+            long submissions = getSubmittedCount() + getResubmittedCount();
+            return submissions > 0 ? (double) getConflictCount() / submissions : 0;
+        }
+
+        // resubmissions per transaction
+        public double getRetryRate() {
+            long submitted = getSubmittedCount();
+            return submitted > 0 ? (double) getResubmittedCount() / submitted : 0;
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Holds the single HFInterface shared by the service and the gateway servlet of a
+ * webapp (a webapp's classes are loaded by its own class loader, so each webapp
+ * has its own). The instance is created in the background when first acquired,
+ * so that webapp startup isn't held by CA enrolment and channel initialisation,
+ * and is closed when the last holder releases it. A failed initialisation is
+ * retried on a later request, at most once per retry interval.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public final class SharedHFInterface {
+
+    private static final long RETRY_MSECS = 10000;
+
+    private static CompletableFuture<HFInterface> _ready;     // null = not started
+    private static int _references;
+    private static long _failedAt;
+
+    private static final Logger _logger = LogManager.getLogger(SharedHFInterface.class);
+
+
+    private SharedHFInterface() { }
+
+
+    /**
+     * Adds a reference to the shared instance, starting its initialisation if
+     * it isn't already started
+     * @return a future completed with the instance when it is ready
+     */
+    public static synchronized CompletableFuture<HFInterface> acquire() {
+        _references++;
+        return getReady();
+    }
+
+
+    /**
+     * Removes a reference to the shared instance. The instance is closed when its
+     * last reference is removed, or when its initialisation completes if that is
+     * still in progress.
+     */
+    public static synchronized void release() {
+        if (_references == 0 || --_references > 0) return;
+        CompletableFuture<HFInterface> ready = _ready;
+        _ready = null;
+        if (ready != null) ready.thenAccept(HFInterface::close);
+    }
+
+
+    /**
+     * @return a future completed with the shared instance when it is ready
+     * @throws IllegalStateException if the instance hasn't been acquired
+     */
+    public static synchronized CompletableFuture<HFInterface> getReady() {
+        if (_references == 0) {
+            throw new IllegalStateException("Shared HFInterface has not been acquired");
+        }
+        if (_ready == null || (_ready.isCompletedExceptionally() &&
+                System.currentTimeMillis() - _failedAt >= RETRY_MSECS)) {
+            _ready = initialise();
+        }
+        return _ready;
+    }
+
+
+    /**
+     * Gets the shared instance, waiting for it to be ready
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return the instance
+     * @throws TimeoutException if the instance isn't ready in time
+     * @throws ExecutionException if the instance failed to initialise
+     */
+    public static HFInterface get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return getReady().get(timeout, unit);
+    }
+
+
+    public static synchronized boolean isReady() {
+        return _ready != null && _ready.isDone() && ! _ready.isCompletedExceptionally();
+    }
+
+
+    private static CompletableFuture<HFInterface> initialise() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                HFInterface client = new HFInterface();
+                if (client.getTargets().isEmpty()) {
+                    client.close();
+                    throw new IllegalStateException("No channel targets could be initialised");
+                }
+                _logger.info("Shared HFInterface is ready");
+                return client;
+            }
+            catch (RuntimeException e) {
+                synchronized (SharedHFInterface.class) {
+                    _failedAt = System.currentTimeMillis();
+                }
+                _logger.error("Shared HFInterface failed to initialise", e);
+                throw e;
+            }
+        }, r -> {
+            Thread t = new Thread(r, "hf-init");
+            t.setDaemon(true);
+            t.start();
+        });
+    }
+
+}
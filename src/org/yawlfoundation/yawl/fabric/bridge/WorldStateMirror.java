@@ -0,0 +1,430 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.yawlfoundation.yawl.fabric.event.BlockCheckpoint;
+import org.yawlfoundation.yawl.fabric.event.KeyWrite;
+import org.yawlfoundation.yawl.fabric.event.WriteSetListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A local copy of a chaincode's world state, built from the write sets of the
+ * blocks received from its channel, so that point reads of a key can be served
+ * without a round trip to a peer.
+ * <p>
+ * Writes are appended to a log of memory-mapped segments, and each key is indexed
+ * in an off-heap hash table by the position of its latest write, so neither keys
+ * nor values are held on the heap. The mirror's height (the last block applied)
+ * is written to its checkpoint only when the log is flushed, after the log has
+ * been forced to disk, so the checkpointed height never covers writes that may
+ * not have reached the disk. On restart any writes beyond it are discarded, and
+ * the blocks since it are treated as missed, clearing the mirror, unless they
+ * are delivered again.
+ * <p>
+ * The mirror only holds keys written since it was created, and is cleared if a
+ * block is ever missed, so a key it holds is always current as of its height.
+ * A key it doesn't hold must be read from a peer.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class WorldStateMirror implements WriteSetListener, Closeable {
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int HEADER_SIZE = 16;       // key len, value len, block
+    private static final int END = 0;                // key len marking the log's end
+    private static final int SKIP = -1;              // key len marking a segment's end
+    private static final int DELETED = -1;           // value len of a deleted key
+    private static final int SLOT_SIZE = 16;         // key hash, record position
+    private static final int INITIAL_SLOTS = 1 << 16;
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private final String _namespace;                 // the chaincode name
+    private final Path _path;
+    private final FileChannel _file;
+    private final List<MappedByteBuffer> _segments = new ArrayList<>();
+    private final BlockCheckpoint _height;           // as of the last flush
+    private volatile long _applied;                  // the last block applied
+    private final long _flushNanos;
+    private long _lastFlush = System.nanoTime();
+    private long _flushedTail;
+    private long _tail;                              // position of the end marker
+
+    private ByteBuffer _index;
+    private int _indexMask;
+    private int _keyCount;
+
+    private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _resets = new AtomicLong();
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    /**
+     * @param namespace the name of the chaincode to mirror
+     * @param path the log file, created if it doesn't exist; the height checkpoint
+     *             is kept alongside it
+     * @param flushMsecs the maximum interval between forcing updates to disk
+     */
+    public WorldStateMirror(String namespace, Path path, long flushMsecs)
+            throws IOException {
+        _namespace = namespace;
+        _path = path;
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        _file = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _height = new BlockCheckpoint(Paths.get(path + ".height"), -1);
+        _flushNanos = flushMsecs * 1_000_000L;
+        newIndex(INITIAL_SLOTS);
+        load();
+        _applied = _height.get();
+    }
+
+
+    /**
+     * @return the number of the last block applied, or -1 if none has been
+     */
+    public long getHeight() { return _applied; }
+
+
+    /**
+     * @param key a world state key
+     * @return the key's current value, or null if the mirror doesn't hold the key
+     */
+    public byte[] get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        _lock.readLock().lock();
+        try {
+            long pos = find(hash(keyBytes), keyBytes);
+            byte[] value = pos > -1 ? readValue(pos) : null;
+            (value != null ? _hits : _misses).incrementAndGet();
+            return value;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @param key a world state key
+     * @param minBlock the lowest acceptable height for the mirror
+     * @return the key's current value, or null if the mirror doesn't hold the key
+     * or is not yet at the required height
+     */
+    public byte[] get(String key, long minBlock) {
+        if (getHeight() < minBlock) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        return get(key);
+    }
+
+
+    // called by one thread at a time, in block order
+    @Override
+    public void writesReceived(long blockNumber, List<KeyWrite> writes) {
+        long height = _applied;
+        if (blockNumber <= height) return;                         // already applied
+        _lock.writeLock().lock();
+        try {
+            if (height != BlockCheckpoint.NONE && blockNumber != height + 1) {
+                _logger.warn("Block(s) {} to {} missed by world state mirror of '{}'; " +
+                        "clearing it", height + 1, blockNumber - 1, _namespace);
+                reset();
+            }
+            for (KeyWrite write : writes) {
+                if (_namespace.equals(write.getNamespace()) && ! write.getKey().isEmpty()) {
+                    append(write, blockNumber);
+                }
+            }
+        }
+        catch (IOException ioe) {
+            _logger.error("Failed to update world state mirror of '" + _namespace + "'",
+                    ioe);
+            return;
+        }
+        finally {
+            _lock.writeLock().unlock();
+        }
+
+        // readers aren't held up while the log is forced
+        _applied = blockNumber;
+        long now = System.nanoTime();
+        if (now - _lastFlush >= _flushNanos) flush(now);
+    }
+
+
+    /**
+     * @return the number of keys held, including deleted keys
+     */
+    public int getKeyCount() {
+        _lock.readLock().lock();
+        try {
+            return _keyCount;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the size of the log, in bytes
+     */
+    public long getLogSize() {
+        _lock.readLock().lock();
+        try {
+            return _tail;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    public String getNamespace() { return _namespace; }
+
+    public long getHitCount() { return _hits.get(); }
+
+    public long getMissCount() { return _misses.get(); }
+
+    public long getResetCount() { return _resets.get(); }
+
+
+    @Override
+    public void close() throws IOException {
+        _lock.writeLock().lock();
+        try {
+            flush(System.nanoTime());
+            _height.close();
+            _file.close();
+        }
+        finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+
+    // rebuilds the index from the log, discarding writes beyond the height
+    private void load() throws IOException {
+        long height = _height.get();
+        long pos = 0;
+        while (true) {
+            ByteBuffer segment = segment(pos);
+            int offset = offset(pos);
+            int keyLen = segment.getInt(offset);
+            if (keyLen == SKIP) {
+                pos = nextSegment(pos);
+                continue;
+            }
+            if (keyLen <= END) break;
+            int valueLen = segment.getInt(offset + 4);
+            long block = segment.getLong(offset + 8);
+            int length = HEADER_SIZE + keyLen + Math.max(0, valueLen);
+            if (block > height || offset + length + 4 > SEGMENT_SIZE) break;
+            byte[] key = new byte[keyLen];
+            read(segment, offset + HEADER_SIZE, key);
+            index(hash(key), key, pos);
+            pos += length;
+        }
+        _tail = pos;
+        _flushedTail = pos;
+        segment(pos).putInt(offset(pos), END);
+        _logger.info("Loaded world state mirror of '{}' at block {}: {} keys",
+                _namespace, height, _keyCount);
+    }
+
+
+    // must be called while holding the write lock
+    private void append(KeyWrite write, long blockNumber) throws IOException {
+        byte[] key = write.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] value = write.isDelete() ? null : write.getValue();
+        int length = HEADER_SIZE + key.length + (value != null ? value.length : 0);
+        if (length + 4 > SEGMENT_SIZE) {
+            _logger.warn("Value of key '{}' is too large to mirror", write.getKey());
+            value = null;                  // recorded as deleted, so read from a peer
+            length = HEADER_SIZE + key.length;
+        }
+        if (offset(_tail) + length + 4 > SEGMENT_SIZE) {
+            long next = nextSegment(_tail);
+            segment(next).putInt(0, END);
+            segment(_tail).putInt(offset(_tail), SKIP);
+            _tail = next;
+        }
+
+        // the key length is written last, so a partial record reads as the end
+        ByteBuffer segment = segment(_tail);
+        int offset = offset(_tail);
+        segment.putInt(offset + length, END);
+        segment.putInt(offset + 4, value != null ? value.length : DELETED);
+        segment.putLong(offset + 8, blockNumber);
+        ByteBuffer dup = segment.duplicate();
+        dup.position(offset + HEADER_SIZE);
+        dup.put(key);
+        if (value != null) dup.put(value);
+        segment.putInt(offset, key.length);
+        index(hash(key), key, _tail);
+        _tail += length;
+    }
+
+
+    // must be called while holding the write lock
+    private void reset() throws IOException {
+        _resets.incrementAndGet();
+        newIndex(INITIAL_SLOTS);
+        _tail = 0;
+        _flushedTail = 0;
+        segment(0).putInt(0, END);
+    }
+
+
+    // forces the log to disk, then records and forces the height, so the height is
+    // never written ahead of the log
+    private void flush(long now) {
+        int first = (int) (_flushedTail / SEGMENT_SIZE);
+        int last = (int) (_tail / SEGMENT_SIZE);
+        for (int i = first; i <= last && i < _segments.size(); i++) {
+            _segments.get(i).force();
+        }
+        _height.set(_applied);
+        _height.force();
+        _flushedTail = _tail;
+        _lastFlush = now;
+    }
+
+
+    private byte[] readValue(long pos) {
+        ByteBuffer segment = _segments.get((int) (pos / SEGMENT_SIZE));
+        int offset = offset(pos);
+        int valueLen = segment.getInt(offset + 4);
+        if (valueLen == DELETED) return null;
+        byte[] value = new byte[valueLen];
+        read(segment, offset + HEADER_SIZE + segment.getInt(offset), value);
+        return value;
+    }
+
+
+    private void read(ByteBuffer segment, int offset, byte[] dest) {
+        ByteBuffer dup = segment.duplicate();
+        dup.position(offset);
+        dup.get(dest);
+    }
+
+
+    private boolean keyEquals(long pos, byte[] key) {
+        ByteBuffer segment = _segments.get((int) (pos / SEGMENT_SIZE));
+        int offset = offset(pos);
+        if (segment.getInt(offset) != key.length) return false;
+        offset += HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (segment.get(offset + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+
+    // returns the log position of the key's latest write, or -1 if not indexed
+    private long find(long hash, byte[] key) {
+        int slot = (int) hash & _indexMask;
+        while (true) {
+            long slotHash = _index.getLong(slot * SLOT_SIZE);
+            if (slotHash == 0) return -1;
+            if (slotHash == hash) {
+                long pos = _index.getLong(slot * SLOT_SIZE + 8);
+                if (keyEquals(pos, key)) return pos;
+            }
+            slot = (slot + 1) & _indexMask;
+        }
+    }
+
+
+    private void index(long hash, byte[] key, long pos) throws IOException {
+        int slot = (int) hash & _indexMask;
+        while (true) {
+            long slotHash = _index.getLong(slot * SLOT_SIZE);
+            if (slotHash == 0) break;
+            if (slotHash == hash && keyEquals(_index.getLong(slot * SLOT_SIZE + 8), key)) {
+                _index.putLong(slot * SLOT_SIZE + 8, pos);          // replace
+                return;
+            }
+            slot = (slot + 1) & _indexMask;
+        }
+        _index.putLong(slot * SLOT_SIZE, hash);
+        _index.putLong(slot * SLOT_SIZE + 8, pos);
+        if (++_keyCount > (_indexMask + 1) * 0.7) growIndex();
+    }
+
+
+    private void growIndex() throws IOException {
+        int slots = (_indexMask + 1) * 2;
+        if (slots > MAX_SLOTS) throw new IOException("World state mirror index is full");
+        ByteBuffer old = _index;
+        int oldSlots = _indexMask + 1;
+        newIndex(slots);
+        for (int i = 0; i < oldSlots; i++) {
+            long hash = old.getLong(i * SLOT_SIZE);
+            if (hash == 0) continue;
+            int slot = (int) hash & _indexMask;
+            while (_index.getLong(slot * SLOT_SIZE) != 0) {
+                slot = (slot + 1) & _indexMask;
+            }
+            _index.putLong(slot * SLOT_SIZE, hash);
+            _index.putLong(slot * SLOT_SIZE + 8, old.getLong(i * SLOT_SIZE + 8));
+            _keyCount++;
+        }
+    }
+
+
+    private void newIndex(int slots) {
+        _index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        _indexMask = slots - 1;
+        _keyCount = 0;
+    }
+
+
+    // maps segments as required
+    private MappedByteBuffer segment(long pos) throws IOException {
+        int i = (int) (pos / SEGMENT_SIZE);
+        while (_segments.size() <= i) {
+            _segments.add(_file.map(FileChannel.MapMode.READ_WRITE,
+                    (long) _segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+        }
+        return _segments.get(i);
+    }
+
+
+    private int offset(long pos) { return (int) (pos % SEGMENT_SIZE); }
+
+    private long nextSegment(long pos) { return (pos / SEGMENT_SIZE + 1) * SEGMENT_SIZE; }
+
+
+    // a 64 bit FNV-1a hash, finished with a mix step; 0 marks an empty slot
+    private long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+}
@@ -0,0 +1,208 @@
+package org.yawlfoundation.yawl.fabric.bridge;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Merges increments to the same key into a single transaction. The first increment
+ * to a key opens a batch, which is submitted when its time window closes or it
+ * reaches its maximum size, whichever is first; the increments in the batch are
+ * summed, argument by argument, and submitted as one invocation of the function
+ * with the key and the sums. Each caller's future is completed with the outcome
+ * of the combined transaction.
+ * <p>
+ * This is only correct for functions that add their numeric arguments to the
+ * values stored under the key, such as the sales function "invoke(bundle,
+ * quantity, total)".
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class WriteCoalescer {
+
+    /**
+     * Submits a combined transaction
+     */
+    public interface Sink {
+        CompletableFuture<BlockEvent.TransactionEvent> invoke(String fcn, String... args);
+    }
+
+    private final Sink _sink;
+    private final long _windowMsecs;
+    private final int _maxBatch;
+
+    private final Map<String, Batch> _batches = new HashMap<>();   // fcn + key -> batch
+    private boolean _closed;
+
+    private final LongAdder _added = new LongAdder();
+    private final LongAdder _submitted = new LongAdder();
+
+
+    /**
+     * @param sink submits the combined transactions
+     * @param windowMsecs the maximum time an increment waits for others to the key
+     * @param maxBatch the maximum number of increments combined in a transaction
+     */
+    public WriteCoalescer(Sink sink, long windowMsecs, int maxBatch) {
+        _sink = sink;
+        _windowMsecs = Math.max(0, windowMsecs);
+        _maxBatch = Math.max(1, maxBatch);
+    }
+
+
+    /**
+     * Adds an increment to a key
+     * @param fcn the function to invoke, optionally prefixed by a target name
+     * @param key the key to increment
+     * @param increments the numeric amounts to add
+     * @return a future completed with the outcome of the transaction the increment
+     * is combined into
+     * @throws IllegalArgumentException if an increment isn't a number
+     * @throws IllegalStateException if the coalescer has been closed
+     */
+    public CompletableFuture<BlockEvent.TransactionEvent> add(String fcn, String key,
+                                                             String... increments) {
+        BigDecimal[] values = new BigDecimal[increments.length];
+        for (int i = 0; i < increments.length; i++) {
+            try {
+                values[i] = new BigDecimal(increments[i].trim());
+            }
+            catch (NumberFormatException | NullPointerException e) {
+                throw new IllegalArgumentException("Not a numeric increment: " +
+                        increments[i]);
+            }
+        }
+
+        CompletableFuture<BlockEvent.TransactionEvent> future = new CompletableFuture<>();
+        String id = fcn + '\u0000' + key;
+        Batch ready = null, mismatched = null;
+        synchronized (_batches) {
+            if (_closed) throw new IllegalStateException("Write coalescer is closed");
+            Batch batch = _batches.get(id);
+            if (batch != null && batch.sums.length != values.length) {
+                mismatched = batch;                        // can't merge, so send it
+                _batches.remove(id);
+                batch.timer.cancel(false);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(fcn, key, values.length);
+                _batches.put(id, batch);
+                Batch opened = batch;
+                batch.timer = Futures.schedule(() -> expire(id, opened), _windowMsecs,
+                        TimeUnit.MILLISECONDS);
+            }
+            batch.add(values, future);
+            if (batch.waiters.size() >= _maxBatch) {
+                ready = batch;
+                _batches.remove(id);
+                batch.timer.cancel(false);
+            }
+        }
+        _added.increment();
+        if (mismatched != null) submit(mismatched);
+        if (ready != null) submit(ready);
+        return future;
+    }
+
+
+    public long getAddedCount() { return _added.sum(); }
+
+    public long getSubmittedCount() { return _submitted.sum(); }
+
+    public int getOpenBatchCount() {
+        synchronized (_batches) {
+            return _batches.size();
+        }
+    }
+
+
+    /**
+     * Submits all open batches, and refuses further increments
+     * @return the outcomes of the transactions submitted, which must be waited
+     * for before the channels they were submitted on are shut down
+     */
+    public List<CompletableFuture<BlockEvent.TransactionEvent>> close() {
+        List<Batch> open;
+        synchronized (_batches) {
+            _closed = true;
+            open = new ArrayList<>(_batches.values());
+            _batches.clear();
+        }
+        List<CompletableFuture<BlockEvent.TransactionEvent>> flushed = new ArrayList<>();
+        for (Batch batch : open) {
+            batch.timer.cancel(false);
+            flushed.add(submit(batch));
+        }
+        return flushed;
+    }
+
+
+    private void expire(String id, Batch batch) {
+        synchronized (_batches) {
+            if (! _batches.remove(id, batch)) return;      // already submitted
+        }
+        submit(batch);
+    }
+
+
+    private CompletableFuture<BlockEvent.TransactionEvent> submit(Batch batch) {
+        _submitted.increment();
+        String[] args = new String[batch.sums.length + 1];
+        args[0] = batch.key;
+        for (int i = 0; i < batch.sums.length; i++) {
+            args[i + 1] = batch.sums[i].toPlainString();
+        }
+        CompletableFuture<BlockEvent.TransactionEvent> result;
+        try {
+            result = _sink.invoke(batch.fcn, args);
+        }
+        catch (RuntimeException e) {
+            batch.waiters.forEach(waiter -> waiter.completeExceptionally(e));
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+        result.whenComplete((event, ex) -> batch.waiters.forEach(waiter -> {
+            if (ex != null) {
+                waiter.completeExceptionally(Futures.unwrap(ex));
+            }
+            else {
+                waiter.complete(event);
+            }
+        }));
+        return result;
+    }
+
+
+    private static class Batch {
+        final String fcn;
+        final String key;
+        final BigDecimal[] sums;
+        final List<CompletableFuture<BlockEvent.TransactionEvent>> waiters =
+                new ArrayList<>();
+        ScheduledFuture<?> timer;
+
+        Batch(String fcn, String key, int arity) {
+            this.fcn = fcn;
+            this.key = key;
+            sums = new BigDecimal[arity];
+            for (int i = 0; i < arity; i++) sums[i] = BigDecimal.ZERO;
+        }
+
+        void add(BigDecimal[] values, CompletableFuture<BlockEvent.TransactionEvent> waiter) {
+            for (int i = 0; i < values.length; i++) sums[i] = sums[i].add(values[i]);
+            waiters.add(waiter);
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package org.yawlfoundation.yawl.fabric.event;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The number of the last block fully dispatched from a channel, kept in a small
+ * memory-mapped file. Each update is a write to the mapped page, so it survives a
+ * process crash at no cost; the page is forced to disk at most once per flush
+ * interval, to also survive a system crash.
+ * <p>
+ * The block number is stored with its bitwise complement, so that a torn or
+ * corrupt file is detected and treated as having no checkpoint.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class BlockCheckpoint implements Closeable {
+
+    public static final long NONE = -1;
+
+    private static final int SIZE = 16;
+
+    private final Path _path;
+    private final FileChannel _file;
+    private final MappedByteBuffer _buffer;
+    private final long _flushNanos;
+    private long _lastFlush = System.nanoTime();
+    private long _blockNumber;
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    /**
+     * @param path the checkpoint file, created if it doesn't exist
+     * @param flushMsecs the maximum interval between forcing updates to disk, or
+     *                   -1 to force them only when force() is called
+     */
+    public BlockCheckpoint(Path path, long flushMsecs) throws IOException {
+        _path = path;
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        _file = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _buffer = _file.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        _flushNanos = flushMsecs < 0 ? Long.MAX_VALUE : flushMsecs * 1_000_000L;
+        _blockNumber = read();
+    }
+
+
+    /**
+     * @return the checkpointed block number, or NONE if there isn't one
+     */
+    public synchronized long get() { return _blockNumber; }
+
+
+    /**
+     * Records a block as fully dispatched
+     * @param blockNumber the block's number
+     */
+    public synchronized void set(long blockNumber) {
+        if (blockNumber <= _blockNumber) return;
+        _blockNumber = blockNumber;
+        _buffer.putLong(0, blockNumber);
+        _buffer.putLong(8, ~blockNumber);
+        long now = System.nanoTime();
+        if (now - _lastFlush >= _flushNanos) {
+            _buffer.force();
+            _lastFlush = now;
+        }
+    }
+
+
+    /**
+     * Forces the checkpoint to disk
+     */
+    public synchronized void force() {
+        _buffer.force();
+        _lastFlush = System.nanoTime();
+    }
+
+
+    public Path getPath() { return _path; }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        _buffer.force();
+        _file.close();
+    }
+
+
+    private long read() {
+        long blockNumber = _buffer.getLong(0);
+        long check = _buffer.getLong(8);
+        if (blockNumber == 0 && check == 0) return NONE;           // new file
+        if (check != ~blockNumber || blockNumber < 0) {
+            _logger.warn("Ignoring corrupt block checkpoint in {}", _path);
+            return NONE;
+        }
+        return blockNumber;
+    }
+
+}
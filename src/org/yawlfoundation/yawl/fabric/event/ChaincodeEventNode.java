@@ -2,28 +2,53 @@ package org.yawlfoundation.yawl.fabric.event;
 
 import org.hyperledger.fabric.sdk.BlockEvent;
 import org.hyperledger.fabric.sdk.ChaincodeEvent;
+import org.hyperledger.fabric.sdk.Peer;
 
 /**
+ * The content of a received chaincode event. Only the event's own fields are
+ * copied, so that the block it arrived in can be collected.
+ *
  * @author Michael Adams
  * @date 2018-11-27
  */
 public class ChaincodeEventNode {
     private final String _handle;
-    private final BlockEvent _blockEvent;
-    private final ChaincodeEvent _chaincodeEvent;
+    private final String _txId;
+    private final String _eventName;
+    private final String _chaincodeId;
+    private final byte[] _payload;
+    private final long _blockNumber;
+    private final String _peerName;
+    private final long _receivedNanos;
 
 
     public ChaincodeEventNode(String handle, BlockEvent blockEvent,
                               ChaincodeEvent chaincodeEvent) {
         _handle = handle;
-        _blockEvent = blockEvent;
-        _chaincodeEvent = chaincodeEvent;
+        _txId = chaincodeEvent.getTxId();
+        _eventName = chaincodeEvent.getEventName();
+        _chaincodeId = chaincodeEvent.getChaincodeId();
+        _payload = chaincodeEvent.getPayload();
+        _blockNumber = blockEvent.getBlockNumber();
+        Peer peer = blockEvent.getPeer();
+        _peerName = peer != null ? peer.getName() : null;
+        _receivedNanos = System.nanoTime();
     }
 
 
     public String getHandle() { return _handle; }
 
-    public BlockEvent getBlockEvent() { return _blockEvent; }
+    public String getTxId() { return _txId; }
 
-    public ChaincodeEvent getChaincodeEvent() { return _chaincodeEvent; }
+    public String getEventName() { return _eventName; }
+
+    public String getChaincodeId() { return _chaincodeId; }
+
+    public byte[] getPayload() { return _payload; }
+
+    public long getBlockNumber() { return _blockNumber; }
+
+    public String getPeerName() { return _peerName; }
+
+    public long getReceivedNanos() { return _receivedNanos; }
 }
@@ -0,0 +1,298 @@
+package org.yawlfoundation.yawl.fabric.event;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Matches received chaincode events to the callers waiting for them. A caller
+ * registers interest in a transaction id or an event name and gets a future that
+ * completes when a matching event arrives, or fails with a TimeoutException.
+ * <p>
+ * An event that arrives before anyone is waiting for it is retained, so that a
+ * caller registering late still gets it. Retained events are discarded, oldest
+ * first, once there are more than the maximum or they are older than the
+ * retention period. Every lookup is a hash map access, and an event is claimed by
+ * the first waiter(s) to match it.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class ChaincodeEventRegistry {
+
+    private static final TimingWheel TIMER = new TimingWheel(10, TimeUnit.MILLISECONDS,
+            512, "chaincode-event-timer");
+
+    private final int _maxRetained;
+    private final long _retentionNanos;
+
+    // all guarded by this
+    private final Map<String, List<Waiter>> _txWaiters = new HashMap<>();
+    private final Map<String, List<Waiter>> _nameWaiters = new HashMap<>();
+    private final LinkedHashMap<String, ChaincodeEventNode> _retained =   // oldest first
+            new LinkedHashMap<>();
+    private final Map<String, Set<String>> _retainedByName = new HashMap<>();
+    private int _waiterCount;
+
+    private volatile TimingWheel.Timeout _sweeper;
+    private volatile boolean _closed;
+    private final AtomicLong _received = new AtomicLong();
+    private final AtomicLong _claimed = new AtomicLong();
+    private final AtomicLong _discarded = new AtomicLong();
+    private final AtomicLong _timedOut = new AtomicLong();
+
+
+    /**
+     * @param maxRetained the maximum number of unclaimed events to keep
+     * @param retentionMsecs the maximum age of an unclaimed event
+     */
+    public ChaincodeEventRegistry(int maxRetained, long retentionMsecs) {
+        _maxRetained = Math.max(0, maxRetained);
+        _retentionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, retentionMsecs));
+        _sweeper = TIMER.schedule(this::sweep, retentionMsecs, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Waits for the chaincode event set by a transaction
+     * @param txId the transaction id
+     * @param timeout the maximum time to wait, 0 for no limit
+     * @param unit the unit of the timeout value
+     * @return a future completed with the event
+     */
+    public CompletableFuture<ChaincodeEventNode> awaitTransaction(String txId,
+                                                                 long timeout,
+                                                                 TimeUnit unit) {
+        return await(txId, false, timeout, unit);
+    }
+
+
+    /**
+     * Waits for the next chaincode event with a name, or takes the oldest retained
+     * event with that name
+     * @param eventName the event name
+     * @param timeout the maximum time to wait, 0 for no limit
+     * @param unit the unit of the timeout value
+     * @return a future completed with the event
+     */
+    public CompletableFuture<ChaincodeEventNode> awaitEvent(String eventName,
+                                                           long timeout, TimeUnit unit) {
+        return await(eventName, true, timeout, unit);
+    }
+
+
+    /**
+     * Delivers an event to the callers waiting for it, or retains it if there are none
+     * @param event the received event
+     */
+    public void add(ChaincodeEventNode event) {
+        _received.incrementAndGet();
+        List<Waiter> claimants = new ArrayList<>();
+        synchronized (this) {
+            discardExpired();
+            takeWaiters(_txWaiters, event.getTxId(), claimants);
+            takeWaiters(_nameWaiters, event.getEventName(), claimants);
+            if (claimants.isEmpty()) retain(event);
+        }
+        if (! claimants.isEmpty()) _claimed.incrementAndGet();
+        for (Waiter waiter : claimants) {
+            waiter.future.complete(event);
+        }
+    }
+
+
+    /**
+     * Fails all waiters and discards all retained events
+     */
+    public void close() {
+        _closed = true;
+        _sweeper.cancel();
+        List<Waiter> waiters = new ArrayList<>();
+        synchronized (this) {
+            _txWaiters.values().forEach(waiters::addAll);
+            _nameWaiters.values().forEach(waiters::addAll);
+            _txWaiters.clear();
+            _nameWaiters.clear();
+            _waiterCount = 0;
+            _retained.clear();
+            _retainedByName.clear();
+        }
+        for (Waiter waiter : waiters) {
+            waiter.future.completeExceptionally(
+                    new IllegalStateException("Chaincode event registry closed"));
+        }
+    }
+
+
+    public synchronized int getRetainedCount() { return _retained.size(); }
+
+    public synchronized int getWaiterCount() { return _waiterCount; }
+
+    public long getReceivedCount() { return _received.get(); }
+
+    public long getClaimedCount() { return _claimed.get(); }
+
+    public long getDiscardedCount() { return _discarded.get(); }
+
+    public long getTimedOutCount() { return _timedOut.get(); }
+
+
+    private CompletableFuture<ChaincodeEventNode> await(String key, boolean byName,
+                                                       long timeout, TimeUnit unit) {
+        Waiter waiter = new Waiter(key, byName);
+        ChaincodeEventNode event;
+        synchronized (this) {
+            discardExpired();
+            event = byName ? claimRetainedByName(key) : claimRetained(key);
+            if (event == null) {
+                (byName ? _nameWaiters : _txWaiters).computeIfAbsent(key,
+                        k -> new ArrayList<>(1)).add(waiter);
+                _waiterCount++;
+            }
+        }
+        if (event != null) {
+            _claimed.incrementAndGet();
+            waiter.future.complete(event);
+            return waiter.future;
+        }
+
+        // a completed or cancelled future no longer needs its timeout or its place
+        waiter.future.whenComplete((e, ex) -> {
+            TimingWheel.Timeout t = waiter.timeout;
+            if (t != null) t.cancel();
+            if (ex != null) removeWaiter(waiter);
+        });
+        if (timeout > 0) {
+            waiter.timeout = TIMER.schedule(() -> {
+                if (waiter.future.completeExceptionally(new TimeoutException(
+                        "No chaincode event for " + key + " within " +
+                                unit.toMillis(timeout) + "ms"))) {
+                    _timedOut.incrementAndGet();
+                }
+            }, timeout, unit);
+            if (waiter.future.isDone()) waiter.timeout.cancel();
+        }
+        return waiter.future;
+    }
+
+
+    private synchronized void removeWaiter(Waiter waiter) {
+        Map<String, List<Waiter>> waiters = waiter.byName ? _nameWaiters : _txWaiters;
+        List<Waiter> list = waiters.get(waiter.key);
+        if (list != null && list.remove(waiter)) {
+            _waiterCount--;
+            if (list.isEmpty()) waiters.remove(waiter.key);
+        }
+    }
+
+
+    // must be called while holding the lock
+    private void takeWaiters(Map<String, List<Waiter>> waiters, String key,
+                             List<Waiter> claimants) {
+        if (key == null) return;
+        List<Waiter> list = waiters.remove(key);
+        if (list != null) {
+            claimants.addAll(list);
+            _waiterCount -= list.size();
+        }
+    }
+
+
+    // must be called while holding the lock
+    private void retain(ChaincodeEventNode event) {
+        if (_maxRetained == 0 || event.getTxId() == null) {
+            _discarded.incrementAndGet();
+            return;
+        }
+        ChaincodeEventNode previous = _retained.put(event.getTxId(), event);
+        if (previous != null) unindex(previous);
+        if (event.getEventName() != null) {
+            _retainedByName.computeIfAbsent(event.getEventName(),
+                    k -> new LinkedHashSet<>()).add(event.getTxId());
+        }
+        while (_retained.size() > _maxRetained) {
+            discardOldest();
+        }
+    }
+
+
+    // must be called while holding the lock
+    private ChaincodeEventNode claimRetained(String txId) {
+        ChaincodeEventNode event = _retained.remove(txId);
+        if (event != null) unindex(event);
+        return event;
+    }
+
+
+    // must be called while holding the lock
+    private ChaincodeEventNode claimRetainedByName(String eventName) {
+        Set<String> txIds = _retainedByName.get(eventName);
+        if (txIds == null) return null;
+        Iterator<String> itr = txIds.iterator();
+        return itr.hasNext() ? claimRetained(itr.next()) : null;
+    }
+
+
+    // must be called while holding the lock
+    private void unindex(ChaincodeEventNode event) {
+        String name = event.getEventName();
+        Set<String> txIds = name != null ? _retainedByName.get(name) : null;
+        if (txIds != null) {
+            txIds.remove(event.getTxId());
+            if (txIds.isEmpty()) _retainedByName.remove(name);
+        }
+    }
+
+
+    // must be called while holding the lock
+    private void discardExpired() {
+        long now = System.nanoTime();
+        while (! _retained.isEmpty()) {
+            ChaincodeEventNode oldest = _retained.values().iterator().next();
+            if (now - oldest.getReceivedNanos() < _retentionNanos) break;
+            discardOldest();
+        }
+    }
+
+
+    // must be called while holding the lock
+    private void discardOldest() {
+        Iterator<ChaincodeEventNode> itr = _retained.values().iterator();
+        ChaincodeEventNode oldest = itr.next();
+        itr.remove();
+        unindex(oldest);
+        _discarded.incrementAndGet();
+    }
+
+
+    // keeps retention bounded by age when no events are arriving
+    private void sweep() {
+        synchronized (this) {
+            discardExpired();
+        }
+        if (_closed) return;
+        try {
+            _sweeper = TIMER.schedule(this::sweep, TimeUnit.NANOSECONDS.toMillis(_retentionNanos),
+                    TimeUnit.MILLISECONDS);
+        }
+        catch (IllegalStateException ise) {
+            // timer stopped
+        }
+    }
+
+
+    private static class Waiter {
+        final String key;
+        final boolean byName;
+        final CompletableFuture<ChaincodeEventNode> future = new CompletableFuture<>();
+        volatile TimingWheel.Timeout timeout;
+
+        Waiter(String key, boolean byName) {
+            this.key = key;
+            this.byName = byName;
+        }
+    }
+
+}
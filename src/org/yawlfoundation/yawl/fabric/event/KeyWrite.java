@@ -0,0 +1,38 @@
+package org.yawlfoundation.yawl.fabric.event;
+
+/**
+ * A single key write (or delete) from the write set of a committed transaction
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class KeyWrite {
+
+    private final String _txId;
+    private final String _namespace;        // the chaincode name
+    private final String _key;
+    private final byte[] _value;
+    private final boolean _delete;
+
+
+    public KeyWrite(String txId, String namespace, String key, byte[] value,
+                    boolean delete) {
+        _txId = txId;
+        _namespace = namespace;
+        _key = key;
+        _value = value;
+        _delete = delete;
+    }
+
+
+    public String getTxId() { return _txId; }
+
+    public String getNamespace() { return _namespace; }
+
+    public String getKey() { return _key; }
+
+    public byte[] getValue() { return _value; }
+
+    public boolean isDelete() { return _delete; }
+
+}
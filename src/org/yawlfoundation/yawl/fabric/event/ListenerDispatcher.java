@@ -0,0 +1,219 @@
+package org.yawlfoundation.yawl.fabric.event;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Delivers events to a single listener on its own thread, via a bounded ring
+ * buffer, so that a slow listener can't hold up the thread that publishes the
+ * events or any other listener. When the buffer is full, the overflow policy
+ * decides which event is lost, or whether the publisher waits. A publisher that
+ * needs to know when each event is finished with may supply callbacks for events
+ * once delivered (whether or not the listener failed) and once dropped.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class ListenerDispatcher<E> {
+
+    /**
+     * What to do with an event published to a full buffer: DROP_OLDEST discards
+     * the oldest queued event to make room, DROP_NEWEST discards the published
+     * event, and BLOCK makes the publisher wait for room (holding up delivery to
+     * all listeners, as if events were delivered synchronously).
+     */
+    public enum Overflow {
+        DROP_OLDEST, DROP_NEWEST, BLOCK;
+
+        public static Overflow fromString(String s) {
+            if (s != null) {
+                for (Overflow o : values()) {
+                    if (o.name().replace("_", "").equalsIgnoreCase(s.replace("_", ""))) {
+                        return o;
+                    }
+                }
+            }
+            return DROP_OLDEST;
+        }
+    }
+
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final String _name;
+    private final Consumer<E> _consumer;
+    private final Consumer<E> _onDelivered;             // may be null
+    private final Consumer<E> _onDropped;               // may be null
+    private final RingBuffer<E> _buffer;
+    private final Overflow _overflow;
+    private final Thread _thread;
+    private volatile boolean _running = true;
+    private volatile boolean _parked;
+
+    private final AtomicLong _published = new AtomicLong();
+    private final AtomicLong _delivered = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final long _startNanos = System.nanoTime();
+    private volatile double _rate;                      // delivered per sec
+    private long _rateWindowStart = _startNanos;
+    private long _rateWindowCount;
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    public ListenerDispatcher(String name, Consumer<E> consumer, int capacity,
+                              Overflow overflow) {
+        this(name, consumer, capacity, overflow, null, null);
+    }
+
+
+    /**
+     * @param onDelivered called on the consumer thread after each event is passed
+     * to the listener, or null
+     * @param onDropped called with each event that is dropped, or published after
+     * shutdown, or null
+     */
+    public ListenerDispatcher(String name, Consumer<E> consumer, int capacity,
+                              Overflow overflow, Consumer<E> onDelivered,
+                              Consumer<E> onDropped) {
+        _name = name;
+        _consumer = consumer;
+        _onDelivered = onDelivered;
+        _onDropped = onDropped;
+        _buffer = new RingBuffer<>(capacity);
+        _overflow = overflow;
+        _thread = new Thread(this::run, "dispatch-" + name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+
+    /**
+     * Queues an event for delivery to the listener
+     * @param event the event
+     * @return false if an event was dropped to honour the overflow policy
+     */
+    public boolean publish(E event) {
+        if (! _running) {
+            dropped(event);
+            return false;
+        }
+        _published.incrementAndGet();
+        boolean lossless = true;
+        while (! _buffer.offer(event)) {
+            if (_overflow == Overflow.DROP_NEWEST) {
+                _dropped.incrementAndGet();
+                dropped(event);
+                return false;
+            }
+            if (_overflow == Overflow.DROP_OLDEST) {
+                E oldest = _buffer.poll();
+                if (oldest != null) {
+                    _dropped.incrementAndGet();
+                    dropped(oldest);
+                    lossless = false;
+                }
+            }
+            else {                                                // BLOCK
+                LockSupport.unpark(_thread);
+                LockSupport.parkNanos(100_000);
+                if (! _running) {
+                    dropped(event);
+                    return false;
+                }
+            }
+        }
+        if (_parked) LockSupport.unpark(_thread);
+        return lossless;
+    }
+
+
+    /**
+     * Stops the consumer thread once it has delivered any queued events
+     */
+    public void shutdown() {
+        _running = false;
+        LockSupport.unpark(_thread);
+    }
+
+
+    public String getName() { return _name; }
+
+    public Overflow getOverflow() { return _overflow; }
+
+    public int getCapacity() { return _buffer.capacity(); }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getLag() { return _buffer.size(); }
+
+    public long getPublishedCount() { return _published.get(); }
+
+    public long getDeliveredCount() { return _delivered.get(); }
+
+    public long getDroppedCount() { return _dropped.get(); }
+
+    public long getFailedCount() { return _failed.get(); }
+
+    /**
+     * @return the delivery rate over the most recent second of activity, in
+     * events per second
+     */
+    public double getThroughput() { return _rate; }
+
+    public double getAverageThroughput() {
+        double secs = (System.nanoTime() - _startNanos) / 1e9;
+        return secs > 0 ? _delivered.get() / secs : 0;
+    }
+
+
+    private void run() {
+        while (_running || ! _buffer.isEmpty()) {
+            E event = _buffer.poll();
+            if (event == null) {
+                _parked = true;
+                if (_buffer.isEmpty() && _running) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                _parked = false;
+                continue;
+            }
+            try {
+                _consumer.accept(event);
+            }
+            catch (Throwable t) {
+                _failed.incrementAndGet();
+                _logger.error("Listener failed to process event", t);
+            }
+            _delivered.incrementAndGet();
+            updateRate();
+            if (_onDelivered != null) _onDelivered.accept(event);
+        }
+    }
+
+
+    private void dropped(E event) {
+        if (_onDropped != null) _onDropped.accept(event);
+    }
+
+
+    // called only from the consumer thread
+    private void updateRate() {
+        _rateWindowCount++;
+        long now = System.nanoTime();
+        long elapsed = now - _rateWindowStart;
+        if (elapsed >= 1_000_000_000L) {
+            _rate = _rateWindowCount * 1e9 / elapsed;
+            _rateWindowStart = now;
+            _rateWindowCount = 0;
+        }
+    }
+
+}
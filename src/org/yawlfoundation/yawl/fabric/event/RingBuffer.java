@@ -0,0 +1,91 @@
+package org.yawlfoundation.yawl.fabric.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue over a fixed array of slots. Each slot carries a
+ * sequence number that tells producers and consumers whether it is free to write
+ * or ready to read, so any number of threads may offer and poll concurrently
+ * without locking. The capacity is rounded up to a power of two.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class RingBuffer<E> {
+
+    private final int _mask;
+    private final AtomicReferenceArray<E> _slots;
+    private final AtomicLongArray _sequences;
+    private final AtomicLong _head = new AtomicLong();         // next slot to read
+    private final AtomicLong _tail = new AtomicLong();         // next slot to write
+
+
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        _mask = size - 1;
+        _slots = new AtomicReferenceArray<>(size);
+        _sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            _sequences.set(i, i);
+        }
+    }
+
+
+    /**
+     * @param e the element to add
+     * @return true if added, false if the buffer is full
+     */
+    public boolean offer(E e) {
+        while (true) {
+            long tail = _tail.get();
+            int index = (int) tail & _mask;
+            long diff = _sequences.get(index) - tail;
+            if (diff == 0) {
+                if (_tail.compareAndSet(tail, tail + 1)) {
+                    _slots.lazySet(index, e);
+                    _sequences.set(index, tail + 1);        // publish to consumers
+                    return true;
+                }
+            }
+            else if (diff < 0) {
+                return false;                                // full
+            }
+        }
+    }
+
+
+    /**
+     * @return the oldest element, or null if the buffer is empty
+     */
+    public E poll() {
+        while (true) {
+            long head = _head.get();
+            int index = (int) head & _mask;
+            long diff = _sequences.get(index) - (head + 1);
+            if (diff == 0) {
+                if (_head.compareAndSet(head, head + 1)) {
+                    E e = _slots.get(index);
+                    _slots.lazySet(index, null);
+                    _sequences.set(index, head + _mask + 1);  // free for producers
+                    return e;
+                }
+            }
+            else if (diff < 0) {
+                return null;                                 // empty
+            }
+        }
+    }
+
+
+    public int size() {
+        long size = _tail.get() - _head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() { return size() == 0; }
+
+    public int capacity() { return _mask + 1; }
+
+}
@@ -0,0 +1,230 @@
+package org.yawlfoundation.yawl.fabric.event;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel, for large numbers of timeouts that are mostly cancelled
+ * before they expire. Scheduling and cancelling are O(1) and lock-free; a single
+ * worker thread advances the wheel one tick at a time and runs the tasks that
+ * have expired, so timeouts fire up to one tick late and tasks must be quick.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class TimingWheel {
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long _tickNanos;
+    private final Bucket[] _wheel;
+    private final int _mask;
+    private final long _startNanos;
+    private final Queue<Timeout> _scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> _cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _pending = new AtomicInteger();
+    private final Thread _worker;
+    private volatile boolean _running = true;
+    private long _tick;                                 // worker thread only
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    /**
+     * @param tickDuration the resolution of the wheel
+     * @param unit the unit of the tick duration
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param name the name of the worker thread
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize, String name) {
+        _tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        _wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            _wheel[i] = new Bucket();
+        }
+        _mask = size - 1;
+        _startNanos = System.nanoTime();
+        _worker = new Thread(this::run, name);
+        _worker.setDaemon(true);
+        _worker.start();
+    }
+
+
+    /**
+     * Schedules a task to run once after a delay
+     * @param task the task to run, on the wheel's thread
+     * @param delay the delay
+     * @param unit the unit of the delay value
+     * @return a handle that can be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (! _running) throw new IllegalStateException("Timing wheel has been stopped");
+        long deadline = System.nanoTime() - _startNanos + unit.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(this, task, deadline);
+        _pending.incrementAndGet();
+        _scheduled.add(timeout);
+        return timeout;
+    }
+
+
+    /**
+     * @return the number of tasks scheduled that have not yet run or been cancelled
+     */
+    public int getPendingCount() { return _pending.get(); }
+
+
+    public void stop() {
+        _running = false;
+        _worker.interrupt();
+    }
+
+
+    private void run() {
+        while (_running) {
+            long deadline = _tickNanos * (_tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - _startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException ie) {
+                    if (! _running) break;
+                }
+                continue;
+            }
+            removeCancelled();
+            transferScheduled();
+            expire(_wheel[(int) (_tick & _mask)], deadline);
+            _tick++;
+        }
+    }
+
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = _cancelled.poll()) != null) {
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = _scheduled.poll();
+            if (timeout == null) break;
+            if (timeout.isCancelled()) continue;
+            long expiryTick = timeout.deadline / _tickNanos;
+            timeout.remainingRounds = (expiryTick - _tick) / _wheel.length;
+            long tick = Math.max(expiryTick, _tick);          // don't schedule in the past
+            _wheel[(int) (tick & _mask)].add(timeout);
+        }
+    }
+
+
+    private void expire(Bucket bucket, long deadline) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                bucket.remove(timeout);
+                timeout.expire();
+            }
+            else if (timeout.isCancelled()) {
+                bucket.remove(timeout);
+            }
+            else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+
+    /**
+     * A handle to a scheduled task
+     */
+    public static final class Timeout {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimingWheel _wheel;
+        private final Runnable _task;
+        private final long deadline;                   // nanos after wheel start
+        private final AtomicInteger _state = new AtomicInteger(INIT);
+
+        // accessed only by the worker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            _wheel = wheel;
+            _task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the task was cancelled, false if it has already run or
+         * been cancelled
+         */
+        public boolean cancel() {
+            if (! _state.compareAndSet(INIT, CANCELLED)) return false;
+            _wheel._pending.decrementAndGet();
+            _wheel._cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() { return _state.get() == CANCELLED; }
+
+        public boolean isExpired() { return _state.get() == EXPIRED; }
+
+        private void expire() {
+            if (! _state.compareAndSet(INIT, EXPIRED)) return;
+            _wheel._pending.decrementAndGet();
+            try {
+                _task.run();
+            }
+            catch (Throwable t) {
+                _wheel._logger.error("Timing wheel task failed", t);
+            }
+        }
+    }
+
+
+    // a doubly-linked list of timeouts, accessed only by the worker thread
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) return;
+            if (timeout.prev != null) timeout.prev.next = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            if (timeout == head) head = timeout.next;
+            if (timeout == tail) tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+}
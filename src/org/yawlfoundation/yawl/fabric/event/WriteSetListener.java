@@ -0,0 +1,18 @@
+package org.yawlfoundation.yawl.fabric.event;
+
+import java.util.List;
+
+/**
+ * Receives the key writes of the valid transactions in each block
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public interface WriteSetListener {
+
+    /**
+     * @param blockNumber the number of the block containing the writes
+     * @param writes the key writes, in block order. May be empty.
+     */
+    void writesReceived(long blockNumber, List<KeyWrite> writes);
+}
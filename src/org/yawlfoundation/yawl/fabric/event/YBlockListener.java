@@ -1,61 +1,430 @@
 package org.yawlfoundation.yawl.fabric.event;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
 import org.hyperledger.fabric.sdk.BlockEvent;
-import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.EnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo;
 import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
 import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.yawlfoundation.yawl.fabric.jfr.FlightEvents;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Decodes the blocks received from a channel and announces their transactions.
+ * Each BlockUpdateListener is called on its own thread via a ListenerDispatcher,
+ * so the SDK's event thread is never held up by a listener. WriteSetListeners
+ * are called directly, and so must be quick.
+ * <p>
+ * Blocks are announced once each and in order. When a checkpoint is set, it
+ * records the highest block up to which every block has been handled by every
+ * write set listener and delivered to every update listener, so that delivery
+ * can resume after a restart from the block following it. A block dropped by a
+ * full listener queue holds the checkpoint before it for the rest of the run, so
+ * that it is delivered again on restart.
+ * When backfill is enabled and a received block is ahead of the next one expected
+ * (after a restart or a reconnect), the missing blocks are fetched from the
+ * channel concurrently and announced in order before it. A block that can't be
+ * fetched or decoded is never skipped: announcing stops at it, and it is tried
+ * again when the next block is received.
+ * <p>
+ * Each transaction in an announced block, valid or not, is recorded as a flight
+ * recorder commit event, when those are being recorded.
+ *
  * @author Michael Adams
  * @date 2018-11-28
  */
 public class YBlockListener implements BlockListener {
 
-    private final Set<BlockUpdateListener> _updateListeners = new HashSet<>();
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int BACKFILL_WINDOW = 32;      // blocks fetched at once
+    private static final int BACKFILL_ATTEMPTS = 3;
+
+    // replaced as a whole on each change, so that announcing needs no locking
+    private volatile Map<BlockUpdateListener, ListenerDispatcher<BlockUpdate>>
+            _updateListeners = Collections.emptyMap();
+    private final Set<WriteSetListener> _writeSetListeners = new CopyOnWriteArraySet<>();
+
+    private final int _dispatchCapacity;
+    private final ListenerDispatcher.Overflow _dispatchOverflow;
+
+    private BlockCheckpoint _checkpoint;         // null = block numbers not recorded
+    private Channel _channel;                    // null = gaps not backfilled
+    private ExecutorService _backfillExecutor;
+    private long _nextBlock = -1;                // -1 = accept the first block seen
+
+    // blocks announced but not yet delivered to every update listener, with the
+    // number of deliveries outstanding; guards the checkpoint fields below
+    private final TreeMap<Long, Integer> _undelivered = new TreeMap<>();
+    private long _lastAnnounced = BlockCheckpoint.NONE;
+    private boolean _checkpointHeld;             // true once a block is dropped
+
+    private final AtomicLong _backfilled = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _duplicates = new AtomicLong();
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    public YBlockListener() {
+        this(DEFAULT_CAPACITY, ListenerDispatcher.Overflow.DROP_OLDEST);
+    }
+
+
+    /**
+     * @param dispatchCapacity the number of blocks that may be queued per listener
+     * @param dispatchOverflow what to do when a listener's queue is full
+     */
+    public YBlockListener(int dispatchCapacity, ListenerDispatcher.Overflow dispatchOverflow) {
+        _dispatchCapacity = dispatchCapacity;
+        _dispatchOverflow = dispatchOverflow;
+    }
+
 
     @Override
     public void received(BlockEvent blockEvent) {
+        long blockNumber = blockEvent.getBlockNumber();
+        synchronized (this) {
+            if (_nextBlock > -1 && blockNumber < _nextBlock) {
+                _duplicates.incrementAndGet();              // replayed or out of order
+                return;
+            }
+            if (_nextBlock > -1 && blockNumber > _nextBlock && _channel != null) {
+                if (! backfill(_nextBlock, blockNumber - 1)) return;  // retried later
+            }
+            if (announce(blockEvent)) _nextBlock = blockNumber + 1;
+        }
+    }
+
+
+    /**
+     * Records delivered block numbers in a checkpoint, and resumes from it
+     * @param checkpoint the checkpoint
+     */
+    public synchronized void setCheckpoint(BlockCheckpoint checkpoint) {
+        synchronized (_undelivered) {
+            _checkpoint = checkpoint;
+        }
+        long last = checkpoint != null ? checkpoint.get() : BlockCheckpoint.NONE;
+        if (last != BlockCheckpoint.NONE) _nextBlock = last + 1;
+    }
+
+
+    /**
+     * Fetches blocks missing from the sequence delivered by the channel
+     * @param channel the channel to fetch the blocks from
+     * @param executor the executor to fetch the blocks on
+     */
+    public synchronized void enableBackfill(Channel channel, ExecutorService executor) {
+        _channel = channel;
+        _backfillExecutor = executor;
+    }
+
+
+    /**
+     * @return the number of the first block to request from the channel, or -1 to
+     * start from the newest block
+     */
+    public synchronized long getStartBlock() { return _nextBlock; }
+
+    public long getBackfilledCount() { return _backfilled.get(); }
+
+    /**
+     * @return the number of times a block could not be fetched or decoded
+     */
+    public long getFailedCount() { return _failed.get(); }
+
+    public long getDuplicateCount() { return _duplicates.get(); }
+
+
+    public synchronized void registerUpdateListener(BlockUpdateListener listener) {
+        if (_updateListeners.containsKey(listener)) return;
+        Map<BlockUpdateListener, ListenerDispatcher<BlockUpdate>> listeners =
+                new LinkedHashMap<>(_updateListeners);
+        listeners.put(listener, new ListenerDispatcher<>(
+                listener.getClass().getSimpleName(),
+                update -> listener.blockUpdateReceived(update.transactions),
+                _dispatchCapacity, _dispatchOverflow, this::delivered, this::dropped));
+        _updateListeners = Collections.unmodifiableMap(listeners);
+    }
+    
+
+    public synchronized boolean unregisterUpdateListener(BlockUpdateListener listener) {
+        if (! _updateListeners.containsKey(listener)) return false;
+        Map<BlockUpdateListener, ListenerDispatcher<BlockUpdate>> listeners =
+                new LinkedHashMap<>(_updateListeners);
+        listeners.remove(listener).shutdown();
+        _updateListeners = Collections.unmodifiableMap(listeners);
+        return true;
+    }
+
+
+    /**
+     * @return the dispatcher delivering to a listener, for its lag, drop and
+     * throughput metrics, or null if the listener isn't registered
+     */
+    public ListenerDispatcher<?> getDispatcher(BlockUpdateListener listener) {
+        return _updateListeners.get(listener);
+    }
+
+
+    public Collection<? extends ListenerDispatcher<?>> getDispatchers() {
+        return _updateListeners.values();
+    }
+
+
+    /**
+     * Stops the listeners' dispatchers, and closes the checkpoint
+     */
+    public synchronized void shutdown() {
+        _updateListeners.values().forEach(ListenerDispatcher::shutdown);
+        _updateListeners = Collections.emptyMap();
+        synchronized (_undelivered) {
+            if (_checkpoint != null) {
+                try {
+                    _checkpoint.close();
+                }
+                catch (IOException ioe) {
+                    _logger.warn("Failed to close block checkpoint {}",
+                            _checkpoint.getPath());
+                }
+                _checkpoint = null;
+            }
+        }
+    }
+
+
+    public void registerWriteSetListener(WriteSetListener listener) {
+        _writeSetListeners.add(listener);
+    }
+
+
+    public boolean unregisterWriteSetListener(WriteSetListener listener) {
+        return _writeSetListeners.remove(listener);
+    }
+
+
+    // must be called while holding the lock. Announces the blocks in order,
+    // advancing _nextBlock past each, and stops at the first that can't be fetched
+    // or decoded. Returns true if every block was announced
+    private boolean backfill(long from, long to) {
+        _logger.info("Backfilling blocks {} to {} of channel {}", from, to,
+                _channel.getName());
+        for (long start = from; start <= to; start += BACKFILL_WINDOW) {
+            long end = Math.min(to, start + BACKFILL_WINDOW - 1);
+            List<Future<BlockInfo>> fetches = new ArrayList<>();
+            for (long n = start; n <= end; n++) {
+                final long blockNumber = n;
+                fetches.add(_backfillExecutor.submit(() -> fetch(blockNumber)));
+            }
+            long blockNumber = start;
+            try {
+                for (Future<BlockInfo> fetch : fetches) {
+                    if (! announce(fetch.get())) return false;
+                    _nextBlock = blockNumber + 1;
+                    _backfilled.incrementAndGet();
+                    blockNumber++;
+                }
+            }
+            catch (ExecutionException ee) {
+                _failed.incrementAndGet();
+                _logger.error("Failed to backfill block {} of channel {}: {}. Blocks " +
+                        "are held from it until it is fetched, which will be tried " +
+                        "again when the next block is received.", blockNumber,
+                        _channel.getName(), ee.getCause().getMessage());
+                return false;
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                _logger.warn("Backfill interrupted at block {}", blockNumber);
+                return false;
+            }
+            finally {
+                fetches.forEach(fetch -> fetch.cancel(true));    // any not yet used
+            }
+        }
+        return true;
+    }
+
+
+    private BlockInfo fetch(long blockNumber) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return _channel.queryBlockByNumber(blockNumber);
+            }
+            catch (Exception e) {
+                if (attempt == BACKFILL_ATTEMPTS) throw e;
+                Thread.sleep(100L * attempt);
+            }
+        }
+    }
+
+
+    // must be called while holding the lock. Returns false, announcing nothing, if
+    // the block can't be decoded
+    private boolean announce(BlockInfo block) {
+        long blockNumber = block.getBlockNumber();
+        boolean wantWrites = ! _writeSetListeners.isEmpty();
+        Map<String, String> transactionMap = new HashMap<>();
+        List<KeyWrite> writes = new ArrayList<>();
         try {
-            Map<String, String> transactionMap = new HashMap<>();
-            for (TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
-                if (! transactionEvent.isValid()) continue;
-                for (TransactionActionInfo tai : transactionEvent.getTransactionActionInfos()) {
+            boolean recordCommits = FlightEvents.isCommitRecorded();
+            for (EnvelopeInfo envelope : block.getEnvelopeInfos()) {
+                if (envelope.getType() != BlockInfo.EnvelopeType.TRANSACTION_ENVELOPE) {
+                    continue;
+                }
+                TransactionEnvelopeInfo txEnvelope = (TransactionEnvelopeInfo) envelope;
+                if (recordCommits) FlightEvents.recordCommit(blockNumber, txEnvelope);
+                if (! envelope.isValid()) continue;
+                String txId = envelope.getTransactionID();
+                for (TransactionActionInfo tai : txEnvelope.getTransactionActionInfos()) {
                     if (tai.getChaincodeInputArgsCount() > 0) {
                         byte[] argbytes = tai.getChaincodeInputArgs(0);
                         String funcName = new String(argbytes, StandardCharsets.UTF_8);
-                        transactionMap.put(transactionEvent.getTransactionID(), funcName);
+                        transactionMap.put(txId, funcName);
+                    }
+                    if (wantWrites) {
+                        addWrites(txId, tai, writes);
                     }
                 }
             }
-            announce(transactionMap);
         }
         catch (Exception e) {
-            e.printStackTrace();
+            _failed.incrementAndGet();
+            _logger.error("Failed to decode block " + blockNumber + ". Blocks are " +
+                    "held from it until it is decoded, which will be tried again " +
+                    "when the next block is received.", e);
+            return false;
         }
+
+        // write set listeners (the mirror and query caches) have handled the block
+        // before it can be checkpointed
+        if (wantWrites) {
+            try {
+                announce(blockNumber, writes);
+            }
+            catch (Exception e) {
+                _logger.error("Write set listener failed to process block " +
+                        blockNumber, e);
+            }
+        }
+        announce(blockNumber, transactionMap);
+        return true;
     }
 
 
-    public void registerUpdateListener(BlockUpdateListener listener) {
-        _updateListeners.add(listener);
+    private void addWrites(String txId, TransactionActionInfo tai, List<KeyWrite> writes)
+            throws InvalidProtocolBufferException {
+        TxReadWriteSetInfo rwsetInfo = tai.getTxReadWriteSet();
+        if (rwsetInfo == null) return;
+        for (TxReadWriteSetInfo.NsRwsetInfo nsInfo : rwsetInfo.getNsRwsetInfos()) {
+            String namespace = nsInfo.getNamespace();
+            for (KvRwset.KVWrite write : nsInfo.getRwset().getWritesList()) {
+                writes.add(new KeyWrite(txId, namespace, write.getKey(),
+                        write.getValue().toByteArray(), write.getIsDelete()));
+            }
+        }
     }
-    
 
-    public boolean unregisterUpdateListener(BlockUpdateListener listener) {
-        return _updateListeners.remove(listener);
+
+    // the block is recorded as undelivered before it is published, so that it
+    // can't be delivered before it is recorded
+    private void announce(long blockNumber, Map<String, String> transactionMap) {
+        Collection<ListenerDispatcher<BlockUpdate>> dispatchers =
+                transactionMap.isEmpty() ? Collections.emptyList() :
+                        _updateListeners.values();
+        synchronized (_undelivered) {
+            _lastAnnounced = blockNumber;
+            if (_checkpoint != null && ! _checkpointHeld && ! dispatchers.isEmpty()) {
+                _undelivered.put(blockNumber, dispatchers.size());
+            }
+            else updateCheckpoint();
+        }
+        if (! dispatchers.isEmpty()) {
+            BlockUpdate update = new BlockUpdate(blockNumber,
+                    Collections.unmodifiableMap(transactionMap));
+            for (ListenerDispatcher<BlockUpdate> dispatcher : dispatchers) {
+                dispatcher.publish(update);
+            }
+        }
     }
 
 
-    private void announce(Map<String, String> transactionMap) {
-        if (! transactionMap.isEmpty()) {
-            for (BlockUpdateListener listener : _updateListeners) {
-                listener.blockUpdateReceived(transactionMap);
+    private void announce(long blockNumber, List<KeyWrite> writes) {
+        for (WriteSetListener listener : _writeSetListeners) {
+            listener.writesReceived(blockNumber, writes);
+        }
+    }
+
+
+    // called on a dispatcher's thread once it has passed an update to its listener
+    private void delivered(BlockUpdate update) {
+        synchronized (_undelivered) {
+            Integer outstanding = _undelivered.get(update.blockNumber);
+            if (outstanding == null) return;
+            if (outstanding > 1) {
+                _undelivered.put(update.blockNumber, outstanding - 1);
+                return;
             }
+            _undelivered.remove(update.blockNumber);
+            updateCheckpoint();
+        }
+    }
+
+
+    // a dropped block is never delivered, so the checkpoint can't pass it; the
+    // blocks from it are delivered again when the listener is next started
+    private void dropped(BlockUpdate update) {
+        synchronized (_undelivered) {
+            if (_checkpoint == null || _checkpointHeld) return;
+            _checkpointHeld = true;
+            _undelivered.clear();
+            _logger.error("Block {} was dropped by a full listener queue; the block " +
+                    "checkpoint is held at block {} until restart", update.blockNumber,
+                    _checkpoint.get());
+        }
+    }
+
+
+    // must be called while holding the _undelivered lock. Checkpoints the highest
+    // block up to which every announced block has been delivered
+    private void updateCheckpoint() {
+        if (_checkpoint == null || _checkpointHeld) return;
+        long delivered = _undelivered.isEmpty() ? _lastAnnounced :
+                _undelivered.firstKey() - 1;
+        try {
+            if (delivered > BlockCheckpoint.NONE) _checkpoint.set(delivered);
+        }
+        catch (RuntimeException re) {                  // eg. UncheckedIOException
+            _logger.warn("Failed to update block checkpoint {}: {}",
+                    _checkpoint.getPath(), re.getMessage());
         }
     }
+
+
+    // a block's transactions, tagged with its number for checkpointing
+    private static class BlockUpdate {
+        final long blockNumber;
+        final Map<String, String> transactions;
+
+        BlockUpdate(long blockNumber, Map<String, String> transactions) {
+            this.blockNumber = blockNumber;
+            this.transactions = transactions;
+        }
+    }
+
 }
@@ -0,0 +1,40 @@
+package org.yawlfoundation.yawl.fabric.jfr;
+
+/**
+ * Holds the id of the work item being processed on the current thread, so that
+ * the flight recorder events of the Fabric calls made for it can carry the id.
+ * The events (in this package) can be recorded in production at negligible cost,
+ * eg. by starting the JVM with -XX:StartFlightRecording=filename=fabric.jfr, and
+ * read with "jfr print --categories Fabric fabric.jfr". A work item's timeline is
+ * rebuilt by joining its checkout, proposal and checkin events on the work item
+ * id, and its transaction's commit event on the transaction id.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public final class FlightContext {
+
+    private static final ThreadLocal<String> WORK_ITEM_ID = new ThreadLocal<>();
+
+    private FlightContext() { }
+
+
+    /**
+     * @param id the id of the work item now being processed on this thread, or
+     *           null when processing is done
+     */
+    public static void setWorkItemId(String id) {
+        if (id != null) {
+            WORK_ITEM_ID.set(id);
+        }
+        else WORK_ITEM_ID.remove();
+    }
+
+
+    /**
+     * @return the id of the work item being processed on this thread, or null if
+     * none is
+     */
+    public static String getWorkItemId() { return WORK_ITEM_ID.get(); }
+
+}
@@ -0,0 +1,125 @@
+package org.yawlfoundation.yawl.fabric.jfr;
+
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+
+import java.util.Collection;
+
+/**
+ * Creates the flight recorder events of this package. The events extend
+ * jdk.jfr.Event, which is missing from Java 8 runtimes older than 8u262, so they
+ * are referred to only through this class: whether jdk.jfr is present is checked
+ * once, and if it isn't, the events returned do nothing.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public final class FlightEvents {
+
+    /**
+     * A work item checkout or checkin, begun when created
+     */
+    public interface WorkItemSpan {
+        void finish(boolean succeeded);
+    }
+
+
+    /**
+     * A chaincode proposal, begun when created
+     */
+    public interface ProposalSpan {
+        void finish(Collection<ProposalResponse> responses,
+                    Collection<ProposalResponse> endorsements);
+    }
+
+
+    // implemented by JfrRecorder, which is loaded only if jdk.jfr is present
+    interface Recorder {
+        WorkItemSpan beginCheckout(String workItemId, String taskId);
+        WorkItemSpan beginCheckin(String workItemId, String taskId, long checkedOutAt);
+        ProposalSpan beginProposal(String operation, String function, String workItemId);
+        boolean isCommitRecorded();
+        void recordCommit(long blockNumber, TransactionEnvelopeInfo envelope);
+    }
+
+
+    private static final WorkItemSpan NO_WORK_ITEM_SPAN = succeeded -> { };
+    private static final ProposalSpan NO_PROPOSAL_SPAN = (responses, endorsements) -> { };
+
+    private static final Recorder RECORDER = isJfrAvailable() ? new JfrRecorder() : null;
+
+    private FlightEvents() { }
+
+
+    /**
+     * @return true if the runtime supports flight recorder events
+     */
+    public static boolean isAvailable() { return RECORDER != null; }
+
+
+    /**
+     * @param workItemId the id of the work item being checked out
+     * @param taskId the id of its task
+     * @return the begun checkout event
+     */
+    public static WorkItemSpan beginCheckout(String workItemId, String taskId) {
+        return RECORDER != null ? RECORDER.beginCheckout(workItemId, taskId) :
+                NO_WORK_ITEM_SPAN;
+    }
+
+
+    /**
+     * @param workItemId the id of the work item being checked in
+     * @param taskId the id of its task
+     * @param checkedOutAt the System.nanoTime at which its checkout ended
+     * @return the begun checkin event
+     */
+    public static WorkItemSpan beginCheckin(String workItemId, String taskId,
+                                            long checkedOutAt) {
+        return RECORDER != null ? RECORDER.beginCheckin(workItemId, taskId,
+                checkedOutAt) : NO_WORK_ITEM_SPAN;
+    }
+
+
+    /**
+     * @param operation "query" or "invoke"
+     * @param function the chaincode function
+     * @param workItemId the id of the work item the proposal is for, or null
+     * @return the begun proposal event
+     */
+    public static ProposalSpan beginProposal(String operation, String function,
+                                             String workItemId) {
+        return RECORDER != null ? RECORDER.beginProposal(operation, function,
+                workItemId) : NO_PROPOSAL_SPAN;
+    }
+
+
+    /**
+     * @return true if transaction commit events are being recorded
+     */
+    public static boolean isCommitRecorded() {
+        return RECORDER != null && RECORDER.isCommitRecorded();
+    }
+
+
+    /**
+     * Records a transaction seen in a block, if commit events are being recorded
+     * @param blockNumber the number of the block
+     * @param envelope the transaction
+     */
+    public static void recordCommit(long blockNumber, TransactionEnvelopeInfo envelope) {
+        if (RECORDER != null) RECORDER.recordCommit(blockNumber, envelope);
+    }
+
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+}
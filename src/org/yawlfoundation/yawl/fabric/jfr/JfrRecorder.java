@@ -0,0 +1,41 @@
+package org.yawlfoundation.yawl.fabric.jfr;
+
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo;
+
+/**
+ * Records the events of this package with the flight recorder. Only FlightEvents
+ * refers to this class, and only once it has found that jdk.jfr is present.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+class JfrRecorder implements FlightEvents.Recorder {
+
+    @Override
+    public FlightEvents.WorkItemSpan beginCheckout(String workItemId, String taskId) {
+        return WorkItemCheckoutEvent.start(workItemId, taskId);
+    }
+
+    @Override
+    public FlightEvents.WorkItemSpan beginCheckin(String workItemId, String taskId,
+                                                  long checkedOutAt) {
+        return WorkItemCheckinEvent.start(workItemId, taskId, checkedOutAt);
+    }
+
+    @Override
+    public FlightEvents.ProposalSpan beginProposal(String operation, String function,
+                                                   String workItemId) {
+        return ProposalEvent.start(operation, function, workItemId);
+    }
+
+    @Override
+    public boolean isCommitRecorded() {
+        return new TransactionCommitEvent().isEnabled();
+    }
+
+    @Override
+    public void recordCommit(long blockNumber, TransactionEnvelopeInfo envelope) {
+        TransactionCommitEvent.record(blockNumber, envelope);
+    }
+
+}
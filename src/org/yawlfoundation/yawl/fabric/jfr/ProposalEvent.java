@@ -0,0 +1,91 @@
+package org.yawlfoundation.yawl.fabric.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+
+import java.util.Collection;
+
+/**
+ * A chaincode proposal sent to peers and their responses received. Its duration
+ * runs from sending to the end of endorsement: for an invocation, until the
+ * responses satisfying the endorsement policy have been selected; for a query,
+ * until a result was received, over any failovers between peers.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+@Name("org.yawlfoundation.yawl.fabric.Proposal")
+@Label("Chaincode Proposal")
+@Category({ "YAWL", "Fabric" })
+@Description("A chaincode query or invocation proposal sent to peers")
+@StackTrace(false)
+public class ProposalEvent extends jdk.jfr.Event implements FlightEvents.ProposalSpan {
+
+    @Label("Work Item Id")
+    public String workItemId;
+
+    @Label("Transaction Id")
+    public String txId;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Function")
+    @Description("The chaincode function, prefixed by its target if not the default")
+    public String function;
+
+    @Label("Responses")
+    public int responses;
+
+    @Label("Endorsements")
+    @Description("The successful responses used, for an invocation, or returned")
+    public int endorsements;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+
+    /**
+     * Creates and begins an event
+     * @param operation "query" or "invoke"
+     * @param function the chaincode function
+     * @param workItemId the id of the work item the proposal is for, or null
+     */
+    public static ProposalEvent start(String operation, String function,
+                                      String workItemId) {
+        ProposalEvent event = new ProposalEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.function = function;
+            event.workItemId = workItemId;
+            event.begin();
+        }
+        return event;
+    }
+
+
+    /**
+     * Ends and commits the event, if it is being recorded
+     * @param responses the responses received, or null if the proposal failed
+     * @param endorsements the successful responses used, or null if the proposal
+     *                     failed
+     */
+    @Override
+    public void finish(Collection<ProposalResponse> responses,
+                       Collection<ProposalResponse> endorsements) {
+        end();
+        if (! shouldCommit()) return;
+        if (responses != null && ! responses.isEmpty()) {
+            this.responses = responses.size();
+            txId = responses.iterator().next().getTransactionID();
+        }
+        if (endorsements != null) this.endorsements = endorsements.size();
+        succeeded = endorsements != null && ! endorsements.isEmpty();
+        commit();
+    }
+
+}
@@ -0,0 +1,73 @@
+package org.yawlfoundation.yawl.fabric.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A transaction seen committed in a block by a block listener, valid or not.
+ * It is recorded as the block is announced, so the time since the transaction's
+ * proposal event ended is its ordering and commit latency.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+@Name("org.yawlfoundation.yawl.fabric.TransactionCommit")
+@Label("Transaction Commit")
+@Category({ "YAWL", "Fabric" })
+@Description("A transaction committed in a block received from a channel")
+@StackTrace(false)
+public class TransactionCommitEvent extends jdk.jfr.Event {
+
+    @Label("Transaction Id")
+    public String txId;
+
+    @Label("Channel")
+    public String channel;
+
+    @Label("Block Number")
+    public long blockNumber;
+
+    @Label("Function")
+    public String function;
+
+    @Label("Validation Code")
+    public String validationCode;
+
+    @Label("Valid")
+    public boolean valid;
+
+
+    /**
+     * Records a transaction seen in a block, if commit events are being recorded
+     * @param blockNumber the number of the block
+     * @param envelope the transaction
+     */
+    public static void record(long blockNumber, TransactionEnvelopeInfo envelope) {
+        TransactionCommitEvent event = new TransactionCommitEvent();
+        if (! event.shouldCommit()) return;
+        event.txId = envelope.getTransactionID();
+        event.channel = envelope.getChannelId();
+        event.blockNumber = blockNumber;
+        event.valid = envelope.isValid();
+        TxValidationCode code = TxValidationCode.forNumber(envelope.getValidationCode());
+        event.validationCode = code != null ? code.name() :
+                String.valueOf(envelope.getValidationCode());
+        if (envelope.getTransactionActionInfoCount() > 0) {
+            TransactionActionInfo tai = envelope.getTransactionActionInfo(0);
+            if (tai.getChaincodeInputArgsCount() > 0) {
+                event.function = new String(tai.getChaincodeInputArgs(0),
+                        StandardCharsets.UTF_8);
+            }
+        }
+        event.commit();
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.yawlfoundation.yawl.fabric.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The checkin of a work item to the engine. Its duration is the checkin call; the
+ * time the item took to process, from the end of its checkout, is recorded too.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+@Name("org.yawlfoundation.yawl.fabric.WorkItemCheckin")
+@Label("Work Item Checkin")
+@Category({ "YAWL", "Fabric" })
+@Description("A processed work item checked in to the engine")
+@StackTrace(false)
+public class WorkItemCheckinEvent extends jdk.jfr.Event
+        implements FlightEvents.WorkItemSpan {
+
+    @Label("Work Item Id")
+    public String workItemId;
+
+    @Label("Task Id")
+    public String taskId;
+
+    @Label("Processing Time")
+    @Description("From the end of the checkout to the start of the checkin")
+    @Timespan(Timespan.NANOSECONDS)
+    public long processingTime;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+
+    /**
+     * Creates and begins an event
+     * @param workItemId the id of the work item being checked in
+     * @param taskId the id of its task
+     * @param checkedOutAt the System.nanoTime at which its checkout ended
+     */
+    public static WorkItemCheckinEvent start(String workItemId, String taskId,
+                                             long checkedOutAt) {
+        WorkItemCheckinEvent event = new WorkItemCheckinEvent();
+        if (event.isEnabled()) {
+            event.workItemId = workItemId;
+            event.taskId = taskId;
+            event.processingTime = System.nanoTime() - checkedOutAt;
+            event.begin();
+        }
+        return event;
+    }
+
+
+    /**
+     * Ends and commits the event, if it is being recorded
+     * @param succeeded true if the work item was checked in
+     */
+    @Override
+    public void finish(boolean succeeded) {
+        end();
+        if (! shouldCommit()) return;
+        this.succeeded = succeeded;
+        commit();
+    }
+
+}
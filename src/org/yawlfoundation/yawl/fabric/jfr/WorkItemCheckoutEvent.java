@@ -0,0 +1,61 @@
+package org.yawlfoundation.yawl.fabric.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The checkout of a work item from the engine. Its duration is the checkout call.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+@Name("org.yawlfoundation.yawl.fabric.WorkItemCheckout")
+@Label("Work Item Checkout")
+@Category({ "YAWL", "Fabric" })
+@Description("A work item checked out from the engine")
+@StackTrace(false)
+public class WorkItemCheckoutEvent extends jdk.jfr.Event
+        implements FlightEvents.WorkItemSpan {
+
+    @Label("Work Item Id")
+    public String workItemId;
+
+    @Label("Task Id")
+    public String taskId;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+
+    /**
+     * Creates and begins an event
+     * @param workItemId the id of the work item being checked out
+     * @param taskId the id of its task
+     */
+    public static WorkItemCheckoutEvent start(String workItemId, String taskId) {
+        WorkItemCheckoutEvent event = new WorkItemCheckoutEvent();
+        if (event.isEnabled()) {
+            event.workItemId = workItemId;
+            event.taskId = taskId;
+            event.begin();
+        }
+        return event;
+    }
+
+
+    /**
+     * Ends and commits the event, if it is being recorded
+     * @param succeeded true if the work item was checked out
+     */
+    @Override
+    public void finish(boolean succeeded) {
+        end();
+        if (! shouldCommit()) return;
+        this.succeeded = succeeded;
+        commit();
+    }
+
+}
@@ -1,14 +1,24 @@
 package org.yawlfoundation.yawl.fabric.service;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jdom2.Element;
 import org.yawlfoundation.yawl.elements.data.YParameter;
 import org.yawlfoundation.yawl.engine.interfce.WorkItemRecord;
 import org.yawlfoundation.yawl.engine.interfce.interfaceB.InterfaceBWebsideController;
+import org.yawlfoundation.yawl.exceptions.YAWLException;
 import org.yawlfoundation.yawl.fabric.exception.WorkItemDataException;
+import org.yawlfoundation.yawl.fabric.jfr.FlightContext;
+import org.yawlfoundation.yawl.fabric.jfr.FlightEvents;
 import org.yawlfoundation.yawl.util.StringUtil;
 
 import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Abstracts common functionality required by YAWL custom services
@@ -23,7 +33,15 @@ public abstract class AbstractService extends InterfaceBWebsideController {
 
     protected static final String XSD_NAMESPACE = "http://www.w3.org/2001/XMLSchema";
 
-    protected String _handle = null;      // stores a session handle to the YAWL engine
+    protected volatile String _handle = null;   // stores a session handle to the YAWL engine
+
+    private volatile WorkItemPipeline _pipeline; // null unless pipelined mode is enabled
+
+    // checks in work items whose processing completes asynchronously
+    private ExecutorService _completionExecutor;
+    private static final int COMPLETION_THREADS = 4;
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
 
 
     public AbstractService() {
@@ -33,31 +51,161 @@ public abstract class AbstractService extends InterfaceBWebsideController {
     /**
      * Receives a notification from the YAWL Engine of the enabling of a work item
      * to be delegated to this service. Performs the operations required to start,
-     * process and complete the work item.
+     * process and complete the work item, either directly or, if the pipeline is
+     * enabled, on one of its worker threads.
      *
      * @param wir the enabled work item
      */
     public void handleEnabledWorkItemEvent(WorkItemRecord wir) {
+        if (_pipeline != null) {
+            _pipeline.submit(() -> processEnabledWorkItem(wir));
+        }
+        else {
+            processEnabledWorkItem(wir);
+        }
+    }
+
+    // have to implement abstract method, but have no need for this event
+    public void handleCancelledWorkItemEvent(WorkItemRecord wir) {
+    }
+
+
+    @Override
+    public void destroy() {
+        if (_pipeline != null) _pipeline.shutdown();
+        synchronized (this) {
+            if (_completionExecutor != null) _completionExecutor.shutdown();
+        }
+        super.destroy();
+    }
+
+
+    /**
+     * Switches the handling of enabled work items to a bounded worker pool, so that
+     * the engine's notification thread is released as soon as the item is queued
+     *
+     * @param threads the number of worker threads
+     * @param queueCapacity the maximum number of work items waiting for a worker
+     * @param rejection the policy to apply when the queue is full
+     * @param offerTimeoutMsecs how long to wait for queue space under the BLOCK policy
+     */
+    protected void enablePipeline(int threads, int queueCapacity,
+                                  WorkItemPipeline.Rejection rejection,
+                                  long offerTimeoutMsecs) {
+        _pipeline = new WorkItemPipeline(threads, queueCapacity, rejection,
+                offerTimeoutMsecs);
+    }
+
+
+    /**
+     * @return the work item pipeline, or null if work items are handled synchronously
+     */
+    public WorkItemPipeline getPipeline() { return _pipeline; }
+
+
+    /**
+     * Checks out, processes and checks in an enabled work item. The checkout and
+     * checkin are recorded as flight recorder events, and the work item's id is
+     * made available to the events of the Fabric calls made while processing it.
+     * If processing fails, the work item is checked in with a failure result, so
+     * that it is never left checked out.
+     *
+     * @param wir the enabled work item
+     */
+    protected void processEnabledWorkItem(WorkItemRecord wir) {
+        WorkItemRecord checkedOut;
         try {
 
             // connect only if not already connected
             if (!connected()) connect();
+            checkedOut = checkOut(wir);
+        }
+        catch (Exception e) {
+            _logger.error("Failed to check out work item " + wir.getID(), e);
+            return;
+        }
 
-            // checkout ... process ... checkin
-            wir = checkOut(wir.getID(), _handle);
-            Element output = processWorkItem(wir);
+        // checkout ... process ... checkin
+        long checkedOutAt = System.nanoTime();
+        CompletableFuture<Element> future;
+        FlightContext.setWorkItemId(checkedOut.getID());
+        try {
+            future = processWorkItemAsync(checkedOut);
+        }
+        catch (RuntimeException re) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(re);
+        }
+        finally {
+            FlightContext.setWorkItemId(null);
+        }
+        CompletableFuture<Element> output = future.handle((data, ex) ->
+                ex == null ? data : getFailureOutput(checkedOut, ex));
+        if (output.isDone()) {
+            checkIn(checkedOut, output.join(), checkedOutAt);
+        }
+        else {
+
+            // don't check in on the thread that completed the future
+            output.thenAcceptAsync(data -> checkIn(checkedOut, data, checkedOutAt),
+                    getCompletionExecutor());
+        }
+    }
+
+
+    // the output of a work item whose processing failed
+    private Element getFailureOutput(WorkItemRecord wir, Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        _logger.error("Failed to process work item " + wir.getID(), ex);
+        return formatOutputData(wir.getTaskID(), "result", failMsg(ex.getMessage()));
+    }
+
+
+    private WorkItemRecord checkOut(WorkItemRecord wir) throws IOException, YAWLException {
+        FlightEvents.WorkItemSpan event = FlightEvents.beginCheckout(wir.getID(),
+                wir.getTaskID());
+        WorkItemRecord checkedOut = null;
+        try {
+            checkedOut = checkOut(wir.getID(), _handle);
+            return checkedOut;
+        }
+        finally {
+            event.finish(checkedOut != null);
+        }
+    }
+
+
+    private void checkIn(WorkItemRecord wir, Element output, long checkedOutAt) {
+        FlightEvents.WorkItemSpan event = FlightEvents.beginCheckin(wir.getID(),
+                wir.getTaskID(), checkedOutAt);
+        boolean succeeded = false;
+        try {
             if (output == null) {
                 throw new IllegalArgumentException("Output data element is null");
             }
-            checkInWorkItem(wir.getID(), wir.getDataList(), output, null, _handle);
+            succeeded = successful(checkInWorkItem(wir.getID(), wir.getDataList(),
+                    output, null, _handle));
         }
-        catch (Exception ioe) {
-            ioe.printStackTrace();
+        catch (Exception e) {
+            _logger.error("Failed to check in work item " + wir.getID(), e);
+        }
+        finally {
+            event.finish(succeeded);
         }
     }
 
-    // have to implement abstract method, but have no need for this event
-    public void handleCancelledWorkItemEvent(WorkItemRecord wir) {
+
+    private synchronized Executor getCompletionExecutor() {
+        if (_completionExecutor == null) {
+            _completionExecutor = Executors.newFixedThreadPool(COMPLETION_THREADS, r -> {
+                Thread t = new Thread(r, "workitem-checkin");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return _completionExecutor;
     }
 
 
@@ -79,7 +227,8 @@ public abstract class AbstractService extends InterfaceBWebsideController {
      *
      * @throws IOException if there's a problem connecting to the engine
      */
-    protected void connect() throws IOException {
+    protected synchronized void connect() throws IOException {
+        if (connected()) return;             // another thread may have got here first
         String result = connect(engineLogonName, engineLogonPassword);
         if (!successful(result)) {
             _handle = null;
@@ -253,4 +402,19 @@ public abstract class AbstractService extends InterfaceBWebsideController {
      */
     protected abstract Element processWorkItem(WorkItemRecord wir);
 
+
+    /**
+     * Processes a work item, allowing the output to be supplied later. The work item
+     * is checked in when the returned future completes, on a thread other than the
+     * one that completes it. Sub-classes that wait on remote results may override
+     * this so that no thread is held while waiting. The default implementation
+     * simply wraps the result of processWorkItem.
+     *
+     * @param wir the work item to process
+     * @return a future that completes with the output data Element for the work item
+     */
+    protected CompletableFuture<Element> processWorkItemAsync(WorkItemRecord wir) {
+        return CompletableFuture.completedFuture(processWorkItem(wir));
+    }
+
 }
\ No newline at end of file
@@ -3,14 +3,34 @@ package org.yawlfoundation.yawl.fabric.service;
 import org.hyperledger.fabric.sdk.BlockEvent;
 import org.hyperledger.fabric.sdk.ChaincodeResponse;
 import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
 import org.jdom2.Element;
+import org.yawlfoundation.yawl.elements.data.YParameter;
 import org.yawlfoundation.yawl.engine.interfce.WorkItemRecord;
+import org.yawlfoundation.yawl.fabric.bridge.ArgSchema;
+import org.yawlfoundation.yawl.fabric.bridge.ChaincodeTarget;
+import org.yawlfoundation.yawl.fabric.bridge.Futures;
 import org.yawlfoundation.yawl.fabric.bridge.HFInterface;
+import org.yawlfoundation.yawl.fabric.bridge.HistoryPage;
+import org.yawlfoundation.yawl.fabric.bridge.PayloadStore;
+import org.yawlfoundation.yawl.fabric.bridge.Props;
+import org.yawlfoundation.yawl.fabric.bridge.Resubmitter;
+import org.yawlfoundation.yawl.fabric.bridge.SharedHFInterface;
 import org.yawlfoundation.yawl.fabric.event.BlockUpdateListener;
+import org.yawlfoundation.yawl.util.StringUtil;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author Michael Adams
@@ -18,11 +38,50 @@ import java.util.concurrent.TimeUnit;
  */
 public class FabricService extends AbstractService implements BlockUpdateListener {
 
-    private static final HFInterface CLIENT = new HFInterface();
+    private static final long INVOKE_TIMEOUT = 60;     // seconds
+    private static final long READY_TIMEOUT = 30;      // seconds
+
+    private volatile HFInterface _client;              // null until bound
+    private volatile boolean _asyncInvoke;
 
     public FabricService() {
         super();
-        CLIENT.registerBlockUpdateListener(this);
+        SharedHFInterface.acquire().thenAccept(this::bind);
+    }
+
+
+    @Override
+    public void destroy() {
+        HFInterface client = _client;
+        if (client != null) client.unregisterBlockUpdateListener(this);
+        SharedHFInterface.release();
+        super.destroy();
+    }
+
+
+    /**
+     * Gets the shared interface, waiting a while for it to be ready. A work item
+     * that arrives during startup is held until then, rather than failed.
+     */
+    private HFInterface client() throws Exception {
+        try {
+            HFInterface client = SharedHFInterface.get(READY_TIMEOUT, TimeUnit.SECONDS);
+            if (client != _client) bind(client);
+            return client;
+        }
+        catch (TimeoutException te) {
+            throw new IllegalStateException("Fabric interface is not yet ready");
+        }
+    }
+
+
+    // called when the shared interface is ready, or after it is re-initialised
+    private synchronized void bind(HFInterface client) {
+        if (client == _client) return;
+        client.registerBlockUpdateListener(this);
+        if (getPipeline() == null) initPipeline(client.getProps());
+        _asyncInvoke = client.getProps().isAsyncInvoke();
+        _client = client;
     }
 
 
@@ -34,23 +93,106 @@ public class FabricService extends AbstractService implements BlockUpdateListene
     }
 
 
+    private void initPipeline(Props props) {
+        if (props.getPipelineThreads() > 0) {
+            enablePipeline(props.getPipelineThreads(), props.getPipelineQueueSize(),
+                    WorkItemPipeline.Rejection.fromString(props.getPipelineRejection()),
+                    props.getPipelineOfferTimeout());
+        }
+    }
+
+
+    /**
+     * If async invoke is enabled, returns as soon as an invoke function's proposal
+     * has been queued; it is endorsed and sent for ordering on a pooled thread, and
+     * the work item's output is built when the commit event for the transaction
+     * arrives. Queries, and all functions when async invoke is disabled, are
+     * processed synchronously.
+     */
+    @Override
+    protected CompletableFuture<Element> processWorkItemAsync(WorkItemRecord wir) {
+        String fcn = getDataValue(wir.getDataList(), "fcn");
+        try {
+            client();
+        }
+        catch (Exception e) {
+            return CompletableFuture.completedFuture(formatOutputData(wir.getTaskID(),
+                    "result", getFailureResponse(e)));
+        }
+        if (! (_asyncInvoke && fcn != null && ! isQuery(fcn))) {
+            return super.processWorkItemAsync(wir);
+        }
+        CompletableFuture<String> future;
+        try {
+            ArgSchema schema = _client.getProps().getArgSchema(fcn);
+            if (schema != null) {
+                future = invokeAsync(fcn, schema.toArgs(wir.getDataList(),
+                        _client.getPayloadStore()));
+            }
+            else {
+                String args = getDataValue(wir.getDataList(), "args");
+                future = invokeAsync(fcn, args != null ? args.split(",") : null);
+            }
+        }
+        catch (Exception e) {
+            future = CompletableFuture.completedFuture(getFailureResponse(e));
+        }
+        return future.handle((result, ex) -> formatOutputData(wir.getTaskID(),
+                "result", ex == null ? result : getFailureResponse(ex)));
+    }
+
+
+    /**
+     * A history query work item may give a "pageSize" and/or "bookmark" to get a
+     * single page of the key's history, as JSON. If the work item has a bookmark
+     * parameter, the bookmark of the next page is returned in it (empty if there
+     * are no more pages).
+     * <p>
+     * A function with typed arguments (see ArgSchema) is given them from the work
+     * item's parameters; other functions are given the "args" parameter, split on
+     * commas.
+     * <p>
+     * A work item that gives no function but a "payloadDigest" gets the payload
+     * held in the payload store under that digest, verified, in its "payload"
+     * parameter (base64 encoded).
+     */
     @Override
     protected Element processWorkItem(WorkItemRecord wir) {
         String result;
         String fcn = getDataValue(wir.getDataList(), "fcn");
-        if (fcn != null) {
-            String args = getDataValue(wir.getDataList(), "args");
-            String[] argsArray = args != null ? args.split(",") : null;
+        String digest = getDataValue(wir.getDataList(), "payloadDigest");
+        if (fcn == null && digest != null) {
             try {
-                if (fcn.startsWith("query")) {
-                    result = query(fcn, argsArray);
+                client();
+                return readPayload(wir, digest);
+            }
+            catch (Exception e) {
+                result = getFailureResponse(e);
+            }
+        }
+        else if (fcn != null) {
+            try {
+                client();
+                ArgSchema schema = _client.getProps().getArgSchema(fcn);
+                if (schema != null) {
+                    return processTyped(wir, fcn, schema.toArgs(wir.getDataList(),
+                            _client.getPayloadStore()));
+                }
+                String args = getDataValue(wir.getDataList(), "args");
+                String[] argsArray = args != null ? args.split(",") : null;
+                if (isPagedHistory(fcn, wir)) {
+                    return queryHistoryPage(wir, fcn, argsArray != null ?
+                            argsArray[0] : null);
+                }
+                else if (isQuery(fcn)) {
+                    result = query(fcn, argsArray, getMinBlock(wir));
                 }
                 else {
                     result = invoke(fcn, argsArray);
                 }
             }
             catch (Exception e) {
-                result = failMsg(e.getMessage());
+                result = getFailureResponse(e);
             }
         }
         else {
@@ -60,17 +202,192 @@ public class FabricService extends AbstractService implements BlockUpdateListene
     }
 
 
-    private String query(String fcn, String[] argsArray) throws Exception {
-        return parseResponses(CLIENT.query(fcn, argsArray));
+    private Element processTyped(WorkItemRecord wir, String fcn, List<byte[]> args)
+            throws Exception {
+        String result;
+        if (isPagedHistory(fcn, wir)) {
+            return queryHistoryPage(wir, fcn, args.isEmpty() ? null :
+                    new String(args.get(0), StandardCharsets.UTF_8));
+        }
+        else if (isQuery(fcn)) {
+            result = query(fcn, args, getMinBlock(wir));
+        }
+        else {
+            result = invoke(fcn, args);
+        }
+        return formatOutputData(wir.getTaskID(), "result", result);
+    }
+
+
+    private Element readPayload(WorkItemRecord wir, String digest) throws Exception {
+        PayloadStore store = _client.getPayloadStore();
+        if (store == null) {
+            throw new IllegalStateException("The payload store is not enabled");
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        long size;
+        try (OutputStream out = Base64.getEncoder().wrap(encoded)) {
+            size = store.copyTo(digest, out);
+        }
+        LinkedHashMap<String, String> output = new LinkedHashMap<>();
+        output.put("result", "Payload [" + digest + "] of " + size +
+                " bytes was verified.");
+        output.put("payload", encoded.toString(StandardCharsets.ISO_8859_1.name()));
+        return formatOutputData(wir.getTaskID(), output);
+    }
+
+
+    /**
+     * Declares the work item parameters the service uses: the function name, the
+     * untyped arguments, the history paging and mirror read options, and each
+     * parameter named by a typed function argument. The latter are optional, since
+     * each is needed only by the functions that name it; a parameter named by more
+     * than one function is declared with the type the first gives it.
+     */
+    @Override
+    public YParameter[] describeRequiredParams() {
+        HFInterface client = _client;
+        Props props = client != null ? client.getProps() : new Props();
+        Map<String, YParameter> inputs = new LinkedHashMap<>();
+        inputs.put("fcn", createInputParameter("string", "fcn",
+                "The chaincode function, optionally prefixed by a target name",
+                props.isPayloadStoreEnabled()));
+        inputs.put("args", createInputParameter("string", "args",
+                "The comma separated arguments of a function without typed arguments",
+                true));
+        inputs.put("minBlock", createInputParameter("long", "minBlock",
+                "The lowest block height a point read may be served from", true));
+        inputs.put("pageSize", createInputParameter("int", "pageSize",
+                "The number of records in a page of key history", true));
+        inputs.put("bookmark", createInputParameter("string", "bookmark",
+                "The bookmark of a page of key history", true));
+        if (props.isPayloadStoreEnabled()) {
+            inputs.put("payloadDigest", createInputParameter("string", "payloadDigest",
+                    "The digest of a payload to get, instead of calling a function",
+                    true));
+        }
+        for (ArgSchema schema : props.getArgSchemas()) {
+            for (ArgSchema.Arg arg : schema.getArgs()) {
+                inputs.putIfAbsent(arg.getName(), createInputParameter(arg.getXsdType(),
+                        arg.getName(), "An argument of function " + schema.getFunction(),
+                        true));
+            }
+        }
+        List<YParameter> params = new ArrayList<>(inputs.values());
+        params.add(createOutputParameter("string", "result",
+                "The function's result, or a failure message", false));
+        params.add(createOutputParameter("string", "bookmark",
+                "The bookmark of the next page of key history", true));
+        if (props.isPayloadStoreEnabled()) {
+            params.add(createOutputParameter("base64Binary", "payload",
+                    "The payload got by its digest", true));
+        }
+        return params.toArray(new YParameter[0]);
+    }
+
+
+    private long getMinBlock(WorkItemRecord wir) {
+        return StringUtil.strToLong(getDataValue(wir.getDataList(), "minBlock"), 0);
+    }
+
+
+    // fcn may be prefixed with the name of the channel/chaincode target it addresses
+    private boolean isQuery(String fcn) {
+        return ChaincodeTarget.functionName(fcn).startsWith("query");
+    }
+
+
+    private boolean isPagedHistory(String fcn, WorkItemRecord wir) {
+        return ChaincodeTarget.functionName(fcn).equals(_client.getProps().getHistoryFcn())
+                && (getDataValue(wir.getDataList(), "pageSize") != null ||
+                    getDataValue(wir.getDataList(), "bookmark") != null);
+    }
+
+
+    private Element queryHistoryPage(WorkItemRecord wir, String fcn, String key)
+            throws Exception {
+        if (key == null) {
+            throw new IllegalArgumentException("No key provided");
+        }
+        int pageSize = StringUtil.strToInt(getDataValue(wir.getDataList(), "pageSize"), 0);
+        String bookmark = getDataValue(wir.getDataList(), "bookmark");
+        HistoryPage page = _client.queryHistoryPage(fcn, key, pageSize,
+                StringUtil.isNullOrEmpty(bookmark) ? null : bookmark);
+        if (bookmark == null) {
+            return formatOutputData(wir.getTaskID(), "result", page.toString());
+        }
+        LinkedHashMap<String, String> output = new LinkedHashMap<>();
+        output.put("result", page.toString());
+        output.put("bookmark", page.isLast() ? "" : page.getBookmark());
+        return formatOutputData(wir.getTaskID(), output);
+    }
+
+
+    // a point read may be served by the local world state mirror
+    private String query(String fcn, String[] argsArray, long minBlock)
+            throws Exception {
+        if (argsArray != null && argsArray.length == 1) {
+            String value = readState(fcn, argsArray[0], minBlock);
+            if (value != null) return value;
+        }
+        return parseResponses(_client.query(fcn, argsArray));
+    }
+
+
+    private String query(String fcn, List<byte[]> args, long minBlock) throws Exception {
+        if (args.size() == 1) {
+            String value = readState(fcn, new String(args.get(0), StandardCharsets.UTF_8),
+                    minBlock);
+            if (value != null) return value;
+        }
+        return parseResponses(_client.query(fcn, args));
+    }
+
+
+    private String readState(String fcn, String key, long minBlock) {
+        byte[] value = _client.readState(fcn, key, minBlock);
+        return value != null ? new String(value) + '\n' : null;
     }
 
 
     private String invoke(String fcn, String[] argsArray) throws Exception {
-        return getInvokeResponse(CLIENT.invoke(fcn, argsArray).get(60, TimeUnit.SECONDS));
+        return getInvokeResponse(_client.invoke(fcn, argsArray).get(
+                INVOKE_TIMEOUT, TimeUnit.SECONDS));
+    }
+
+
+    private String invoke(String fcn, List<byte[]> args) throws Exception {
+        return getInvokeResponse(_client.invoke(fcn, args).get(
+                INVOKE_TIMEOUT, TimeUnit.SECONDS));
+    }
+
+
+    // the proposal, endorsement and commit all happen off the calling thread
+    private CompletableFuture<String> invokeAsync(String fcn, String[] argsArray) {
+        return Futures.within(_client.invokeAsync(fcn, argsArray), INVOKE_TIMEOUT,
+                TimeUnit.SECONDS).thenApply(this::getInvokeResponse);
+    }
+
+
+    private CompletableFuture<String> invokeAsync(String fcn, List<byte[]> args) {
+        return Futures.within(_client.invokeAsync(fcn, args), INVOKE_TIMEOUT,
+                TimeUnit.SECONDS).thenApply(this::getInvokeResponse);
+    }
+
+
+    private String getFailureResponse(Throwable ex) {
+        ex = Futures.unwrap(ex);
+        if (ex instanceof TransactionEventException) {
+            BlockEvent.TransactionEvent event =
+                    ((TransactionEventException) ex).getTransactionEvent();
+            if (event != null) return getInvokeResponse(event);
+        }
+        return failMsg(ex.getMessage());
     }
 
 
-    private String parseResponses(Collection<ProposalResponse> responses) throws Exception {
+    // package visible for the benchmarks
+    static String parseResponses(Collection<ProposalResponse> responses) throws Exception {
         StringBuilder result = new StringBuilder();
         for (ProposalResponse response : responses) {
             if (response.isVerified() && response.getStatus() == ChaincodeResponse.Status.SUCCESS) {
@@ -91,7 +408,7 @@ public class FabricService extends AbstractService implements BlockUpdateListene
         if (event.isValid()) {
             result += " has completed successfully.";
         } else {
-            result += " was invalid.";
+            result += " was invalid: " + Resubmitter.getValidationCode(event) + ".";
         }
         return result;
     }
@@ -1,88 +1,266 @@
 package org.yawlfoundation.yawl.fabric.service;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * A thread-safe client for the fabric service gateway. Requests are sent as JSON
+ * over a pool of persistent connections, so a single instance should be shared
+ * by all callers. Each request is available either synchronously or as a
+ * CompletableFuture completed by the client's executor.
+ *
  * @author Michael Adams
  * @date 29/10/19
  */
-public class FabricServiceClient {
+public class FabricServiceClient implements Closeable {
+
+    private static final String DEFAULT_URI = "http://localhost:8080/fsGateway/";
+    private static final int DEFAULT_MAX_CONNECTIONS = 64;
+    private static final int CONNECT_TIMEOUT = 5000;                     // msecs
+    private static final int SOCKET_TIMEOUT = 90000;     // > the servlet's timeout
+    private static final int BUFFER_SIZE = 1024;
+    private static final ContentType CONTENT_TYPE = ContentType.create(
+            "text/json", StandardCharsets.UTF_8);
+    private static final JsonGeneratorFactory GENERATOR_FACTORY =
+            Json.createGeneratorFactory(null);
+
+    private final String _backendURI;
+    private final PoolingHttpClientConnectionManager _connectionManager;
+    private final CloseableHttpClient _httpClient;
+    private final ExecutorService _executor;
+
+    // request bodies are serialised into a per-thread buffer that is reused
+    private final ThreadLocal<RequestBuffer> _buffers =
+            ThreadLocal.withInitial(RequestBuffer::new);
 
-    private String _backendURI = "http://localhost:8080/fsGateway/";
 
-    public FabricServiceClient() { }
+    public FabricServiceClient() { this(DEFAULT_URI); }
 
     public FabricServiceClient(String backendURI) {
+        this(backendURI, DEFAULT_MAX_CONNECTIONS);
+    }
+
+
+    /**
+     * @param backendURI the gateway's url
+     * @param maxConnections the maximum number of connections to keep open to the
+     *                       gateway, which is also the number of requests that may
+     *                       be in progress at once
+     */
+    public FabricServiceClient(String backendURI, int maxConnections) {
         _backendURI = backendURI;
+        _connectionManager = new PoolingHttpClientConnectionManager();
+        _connectionManager.setMaxTotal(maxConnections);
+        _connectionManager.setDefaultMaxPerRoute(maxConnections);
+        _connectionManager.setValidateAfterInactivity(2000);
+        _httpClient = HttpClients.custom()
+                .setConnectionManager(_connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT)
+                        .setConnectionRequestTimeout(SOCKET_TIMEOUT)
+                        .setSocketTimeout(SOCKET_TIMEOUT)
+                        .build())
+                .build();
+        _executor = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fs-client-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
 
-    public String addTransaction(String bundle, String salesAmount) throws IOException {
-        byte[] bytes = toByteArray("invoke", bundle, salesAmount);
-        return executePost(bytes).toString("UTF-8");
+    public String addTransaction(String item, String quantity, String total)
+            throws IOException {
+        return order(null, Collections.singletonList(new Order(item, quantity, total)));
+    }
+
+
+    /**
+     * Adds several orders in one request
+     * @param target the name of the chaincode target, or null for the default
+     * @param orders the orders to add
+     * @return the gateway's response, listing the result of each order
+     */
+    public String order(String target, List<Order> orders) throws IOException {
+        return executePost(toOrderBody(target, orders));
     }
 
 
     public String query(String key) throws IOException {
-        byte[] bytes = toByteArray("query", key);
-        return executePost(bytes).toString("UTF-8");
+        return executePost(toKeyBody("query", key));
     }
 
+
     public String history(String key) throws IOException {
-        byte[] bytes = toByteArray("history", key);
-        return executePost(bytes).toString("UTF-8");
-    }
-
-
-
-    private byte[] toByteArray(String action, String handle, String... args) throws IOException {
-         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-         DataOutputStream d = new DataOutputStream(baos);
-         d.writeUTF(action);
-         d.writeUTF(handle);
-         if (args != null) {
-             for (String arg : args) {
-                 d.writeUTF(arg);
-             }
-         }
-         return baos.toByteArray();
-     }
-
-
-     private ByteArrayOutputStream executePost(byte[] bytes) throws IOException {
-         URL url = new URL(_backendURI);
-         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-         connection.setDoOutput(true);
-         connection.setRequestProperty("Content-Type", "multipart/form-data");
-         connection.setRequestProperty("Content-length", "" + bytes.length);
-         connection.setRequestProperty("Connection", "close");
-         connection.getOutputStream().write(bytes);
-         connection.getOutputStream().close();
-         ByteArrayOutputStream outStream = getOutStream(connection.getInputStream());
-         connection.disconnect();
-         return outStream;
-     }
-
-
-     private ByteArrayOutputStream getOutStream(InputStream is) throws IOException {
-         final int BUF_SIZE = 32768;
-
-         // read reply into a buffered byte stream - to preserve UTF-8
-         BufferedInputStream inStream = new BufferedInputStream(is);
-         ByteArrayOutputStream outStream = new ByteArrayOutputStream(BUF_SIZE);
-         byte[] buffer = new byte[BUF_SIZE];
-
-         // read chunks from the input stream and write them out
-         int bytesRead;
-         while ((bytesRead = inStream.read(buffer, 0, BUF_SIZE)) > 0) {
-             outStream.write(buffer, 0, bytesRead);
-         }
-         outStream.close();
-         inStream.close();
-
-         return outStream;
-     }
+        return executePost(toKeyBody("history", key));
+    }
+
+
+    public CompletableFuture<String> addTransactionAsync(String item, String quantity,
+                                                         String total) {
+        return async(() -> addTransaction(item, quantity, total));
+    }
+
+
+    public CompletableFuture<String> orderAsync(String target, List<Order> orders) {
+        return async(() -> order(target, orders));
+    }
+
+
+    public CompletableFuture<String> queryAsync(String key) {
+        return async(() -> query(key));
+    }
+
+
+    public CompletableFuture<String> historyAsync(String key) {
+        return async(() -> history(key));
+    }
+
+
+    /**
+     * @return the number of requests waiting for a pooled connection
+     */
+    public int getPendingCount() {
+        return _connectionManager.getTotalStats().getPending();
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        _executor.shutdown();
+        _httpClient.close();
+    }
+
+
+    private CompletableFuture<String> async(Request request) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            _executor.execute(() -> {
+                try {
+                    future.complete(request.execute());
+                }
+                catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        }
+        catch (RejectedExecutionException ree) {
+            future.completeExceptionally(ree);
+        }
+        return future;
+    }
+
+
+    private RequestBuffer toOrderBody(String target, List<Order> orders) {
+        RequestBuffer buffer = _buffers.get();
+        buffer.reset();
+        try (JsonGenerator gen = GENERATOR_FACTORY.createGenerator(buffer,
+                StandardCharsets.UTF_8)) {
+            gen.writeStartObject().write("action", "order");
+            if (target != null) gen.write("target", target);
+            gen.writeStartArray("items");
+            for (Order order : orders) {
+                gen.writeStartObject()
+                        .write("item", order.getItem())
+                        .write("quantity", order.getQuantity())
+                        .write("total", order.getTotal())
+                        .writeEnd();
+            }
+            gen.writeEnd().writeEnd();
+        }
+        return buffer;
+    }
+
+
+    private RequestBuffer toKeyBody(String action, String key) {
+        RequestBuffer buffer = _buffers.get();
+        buffer.reset();
+        try (JsonGenerator gen = GENERATOR_FACTORY.createGenerator(buffer,
+                StandardCharsets.UTF_8)) {
+            gen.writeStartObject().write("action", action).write("key", key).writeEnd();
+        }
+        return buffer;
+    }
+
+
+    // the response is fully consumed so that the connection returns to the pool
+    private String executePost(RequestBuffer body) throws IOException {
+        HttpPost post = new HttpPost(_backendURI);
+        post.setEntity(body.toEntity());
+        try (CloseableHttpResponse response = _httpClient.execute(post)) {
+            HttpEntity entity = response.getEntity();
+            String content = entity != null ?
+                    EntityUtils.toString(entity, StandardCharsets.UTF_8) : "";
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 300) {
+                throw new IOException(response.getStatusLine() + ": " + content);
+            }
+            return content;
+        }
+    }
+
+
+    /**
+     * A single order of an item
+     */
+    public static class Order {
+        private final String _item;
+        private final String _quantity;
+        private final String _total;
+
+        public Order(String item, String quantity, String total) {
+            _item = item;
+            _quantity = quantity;
+            _total = total;
+        }
+
+        public String getItem() { return _item; }
+
+        public String getQuantity() { return _quantity; }
+
+        public String getTotal() { return _total; }
+    }
+
+
+    private interface Request {
+        String execute() throws IOException;
+    }
+
+
+    // exposes its backing array, so an entity can be made without copying it
+    private static class RequestBuffer extends ByteArrayOutputStream {
+        RequestBuffer() { super(BUFFER_SIZE); }
+
+        ByteArrayEntity toEntity() {
+            return new ByteArrayEntity(buf, 0, count, CONTENT_TYPE);
+        }
+    }
 
 }
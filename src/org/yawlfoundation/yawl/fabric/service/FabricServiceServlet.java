@@ -1,27 +1,44 @@
 package org.yawlfoundation.yawl.fabric.service;
 
-import org.apache.commons.io.IOUtils;
 import org.hyperledger.fabric.sdk.BlockEvent;
 import org.hyperledger.fabric.sdk.ChaincodeResponse;
 import org.hyperledger.fabric.sdk.ProposalResponse;
 import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
 import org.hyperledger.fabric.sdk.exception.ProposalException;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+import org.yawlfoundation.yawl.fabric.bridge.ChaincodeTarget;
+import org.yawlfoundation.yawl.fabric.bridge.Futures;
 import org.yawlfoundation.yawl.fabric.bridge.HFInterface;
+import org.yawlfoundation.yawl.fabric.bridge.HistoryPage;
+import org.yawlfoundation.yawl.fabric.bridge.PayloadStore;
+import org.yawlfoundation.yawl.fabric.bridge.Resubmitter;
+import org.yawlfoundation.yawl.fabric.bridge.SharedHFInterface;
+import org.yawlfoundation.yawl.fabric.bridge.WriteCoalescer;
+import org.yawlfoundation.yawl.util.StringUtil;
 
 import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.StringReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.NoSuchFileException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -31,11 +48,41 @@ import java.util.concurrent.TimeoutException;
  */
 public class FabricServiceServlet extends HttpServlet {
 
-    private static final HFInterface CLIENT = new HFInterface();
+    private static final long INVOKE_TIMEOUT = 60;     // seconds
+    private static final long READY_WAIT = 2000;       // msecs
+    private static final String CONTENT_TYPE = "text/json; charset=UTF-8";
+    private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(null);
+
+    // the servlet path, under the gateway's, of requests to store or fetch payloads
+    private static final String PAYLOADS_PATH = "/payloads";
+
+    // admission control: caps the number of requests being processed at once, the
+    // rest get a 503. An admitted request holds its container thread until Fabric
+    // answers or its deadline passes, since Servlet 2.5 has no async processing
+    private Semaphore _admission;
+    private long _requestTimeout;                      // msecs
+    private long _readyWait;                           // msecs
+
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        int maxRequests = StringUtil.strToInt(
+                getInitParameter("MaxConcurrentRequests"), 200);
+        _admission = new Semaphore(maxRequests);
+        _requestTimeout = StringUtil.strToLong(getInitParameter("RequestTimeout"),
+                TimeUnit.SECONDS.toMillis(INVOKE_TIMEOUT));
+        _readyWait = StringUtil.strToLong(getInitParameter("ReadyWait"), READY_WAIT);
+        SharedHFInterface.acquire();                  // initialises in the background
+    }
+
+
+    @Override
+    public void destroy() {
+        SharedHFInterface.release();
+        super.destroy();
+    }
 
-//    public void init() {
-//        super.init();
-//    }
 
     public void doGet(HttpServletRequest req, HttpServletResponse res)
             throws IOException, ServletException {
@@ -45,30 +92,82 @@ public class FabricServiceServlet extends HttpServlet {
 
     public void doPost(HttpServletRequest req, HttpServletResponse res)
             throws IOException {
+        if (! _admission.tryAcquire()) {
+            unavailable(res, 1, "Service busy, try again later");
+            return;
+        }
         try {
-            String body = IOUtils.toString(req.getReader());
-            if (body == null || body.isEmpty()) {
-                throw new IOException("no parameters provided");
-            }
-            System.out.println("#body = " + body);
+            long deadline = System.currentTimeMillis() + _requestTimeout;
+            HFInterface client = getClient(res);
+            if (client != null) processRequest(client, req, res, deadline);
+        }
+        finally {
+            _admission.release();
+        }
+    }
+
+
+    /**
+     * Gets the shared interface, waiting briefly for it if it is still starting.
+     * If it isn't ready in time, or failed to initialise, the request is refused
+     * with a 503 (Retry-After).
+     * @return the interface, or null if the request was refused
+     */
+    private HFInterface getClient(HttpServletResponse res) throws IOException {
+        try {
+            return SharedHFInterface.get(_readyWait, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException te) {
+            unavailable(res, 5, "Service is starting, try again later");
+        }
+        catch (ExecutionException ee) {
+            unavailable(res, 10, "Service failed to initialise: " +
+                    Futures.unwrap(ee).getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            unavailable(res, 1, "Service interrupted, try again later");
+        }
+        return null;
+    }
 
-            JsonObject jsonObject = readBody(body);
-            String action = jsonObject.getString("action");
-            String result = null;
+
+    private void unavailable(HttpServletResponse res, int retryAfter, String msg)
+            throws IOException {
+        res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        res.setHeader("Retry-After", String.valueOf(retryAfter));
+        writeError(res, msg);
+    }
+
+
+    private void processRequest(HFInterface client, HttpServletRequest req,
+                                HttpServletResponse res, long deadline)
+            throws IOException {
+        if (req.getServletPath().endsWith(PAYLOADS_PATH)) {
+            processPayloadRequest(client, req, res, deadline);
+            return;
+        }
+        try {
+            GatewayRequest request = readRequest(req);
+            String action = request.action;
+            String target = request.target;                  // null = default
 
             if (action == null || action.isEmpty()) {
                 throw new IOException("no action provided");
             }
             else if (action.equals("order")) {
-                result = processOrder(jsonObject.getJsonObject("items"));
+                processOrder(client, res, target, request.items, deadline);
             }
             else if (action.equals("query")) {
-                String[] args = { jsonObject.getString("key") };
-                result = query("query", args);
+                String verb = ChaincodeTarget.address(target, "query");
+                if (! readState(client, res, verb, request.getKey(), request.minBlock)) {
+                    String[] args = { request.getKey() };
+                    query(client, res, verb, args);
+                }
             }
             else if (action.equals("history")) {
-                String[] args = { jsonObject.getString("key") };
-                result = query("queryHistory", args);
+                history(client, res, ChaincodeTarget.address(target,
+                        client.getProps().getHistoryFcn()), request, deadline);
             }
             else {
                 throw new IllegalArgumentException("Invalid request");
@@ -84,85 +183,354 @@ public class FabricServiceServlet extends HttpServlet {
 //                result = String.valueOf(_sessions.disconnect(handle));
 //            } else if (_sessions.checkConnection(handle)) {
 //            } else writeString(res, "Invalid or disconnected session handle", "failure");
-
-            if (result != null) writeString(res, result);
         }
         catch (EOFException eofe) {              // occurs when the inputStream is null
-            writeString(res, jsonError("No input"));
+            writeError(res, "No input");
         }
         catch (Exception e) {
-            writeString(res, jsonError(e.getMessage()));
+            writeError(res, e.getMessage());
         }
     }
 
 
-    private String jsonError(String msg) {
-        return "{ \"error\": \"" + msg + "\" }";
+    /**
+     * Stores or fetches a payload too large for chaincode arguments, kept off-chain
+     * in the payload store. A POST to [gateway]/payloads?key=[key], with an
+     * optional &target=[target], streams the request body into the store, then
+     * invokes the payload record function with the key and the payload's digest
+     * and size, and writes {"key":..,"digest":..,"size":..} and the transaction's
+     * outcome. A GET of [gateway]/payloads/[digest] streams the payload back,
+     * verified against its digest; if verification fails, the response ends short
+     * of its Content-Length.
+     */
+    private void processPayloadRequest(HFInterface client, HttpServletRequest req,
+                                       HttpServletResponse res, long deadline)
+            throws IOException {
+        try {
+            PayloadStore store = client.getPayloadStore();
+            if (store == null) {
+                throw new IllegalStateException("The payload store is not enabled");
+            }
+            if (req.getMethod().equals("GET")) {
+                fetchPayload(store, req, res);
+            }
+            else {
+                storePayload(client, store, req, res, deadline);
+            }
+        }
+        catch (NoSuchFileException nsfe) {
+            res.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            writeError(res, "No such payload");
+        }
+        catch (Exception e) {
+            writeError(res, e.getMessage());
+        }
     }
 
 
-    private void writeString(HttpServletResponse res, String msg)
-            throws IOException {
-        if (msg != null) {
-            res.setContentType("text/json; charset=UTF-8");
-            OutputStreamWriter out = new OutputStreamWriter(res.getOutputStream(), StandardCharsets.UTF_8);
-            out.write(msg);
-            out.flush();
-            out.close();
+    private void storePayload(HFInterface client, PayloadStore store,
+                              HttpServletRequest req, HttpServletResponse res,
+                              long deadline) throws Exception {
+        String key = getQueryParameter(req, "key");
+        if (key == null) throw new IllegalArgumentException("No key provided");
+        String target = getQueryParameter(req, "target");
+        PayloadStore.Ref ref = store.put(req.getInputStream());
+        CompletableFuture<BlockEvent.TransactionEvent> future = client.invoke(
+                ChaincodeTarget.address(target, client.getProps().getPayloadRecordFcn()),
+                key, ref.getDigest(), String.valueOf(ref.getSize()));
+        try {
+            future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException | TimeoutException e) {
+            // reported below
         }
+
+        try (JsonGenerator gen = createGenerator(res)) {
+            gen.writeStartObject().write("key", key).write("digest", ref.getDigest())
+                    .write("size", ref.getSize());
+            writeOutcome(gen, future);
+            gen.writeEnd();
+        }
+    }
+
+
+    private void fetchPayload(PayloadStore store, HttpServletRequest req,
+                              HttpServletResponse res) throws IOException {
+        String path = req.getPathInfo();
+        String digest = path != null && path.length() > 1 ? path.substring(1) : null;
+        long size = store.size(digest);
+        res.setContentType("application/octet-stream");
+        res.setHeader("Content-Length", String.valueOf(size));
+        res.setHeader("ETag", '"' + digest + '"');
+        store.copyTo(digest, res.getOutputStream());
     }
 
 
-    private String query(String verb, String[] args) throws InvalidArgumentException, ProposalException {
-        Collection<ProposalResponse> responses = CLIENT.query(verb, args);
-        if (responses.size() != 1) {
+    // read from the query string, since payload bodies mustn't be read as forms
+    private String getQueryParameter(HttpServletRequest req, String name)
+            throws UnsupportedEncodingException {
+        String query = req.getQueryString();
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String pairName = eq < 0 ? pair : pair.substring(0, eq);
+            if (URLDecoder.decode(pairName, "UTF-8").equals(name)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+
+    private void writeError(HttpServletResponse res, String msg) throws IOException {
+        if (res.isCommitted()) return;                // too late, already streaming
+        res.resetBuffer();
+        try (JsonGenerator gen = createGenerator(res)) {
+            gen.writeStartObject().write("error", String.valueOf(msg)).writeEnd();
+        }
+    }
+
+
+    private JsonGenerator createGenerator(HttpServletResponse res) throws IOException {
+        res.setContentType(CONTENT_TYPE);
+        return Json.createGenerator(res.getOutputStream());        // UTF-8
+    }
+
+
+    /**
+     * Writes the history of a key as {"key":..,"records":[..],"bookmark":..}. If
+     * the request has a page size, only the page starting at the request's bookmark
+     * is written. Otherwise every page from the bookmark on is streamed as it is
+     * read, until the last page or the request's deadline; the bookmark is written
+     * only if there are more pages to read. Unless a paginated history function
+     * is configured, the key's full history is fetched once for the request.
+     */
+    private void history(HFInterface client, HttpServletResponse res, String verb,
+                         GatewayRequest request, long deadline) throws Exception {
+        String key = request.getKey();
+        boolean stream = request.pageSize <= 0;
+        HistoryPage.Cursor pages = client.queryHistory(verb, key, request.pageSize,
+                request.bookmark);
+        HistoryPage page = pages.next();
+
+        // once the first page is written, the response is committed
+        try (JsonGenerator gen = createGenerator(res)) {
+            gen.writeStartObject().write("key", key).writeStartArray("records");
+            while (true) {
+                page.getRecords().forEach(gen::write);
+                gen.flush();
+                if (! stream || page.isLast() || System.currentTimeMillis() >= deadline) {
+                    break;
+                }
+                page = pages.next();
+            }
+            gen.writeEnd();
+            if (! page.isLast()) gen.write("bookmark", page.getBookmark());
+            gen.writeEnd();
+        }
+    }
+
+
+    // serves a point read from the local world state mirror, if it can
+    private boolean readState(HFInterface client, HttpServletResponse res, String verb,
+                              String key, long minBlock) throws IOException {
+        byte[] value = client.readState(verb, key, minBlock);
+        if (value == null) return false;
+        res.setContentType(CONTENT_TYPE);
+        res.setHeader("X-Block-Height", String.valueOf(
+                client.getTarget(verb).getMirror().getHeight()));
+        OutputStream out = res.getOutputStream();
+        out.write(value);
+        out.flush();
+        return true;
+    }
+
+
+    /**
+     * Writes the payload of the first successful query response directly to the
+     * servlet output stream. The chaincode's payload is already JSON.
+     */
+    private void query(HFInterface client, HttpServletResponse res, String verb,
+                       String[] args)
+            throws InvalidArgumentException, ProposalException, IOException {
+        Collection<ProposalResponse> responses = client.query(verb, args);
+        if (responses.isEmpty()) {
             throw new IllegalArgumentException("Invalid arguments");
         }
 
-        ProposalResponse response = responses.iterator().next();
-        if (response.isVerified() && response.getStatus() == ChaincodeResponse.Status.SUCCESS) {
-            return response.getMessage();
+        // with query routing enabled there's one response (or several that agree)
+        for (ProposalResponse response : responses) {
+            if (response.isVerified() && response.getStatus() == ChaincodeResponse.Status.SUCCESS) {
+                res.setContentType(CONTENT_TYPE);
+                OutputStream out = res.getOutputStream();
+                response.getProposalResponse().getResponse().getPayload().writeTo(out);
+                out.flush();
+                return;
+            }
         }
 
         throw new ProposalException("Invalid response");
     }
 
 
-    private JsonObject readBody(String body) {
-        System.out.println("#readBody, body=" + body);
-        JsonReader reader = Json.createReader(new StringReader(body));
-        System.out.println("#reader created");
-        JsonObject jsonObject = reader.readObject();
-        System.out.println("#object created");
-        reader.close();
-        return jsonObject;
+    /**
+     * Reads the request body with a streaming parser. The body is a JSON object
+     * with an "action" and, depending on the action, a "key" or "items", and an
+     * optional "target". Package visible for the benchmarks.
+     */
+    GatewayRequest readRequest(HttpServletRequest req) throws IOException {
+        GatewayRequest request = new GatewayRequest();
+        try (JsonParser parser = PARSER_FACTORY.createParser(req.getInputStream(),
+                StandardCharsets.UTF_8)) {
+            if (! parser.hasNext()) throw new EOFException();
+            if (parser.next() != JsonParser.Event.START_OBJECT) {
+                throw new IllegalArgumentException("Request body must be a JSON object");
+            }
+            while (parser.hasNext()) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_OBJECT) break;
+                String name = parser.getString();
+                event = parser.next();
+                switch (name) {
+                    case "action": request.action = getScalar(parser, event); break;
+                    case "target": request.target = getScalar(parser, event); break;
+                    case "key": request.key = getScalar(parser, event); break;
+                    case "pagesize": request.pageSize = StringUtil.strToInt(
+                            getScalar(parser, event), 0); break;
+                    case "bookmark": request.bookmark = getScalar(parser, event); break;
+                    case "minblock": request.minBlock = StringUtil.strToLong(
+                            getScalar(parser, event), 0); break;
+                    case "items": readItems(parser, event, request.items); break;
+                    default: skip(parser, event);
+                }
+            }
+        }
+        return request;
     }
 
 
-    private String processOrder (JsonObject itemsObject)
-            throws ProposalException, InvalidArgumentException, InterruptedException,
-                   ExecutionException, TimeoutException {
+    // items may be an array of item objects, or an object of indexed item objects
+    private void readItems(JsonParser parser, JsonParser.Event event, List<OrderItem> items) {
+        if (event != JsonParser.Event.START_OBJECT && event != JsonParser.Event.START_ARRAY) {
+            throw new IllegalArgumentException("Invalid order items");
+        }
+        while (parser.hasNext()) {
+            event = parser.next();
+            if (event == JsonParser.Event.END_OBJECT || event == JsonParser.Event.END_ARRAY) {
+                break;
+            }
+            if (event == JsonParser.Event.KEY_NAME) event = parser.next();   // index
+            if (event != JsonParser.Event.START_OBJECT) {
+                throw new IllegalArgumentException("Invalid order item");
+            }
+            items.add(readItem(parser));
+        }
+    }
+
+
+    private OrderItem readItem(JsonParser parser) {
+        String item = null, quantity = null, total = null;
+        while (parser.hasNext()) {
+            JsonParser.Event event = parser.next();
+            if (event == JsonParser.Event.END_OBJECT) break;
+            String name = parser.getString();
+            event = parser.next();
+            switch (name) {
+                case "item": item = getScalar(parser, event); break;
+                case "quantity": quantity = getScalar(parser, event); break;
+                case "total": total = getScalar(parser, event); break;
+                default: skip(parser, event);
+            }
+        }
+        if (item == null || quantity == null || total == null) {
+            throw new IllegalArgumentException(
+                    "Order item requires 'item', 'quantity' and 'total' values");
+        }
+        return new OrderItem(item, quantity, total);
+    }
+
+
+    private String getScalar(JsonParser parser, JsonParser.Event event) {
+        switch (event) {
+            case VALUE_STRING:
+            case VALUE_NUMBER: return parser.getString();
+            case VALUE_TRUE: return "true";
+            case VALUE_FALSE: return "false";
+            case VALUE_NULL: return null;
+            default: skip(parser, event);
+        }
+        throw new IllegalArgumentException("Expected a string or number value");
+    }
+
+
+    private void skip(JsonParser parser, JsonParser.Event event) {
+        if (event == JsonParser.Event.START_OBJECT) parser.skipObject();
+        else if (event == JsonParser.Event.START_ARRAY) parser.skipArray();
+    }
+
+
+    /**
+     * Sends the proposals for all items in the order concurrently, then waits for
+     * all of their commits together, until the request's deadline. If an order
+     * batch function is configured, the whole order is instead sent as a single
+     * chaincode invocation. Otherwise, if write coalescing is enabled, each item's
+     * increment is merged with concurrent increments to the same bundle, and the
+     * item shares the outcome of the combined transaction.
+     */
+    private void processOrder(HFInterface client, HttpServletResponse res,
+                              String target, List<OrderItem> items, long deadline)
+            throws InterruptedException, IOException {
+        if (items.isEmpty()) {
+            throw new IllegalArgumentException("No order items provided");
+        }
+
+        String batchFcn = client.getProps().getOrderBatchFcn();
+        if (batchFcn != null && items.size() > 1) {
+            List<String> args = new ArrayList<>();
+            for (OrderItem item : items) {
+                args.addAll(Arrays.asList(item.getArgs()));
+            }
+            CompletableFuture<BlockEvent.TransactionEvent> future =
+                    client.invokeAsync(ChaincodeTarget.address(target, batchFcn),
+                            args.toArray(new String[0]));
+            items.forEach(item -> item.future = future);
+        }
+        else if (client.getWriteCoalescer() != null) {
+            WriteCoalescer coalescer = client.getWriteCoalescer();
+            for (OrderItem item : items) {
+                String[] args = item.getArgs();
+                item.future = coalescer.add(ChaincodeTarget.address(target, "invoke"),
+                        args[0], args[1], args[2]);
+            }
+        }
+        else {
+            for (OrderItem item : items) {
+                item.future = client.invokeAsync(ChaincodeTarget.address(target, "invoke"),
+                        item.getArgs());
+            }
+        }
 
-        StringBuilder result = new StringBuilder("{");
-        for (int i=0; i < itemsObject.size(); i++) {
-            JsonObject itemArray = itemsObject.getValue("/" + i).asJsonObject();
-            String item = itemArray.getString("item");
-            String quantity = itemArray.getString("quantity");
-            String total = itemArray.getString("total");
+        CompletableFuture<?>[] futures = items.stream().map(item -> item.future)
+                .toArray(CompletableFuture<?>[]::new);
+        try {
+            CompletableFuture.allOf(futures).get(
+                    Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException | TimeoutException e) {
+            // one or more items failed or timed out - each is reported below
+        }
 
-            String bundle = getProductString(item);
-            String[] args = {bundle, quantity, total};
-            BlockEvent.TransactionEvent event = CLIENT.invoke("invoke", args)
-                    .get(60, TimeUnit.SECONDS);
-            
-            result.append("[ \"transaction\": \"").append(event.getTransactionID())
-                    .append("\", \"result\": ")
-                    .append(event.isValid() ? " \"success\"]" : " \"invalid\"]");
+        try (JsonGenerator gen = createGenerator(res)) {
+            gen.writeStartObject().writeStartArray("items");
+            for (OrderItem item : items) {
+                item.write(gen);
+            }
+            gen.writeEnd().writeEnd();
         }
-        return result + "}";
     }
 
-    
+
     private String getProductString(String itemID) {
         switch (itemID) {
             case "158" : return "edits";
@@ -172,5 +540,76 @@ public class FabricServiceServlet extends HttpServlet {
         }
         return "invalid";
     }
-    
+
+
+    static class GatewayRequest {
+        String action;
+        String target;
+        String key;
+        long minBlock;                    // lowest acceptable world state mirror height
+        int pageSize;                     // 0 = stream the whole history
+        String bookmark;                  // where a history page starts
+        final List<OrderItem> items = new ArrayList<>();
+
+        String getKey() {
+            if (key == null) throw new IllegalArgumentException("No key provided");
+            return key;
+        }
+    }
+
+
+    private class OrderItem {
+        final String item;
+        final String quantity;
+        final String total;
+        CompletableFuture<BlockEvent.TransactionEvent> future;
+
+        OrderItem(String item, String quantity, String total) {
+            this.item = item;
+            this.quantity = quantity;
+            this.total = total;
+        }
+
+        String[] getArgs() {
+            return new String[] { getProductString(item), quantity, total };
+        }
+
+        void write(JsonGenerator gen) {
+            gen.writeStartObject().write("item", item);
+            writeOutcome(gen, future);
+            gen.writeEnd();
+        }
+    }
+
+
+    // writes a transaction's id and result, or "timeout" if it is still pending
+    private static void writeOutcome(JsonGenerator gen,
+                                     CompletableFuture<BlockEvent.TransactionEvent> future) {
+        try {
+            BlockEvent.TransactionEvent event = future.getNow(null);
+            if (event == null) {
+                gen.write("result", "timeout");
+            }
+            else {
+                gen.write("transaction", event.getTransactionID())
+                        .write("result", event.isValid() ? "success" : "invalid");
+            }
+        }
+        catch (CompletionException ce) {
+            Throwable cause = Futures.unwrap(ce);
+            if (cause instanceof TransactionEventException &&
+                    ((TransactionEventException) cause).getTransactionEvent() != null) {
+                BlockEvent.TransactionEvent invalid =
+                        ((TransactionEventException) cause).getTransactionEvent();
+                gen.write("transaction", invalid.getTransactionID())
+                        .write("result", "invalid")
+                        .write("code", Resubmitter.getValidationCode(invalid).name());
+            }
+            else {
+                gen.write("result", "error").write("error",
+                        String.valueOf(cause.getMessage()));
+            }
+        }
+    }
+
 }
@@ -0,0 +1,378 @@
+package org.yawlfoundation.yawl.fabric.service;
+
+import org.yawlfoundation.yawl.fabric.bridge.ChaincodeTarget;
+import org.yawlfoundation.yawl.fabric.bridge.FabricMetrics;
+import org.yawlfoundation.yawl.fabric.bridge.HFInterface;
+import org.yawlfoundation.yawl.fabric.bridge.LatencyHistogram;
+import org.yawlfoundation.yawl.fabric.bridge.PayloadStore;
+import org.yawlfoundation.yawl.fabric.bridge.QueryCache;
+import org.yawlfoundation.yawl.fabric.bridge.Resubmitter;
+import org.yawlfoundation.yawl.fabric.bridge.SharedHFInterface;
+import org.yawlfoundation.yawl.fabric.bridge.WorldStateMirror;
+import org.yawlfoundation.yawl.fabric.bridge.WriteCoalescer;
+import org.yawlfoundation.yawl.fabric.event.ChaincodeEventRegistry;
+import org.yawlfoundation.yawl.fabric.event.ListenerDispatcher;
+import org.yawlfoundation.yawl.fabric.event.YBlockListener;
+import org.yawlfoundation.yawl.fabric.event.YChaincodeEventListener;
+import org.yawlfoundation.yawl.util.StringUtil;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serves the metrics of the shared HFInterface in the Prometheus text format: the
+ * latencies of the phases of queries and invocations, by function, as summaries
+ * (their quantiles are over the life of the service), the outcomes of
+ * transactions and the failed responses of peers, and the counts and gauges of
+ * the query caches, world state mirrors, chaincode event registries, block
+ * listeners and their update dispatchers, the resubmitter, the write coalescer
+ * and the payload store, where these are enabled. While the interface isn't
+ * ready, a 503 is returned.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long READY_WAIT = 2000;                       // msecs
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String SUMMARY = "summary";
+
+    private long _readyWait;                                           // msecs
+
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        _readyWait = StringUtil.strToLong(getInitParameter("ReadyWait"), READY_WAIT);
+        SharedHFInterface.acquire();                  // initialises in the background
+    }
+
+
+    @Override
+    public void destroy() {
+        SharedHFInterface.release();
+        super.destroy();
+    }
+
+
+    public void doGet(HttpServletRequest req, HttpServletResponse res)
+            throws IOException {
+        HFInterface client;
+        try {
+            client = SharedHFInterface.get(_readyWait, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException | ExecutionException e) {
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Fabric interface is not ready");
+            return;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        List<Family> families = new ArrayList<>();
+        addRequestMetrics(families, client.getMetrics());
+        addTargetMetrics(families, client);
+        addSubmissionMetrics(families, client);
+        StringBuilder text = new StringBuilder();
+        families.forEach(family -> family.writeTo(text));
+        res.setContentType(CONTENT_TYPE);
+        res.getOutputStream().write(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private void addRequestMetrics(List<Family> families, FabricMetrics metrics) {
+        Family latency = add(families, "fabric_request_duration_seconds", SUMMARY,
+                "Latency of each phase of chaincode queries and invocations");
+        for (FabricMetrics.FunctionStats stats : metrics.getFunctionStats()) {
+            for (Map.Entry<FabricMetrics.Phase, LatencyHistogram> entry :
+                    stats.getPhases().entrySet()) {
+                LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+                String[] labels = { "operation", stats.getOperation().label(),
+                        "target", stats.getTarget(), "function", stats.getFunction(),
+                        "phase", entry.getKey().label() };
+                for (double quantile : QUANTILES) {
+                    double value = snapshot.getCount() > 0 ?
+                            seconds(snapshot.getValueAtPercentile(quantile * 100)) :
+                            Double.NaN;
+                    latency.add(value, append(labels, "quantile",
+                            String.valueOf(quantile)));
+                }
+                latency.add("_sum", seconds(snapshot.getSum()), labels);
+                latency.add("_count", snapshot.getCount(), labels);
+            }
+        }
+
+        Family transactions = add(families, "fabric_transactions_total", COUNTER,
+                "Submitted transactions that reached a block, by validation code");
+        metrics.getTransactionCounts().forEach((code, count) ->
+                transactions.add(count, "code", code));
+        add(families, "fabric_transaction_failures_total", COUNTER,
+                "Submitted transactions refused by the orderer or not seen committed")
+                .add(metrics.getFailedCount());
+        Family peerErrors = add(families, "fabric_peer_errors_total", COUNTER,
+                "Failed or unverified proposal responses, by peer");
+        metrics.getPeerErrorCounts().forEach((peer, count) ->
+                peerErrors.add(count, "peer", peer));
+    }
+
+
+    private void addTargetMetrics(List<Family> families, HFInterface client) {
+        Family cacheHits = add(families, "fabric_query_cache_hits_total", COUNTER,
+                "Queries answered from the query cache");
+        Family cacheMisses = add(families, "fabric_query_cache_misses_total", COUNTER,
+                "Queries not answered from the query cache");
+        Family cacheInvalidations = add(families,
+                "fabric_query_cache_invalidations_total", COUNTER,
+                "Query cache entries invalidated by committed writes");
+        Family cacheEntries = add(families, "fabric_query_cache_entries", GAUGE,
+                "Entries held by the query cache");
+        Family mirrorHits = add(families, "fabric_mirror_hits_total", COUNTER,
+                "Reads answered from the world state mirror");
+        Family mirrorMisses = add(families, "fabric_mirror_misses_total", COUNTER,
+                "Reads not answered from the world state mirror");
+        Family mirrorResets = add(families, "fabric_mirror_resets_total", COUNTER,
+                "Rebuilds of the world state mirror");
+        Family mirrorKeys = add(families, "fabric_mirror_keys", GAUGE,
+                "Keys held by the world state mirror");
+        Family mirrorHeight = add(families, "fabric_mirror_height", GAUGE,
+                "The last block applied to the world state mirror");
+        Family eventsReceived = add(families, "fabric_chaincode_events_received_total",
+                COUNTER, "Chaincode events received");
+        Family eventsClaimed = add(families, "fabric_chaincode_events_claimed_total",
+                COUNTER, "Chaincode events delivered to a waiter");
+        Family eventsDiscarded = add(families,
+                "fabric_chaincode_events_discarded_total", COUNTER,
+                "Chaincode events discarded unclaimed");
+        Family eventsTimedOut = add(families, "fabric_chaincode_events_timed_out_total",
+                COUNTER, "Waits for a chaincode event that timed out");
+        Family eventsRetained = add(families, "fabric_chaincode_events_retained", GAUGE,
+                "Chaincode events held for a waiter");
+        Family eventWaiters = add(families, "fabric_chaincode_event_waiters", GAUGE,
+                "Callers waiting for a chaincode event");
+        Family backfilled = add(families, "fabric_blocks_backfilled_total", COUNTER,
+                "Missed blocks fetched by the block listener");
+        Family blockFailures = add(families, "fabric_block_failures_total", COUNTER,
+                "Blocks the block listener failed to fetch or decode, and holds");
+        Family duplicates = add(families, "fabric_blocks_duplicate_total", COUNTER,
+                "Blocks the block listener received more than once");
+        Family lag = add(families, "fabric_dispatch_lag", GAUGE,
+                "Block updates waiting for delivery to a listener");
+        Family published = add(families, "fabric_dispatch_published_total", COUNTER,
+                "Block updates queued for a listener");
+        Family delivered = add(families, "fabric_dispatch_delivered_total", COUNTER,
+                "Block updates delivered to a listener");
+        Family dropped = add(families, "fabric_dispatch_dropped_total", COUNTER,
+                "Block updates dropped by a listener's overflow policy");
+        Family failed = add(families, "fabric_dispatch_failed_total", COUNTER,
+                "Block updates a listener failed to process");
+
+        Map<YBlockListener, Boolean> channelsSeen = new IdentityHashMap<>();
+        for (ChaincodeTarget target : client.getTargets()) {
+            String name = target.getName();
+            QueryCache cache = target.getQueryCache();
+            if (cache != null) {
+                cacheHits.add(cache.getHitCount(), "target", name);
+                cacheMisses.add(cache.getMissCount(), "target", name);
+                cacheInvalidations.add(cache.getInvalidationCount(), "target", name);
+                cacheEntries.add(cache.size(), "target", name);
+            }
+            WorldStateMirror mirror = target.getMirror();
+            if (mirror != null) {
+                mirrorHits.add(mirror.getHitCount(), "target", name);
+                mirrorMisses.add(mirror.getMissCount(), "target", name);
+                mirrorResets.add(mirror.getResetCount(), "target", name);
+                mirrorKeys.add(mirror.getKeyCount(), "target", name);
+                mirrorHeight.add(mirror.getHeight(), "target", name);
+            }
+            YChaincodeEventListener eventListener = target.getEventListener();
+            if (eventListener != null) {
+                ChaincodeEventRegistry registry = eventListener.getRegistry();
+                eventsReceived.add(registry.getReceivedCount(), "target", name);
+                eventsClaimed.add(registry.getClaimedCount(), "target", name);
+                eventsDiscarded.add(registry.getDiscardedCount(), "target", name);
+                eventsTimedOut.add(registry.getTimedOutCount(), "target", name);
+                eventsRetained.add(registry.getRetainedCount(), "target", name);
+                eventWaiters.add(registry.getWaiterCount(), "target", name);
+            }
+
+            // targets on the same channel share its block listener
+            YBlockListener listener = target.getBlockListener();
+            if (listener == null || channelsSeen.put(listener, true) != null) continue;
+            String channel = target.getChannel().getName();
+            backfilled.add(listener.getBackfilledCount(), "channel", channel);
+            blockFailures.add(listener.getFailedCount(), "channel", channel);
+            duplicates.add(listener.getDuplicateCount(), "channel", channel);
+            Set<String> names = new HashSet<>();
+            for (ListenerDispatcher<?> dispatcher : listener.getDispatchers()) {
+                String listenerName = dispatcher.getName();
+                for (int i = 2; ! names.add(listenerName); i++) {
+                    listenerName = dispatcher.getName() + "-" + i;
+                }
+                String[] labels = { "channel", channel, "listener", listenerName };
+                lag.add(dispatcher.getLag(), labels);
+                published.add(dispatcher.getPublishedCount(), labels);
+                delivered.add(dispatcher.getDeliveredCount(), labels);
+                dropped.add(dispatcher.getDroppedCount(), labels);
+                failed.add(dispatcher.getFailedCount(), labels);
+            }
+        }
+    }
+
+
+    private void addSubmissionMetrics(List<Family> families, HFInterface client) {
+        Resubmitter resubmitter = client.getResubmitter();
+        if (resubmitter != null) {
+            long submitted = 0, committed = 0, conflicts = 0, resubmitted = 0;
+            long exhausted = 0, failed = 0;
+            for (Resubmitter.KeyStats stats : resubmitter.getStats().values()) {
+                submitted += stats.getSubmittedCount();
+                committed += stats.getCommittedCount();
+                conflicts += stats.getConflictCount();
+                resubmitted += stats.getResubmittedCount();
+                exhausted += stats.getExhaustedCount();
+                failed += stats.getFailedCount();
+            }
+            add(families, "fabric_resubmitter_submitted_total", COUNTER,
+                    "Invocations submitted through the resubmitter").add(submitted);
+            add(families, "fabric_resubmitter_committed_total", COUNTER,
+                    "Invocations committed as valid").add(committed);
+            add(families, "fabric_resubmitter_conflicts_total", COUNTER,
+                    "Transactions invalidated by a read conflict").add(conflicts);
+            add(families, "fabric_resubmitter_resubmitted_total", COUNTER,
+                    "Transactions resubmitted after a read conflict").add(resubmitted);
+            add(families, "fabric_resubmitter_exhausted_total", COUNTER,
+                    "Conflicted invocations not resubmitted: out of attempts or budget")
+                    .add(exhausted);
+            add(families, "fabric_resubmitter_failed_total", COUNTER,
+                    "Invocations that failed other than by a read conflict").add(failed);
+        }
+
+        WriteCoalescer coalescer = client.getWriteCoalescer();
+        if (coalescer != null) {
+            add(families, "fabric_coalescer_added_total", COUNTER,
+                    "Increments added to the write coalescer")
+                    .add(coalescer.getAddedCount());
+            add(families, "fabric_coalescer_submitted_total", COUNTER,
+                    "Combined transactions submitted by the write coalescer")
+                    .add(coalescer.getSubmittedCount());
+            add(families, "fabric_coalescer_open_batches", GAUGE,
+                    "Batches waiting for their window to close")
+                    .add(coalescer.getOpenBatchCount());
+        }
+        PayloadStore payloads = client.getPayloadStore();
+        if (payloads != null) {
+            add(families, "fabric_payloads_stored_total", COUNTER,
+                    "Payloads added to the off-chain payload store")
+                    .add(payloads.getStoredCount());
+            add(families, "fabric_payload_stored_bytes_total", COUNTER,
+                    "Bytes of payloads added to the off-chain payload store")
+                    .add(payloads.getStoredBytes());
+            add(families, "fabric_payload_duplicates_total", COUNTER,
+                    "Payloads stored that the payload store already held")
+                    .add(payloads.getDuplicateCount());
+            add(families, "fabric_payload_reads_total", COUNTER,
+                    "Payloads read from the payload store")
+                    .add(payloads.getReadCount());
+            add(families, "fabric_payload_verify_failures_total", COUNTER,
+                    "Payload reads that failed verification against their digest")
+                    .add(payloads.getVerifyFailureCount());
+        }
+    }
+
+
+    private Family add(List<Family> families, String name, String type, String help) {
+        Family family = new Family(name, type, help);
+        families.add(family);
+        return family;
+    }
+
+
+    private double seconds(long nanos) { return nanos / 1e9; }
+
+
+    private String[] append(String[] labels, String name, String value) {
+        String[] appended = new String[labels.length + 2];
+        System.arraycopy(labels, 0, appended, 0, labels.length);
+        appended[labels.length] = name;
+        appended[labels.length + 1] = value;
+        return appended;
+    }
+
+
+    /**
+     * A metric family: its samples, and the comment lines that describe them. A
+     * family without samples is not written.
+     */
+    private static class Family {
+        private final String _name;
+        private final String _type;
+        private final String _help;
+        private final StringBuilder _samples = new StringBuilder();
+
+        Family(String name, String type, String help) {
+            _name = name;
+            _type = type;
+            _help = help;
+        }
+
+        // labels are given as name, value pairs
+        Family add(Number value, String... labels) { return add("", value, labels); }
+
+        Family add(String suffix, Number value, String... labels) {
+            _samples.append(_name).append(suffix);
+            if (labels.length > 0) {
+                _samples.append('{');
+                for (int i = 0; i < labels.length; i += 2) {
+                    if (i > 0) _samples.append(',');
+                    _samples.append(labels[i]).append("=\"")
+                            .append(escape(labels[i + 1])).append('"');
+                }
+                _samples.append('}');
+            }
+            _samples.append(' ').append(format(value)).append('\n');
+            return this;
+        }
+
+        void writeTo(StringBuilder text) {
+            if (_samples.length() == 0) return;
+            text.append("# HELP ").append(_name).append(' ').append(_help).append('\n');
+            text.append("# TYPE ").append(_name).append(' ').append(_type).append('\n');
+            text.append(_samples);
+        }
+
+        private String format(Number value) {
+            if (! (value instanceof Double)) return String.valueOf(value.longValue());
+            double d = value.doubleValue();
+            if (Double.isNaN(d)) return "NaN";
+            if (Double.isInfinite(d)) return d > 0 ? "+Inf" : "-Inf";
+            return String.valueOf(d);
+        }
+
+        private String escape(String value) {
+            return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"")
+                    .replace("\n", "\\n");
+        }
+    }
+
+}
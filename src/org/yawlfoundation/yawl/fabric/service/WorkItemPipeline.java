@@ -0,0 +1,157 @@
+package org.yawlfoundation.yawl.fabric.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of worker threads that decouples the receipt of an enabled work
+ * item notification from the processing and check-in of the work item. Once the
+ * queue is full, the configured rejection policy determines how the notifying
+ * thread is pushed back on.
+ *
+ * @author Michael Adams
+ * @date 18/10/26
+ */
+public class WorkItemPipeline {
+
+    /**
+     * What to do with a task when both the workers and the queue are full:
+     * CALLER_RUNS processes it on the notifying thread (natural backpressure),
+     * BLOCK waits up to the offer timeout for queue space before rejecting, and
+     * REJECT drops it immediately. A rejected work item is never checked out, so
+     * it remains enabled in the engine.
+     */
+    public enum Rejection {
+        CALLER_RUNS, BLOCK, REJECT;
+
+        public static Rejection fromString(String s) {
+            if (s != null) {
+                for (Rejection r : values()) {
+                    if (r.name().replace("_", "").equalsIgnoreCase(s.replace("_", ""))) {
+                        return r;
+                    }
+                }
+            }
+            return CALLER_RUNS;
+        }
+    }
+
+
+    private final ThreadPoolExecutor _executor;
+    private final int _queueCapacity;
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+
+    private final Logger _logger = LogManager.getLogger(this.getClass());
+
+
+    public WorkItemPipeline(int threads, int queueCapacity, Rejection rejection,
+                            long offerTimeoutMsecs) {
+        _queueCapacity = Math.max(1, queueCapacity);
+        _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(_queueCapacity), new WorkerFactory(),
+                getRejectionHandler(rejection, offerTimeoutMsecs));
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Queues a task for execution
+     * @param task the task to execute
+     * @return true if the task was accepted, false if it was rejected
+     */
+    public boolean submit(Runnable task) {
+        try {
+            _executor.execute(() -> {
+                _inFlight.incrementAndGet();
+                try {
+                    task.run();
+                }
+                finally {
+                    _inFlight.decrementAndGet();
+                    _completed.incrementAndGet();
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException ree) {
+            _rejected.incrementAndGet();
+            _logger.warn("Work item pipeline rejected task: {}", ree.getMessage());
+            return false;
+        }
+    }
+
+
+    public void shutdown() {
+        _executor.shutdown();
+        try {
+            if (! _executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                _executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException ie) {
+            _executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // gauges
+
+    public int getQueueDepth() { return _executor.getQueue().size(); }
+
+    public int getQueueCapacity() { return _queueCapacity; }
+
+    public int getInFlight() { return _inFlight.get(); }
+
+    public long getCompletedCount() { return _completed.get(); }
+
+    public long getRejectedCount() { return _rejected.get(); }
+
+    public int getPoolSize() { return _executor.getPoolSize(); }
+
+
+    private RejectedExecutionHandler getRejectionHandler(Rejection rejection,
+                                                         long offerTimeoutMsecs) {
+        switch (rejection) {
+            case BLOCK: return (task, executor) -> {
+                try {
+                    if (executor.isShutdown() || ! executor.getQueue().offer(
+                            task, offerTimeoutMsecs, TimeUnit.MILLISECONDS)) {
+                        throw new RejectedExecutionException("queue full after waiting " +
+                                offerTimeoutMsecs + "ms");
+                    }
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("interrupted while waiting");
+                }
+            };
+            case REJECT: return new ThreadPoolExecutor.AbortPolicy();
+            default: return new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+    }
+
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger _count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "workitem-pipeline-" + _count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}